@@ -0,0 +1,137 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cache.HashtableCacheProvider;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.stat.Statistics;
+
+import hibernate_config.CENamingStrategy;
+import model.Bid;
+import model.Item;
+import persistence.BidCacheInvalidator;
+import persistence.SessionFactoryRegistry;
+
+/**
+ * Count the SQL statements of an auction page, that is an item with its whole
+ * bid history, without and with the second-level cache for Bid and Item.bids.
+ * The same pages are loaded with both factories, the items are the first ones
+ * found in the database, so run it against a database with some auctions.
+ *
+ * The report has a line for each mode with the page loads, the statements and
+ * the statements per page
+ *
+ * Without a cache provider in the configuration the cached run uses
+ * Hibernate's HashtableCacheProvider, that works with the jars in lib. The
+ * regions are not bounded, that's fine for the pages loaded here; set
+ * hibernate.cache.provider_class to compare another provider, e.g.
+ * BoundedCacheProvider with bounded regions
+ *
+ * Usage: BidCacheBenchmark [page loads] [report file] [configuration resource]
+ */
+public class BidCacheBenchmark {
+
+  private static final String MODULE = "caveatemptor";
+
+  private final String configResource;
+  private final List<String> report = new ArrayList<>();
+
+  public BidCacheBenchmark(String configResource) {
+    this.configResource = configResource;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int pageLoads = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    File reportFile = new File(args.length > 1 ? args[1] : "bench-bid-cache.csv");
+    String configResource = args.length > 2 ? args[2] : SessionFactoryRegistry.AUCTION_DATABASE;
+
+    BidCacheBenchmark benchmark = new BidCacheBenchmark(configResource);
+    benchmark.run("no-cache", false, pageLoads);
+    benchmark.run("bid-cache", true, pageLoads);
+    benchmark.writeReport(reportFile);
+  }
+
+  private void run(String mode, boolean cached, int pageLoads) {
+    Configuration configuration = new Configuration();
+    configuration.setNamingStrategy(new CENamingStrategy());
+    configuration.configure(configResource);
+    configuration.setProperty("hibernate.show_sql", "false");
+    configuration.setProperty("hibernate.generate_statistics", "true");
+    configuration.setProperty("hibernate.cache.use_second_level_cache", String.valueOf(cached));
+    if (cached && configuration.getProperty("hibernate.cache.provider_class") == null) {
+      configuration.setProperty("hibernate.cache.provider_class", HashtableCacheProvider.class.getName());
+    }
+    BidCacheInvalidator.register(configuration);
+
+    SessionFactory sessionFactory = configuration.buildSessionFactory();
+    try {
+      List<?> itemIds = itemIds(sessionFactory, Math.min(pageLoads, 100));
+      if (itemIds.isEmpty()) {
+        throw new IllegalStateException("No items in the database, nothing to load");
+      }
+      Statistics statistics = sessionFactory.getStatistics();
+      statistics.clear();
+
+      long start = System.nanoTime();
+      for (int i = 0; i < pageLoads; i++) {
+        loadPage(sessionFactory, (Long) itemIds.get(i % itemIds.size()));
+      }
+      long micros = (System.nanoTime() - start) / 1000;
+
+      long statements = statistics.getPrepareStatementCount();
+      report.add(String.join(",", MODULE, mode, String.valueOf(pageLoads), String.valueOf(statements),
+          String.format("%.3f", (double) statements / pageLoads), String.valueOf(micros)));
+      System.out.println(String.format("%-10s %8d pages %10d statements %8.3f per page, %d ms", mode, pageLoads,
+          statements, (double) statements / pageLoads, micros / 1000));
+    } finally {
+      sessionFactory.close();
+    }
+  }
+
+  private static List<?> itemIds(SessionFactory sessionFactory, int max) {
+    Session session = sessionFactory.openSession();
+    try {
+      return session.createQuery("select i.id from AuctionItem i order by i.id").setMaxResults(max).list();
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * What the auction page does: the item and the amount of each of its bids
+   */
+  private static void loadPage(SessionFactory sessionFactory, Long itemId) {
+    Session session = sessionFactory.openSession();
+    try {
+      session.beginTransaction();
+      Item item = (Item) session.get(Item.class, itemId);
+      for (Bid bid : item.getBids()) {
+        bid.getBidAmount();
+      }
+      session.getTransaction().commit();
+    } finally {
+      session.close();
+    }
+  }
+
+  private void writeReport(File reportFile) throws IOException {
+    PrintWriter out = new PrintWriter(new FileWriter(reportFile));
+    try {
+      out.println("module,mode,page_loads,statements,statements_per_page,micros");
+      for (String line : report) {
+        out.println(line);
+      }
+    } finally {
+      out.close();
+    }
+    System.out.println("Bid cache report written to " + reportFile.getAbsolutePath());
+  }
+
+}
@@ -0,0 +1,176 @@
+package benchmark;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+
+import hibernate_config.CENamingStrategy;
+import model.Bid;
+import model.Item;
+import model.User;
+import persistence.BidIngestionPipeline;
+import persistence.MonetaryAmount;
+import persistence.SessionFactoryRegistry;
+
+/**
+ * Bids per second inserted by a number of concurrent bidders, with a
+ * transaction per bid (what the auction page does today) and through
+ * BidIngestionPipeline. The bids go to the first items and users found in the
+ * database, so run it against a database with some auctions. The connection
+ * pool is the one of the configuration, it's the resource both modes compete
+ * for.
+ *
+ * A round of each mode is run first and not counted, it loads the classes,
+ * fills the pool and the statement cache and lets the JIT compile both paths.
+ * Then the measured rounds alternate the modes, so neither of them always
+ * runs on the JVM the other one warmed up; the mean of each mode is printed
+ * at the end
+ *
+ * Usage: BidIngestionBenchmark [bids] [bidders] [batch size] [linger ms] [writers] [configuration resource] [rounds]
+ */
+public class BidIngestionBenchmark {
+
+  private static final MonetaryAmount AMOUNT = new MonetaryAmount(new BigDecimal("10.00"), Currency.getInstance("EUR"));
+
+  private static final String TRANSACTION_PER_BID = "transaction-per-bid";
+  private static final String PIPELINE = "pipeline";
+
+  private final SessionFactory sessionFactory;
+  private final ExecutorService bidderPool;
+  private final List<?> itemIds;
+  private final List<?> userIds;
+  private final int bids;
+  private final int batchSize;
+  private final long linger;
+  private final int writers;
+
+  private BidIngestionBenchmark(SessionFactory sessionFactory, ExecutorService bidderPool,
+      int bids, int batchSize, long linger, int writers) {
+    this.sessionFactory = sessionFactory;
+    this.bidderPool = bidderPool;
+    this.bids = bids;
+    this.batchSize = batchSize;
+    this.linger = linger;
+    this.writers = writers;
+    itemIds = ids(sessionFactory, "select i.id from AuctionItem i order by i.id");
+    userIds = ids(sessionFactory, "select u.id from User u order by u.id");
+    if (itemIds.isEmpty() || userIds.isEmpty()) {
+      throw new IllegalStateException("No items or users in the database, nowhere to bid");
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int bids = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int bidders = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+    long linger = args.length > 3 ? Long.parseLong(args[3]) : 5;
+    int writers = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+    String configResource = args.length > 5 ? args[5] : SessionFactoryRegistry.AUCTION_DATABASE;
+    int rounds = args.length > 6 ? Integer.parseInt(args[6]) : 3;
+
+    Configuration configuration = new Configuration();
+    configuration.setNamingStrategy(new CENamingStrategy());
+    configuration.configure(configResource);
+    configuration.setProperty("hibernate.show_sql", "false");
+    configuration.setProperty("hibernate.jdbc.batch_size", String.valueOf(batchSize));
+    configuration.setProperty("hibernate.order_inserts", "true");
+
+    SessionFactory sessionFactory = configuration.buildSessionFactory();
+    ExecutorService bidderPool = Executors.newFixedThreadPool(bidders);
+    try {
+      BidIngestionBenchmark benchmark = new BidIngestionBenchmark(sessionFactory, bidderPool, bids, batchSize, linger, writers);
+
+      benchmark.run(TRANSACTION_PER_BID);
+      benchmark.run(PIPELINE);
+
+      Map<String, Double> seconds = new LinkedHashMap<>();
+      seconds.put(TRANSACTION_PER_BID, 0.0);
+      seconds.put(PIPELINE, 0.0);
+      for (int round = 0; round < rounds; round++) {
+        // Alternate which mode goes first in the round
+        String[] order = round % 2 == 0
+            ? new String[] { TRANSACTION_PER_BID, PIPELINE }
+            : new String[] { PIPELINE, TRANSACTION_PER_BID };
+        for (String mode : order) {
+          double elapsed = benchmark.run(mode);
+          seconds.merge(mode, elapsed, Double::sum);
+          report(mode + " #" + (round + 1), bids, elapsed);
+        }
+      }
+      for (Map.Entry<String, Double> mode : seconds.entrySet()) {
+        report(mode.getKey() + " mean", bids, mode.getValue() / rounds);
+      }
+    } finally {
+      bidderPool.shutdownNow();
+      sessionFactory.close();
+    }
+  }
+
+  // Seconds taken to insert the bids in the given mode
+  private double run(String mode) throws Exception {
+    long start = System.nanoTime();
+    if (mode.equals(PIPELINE)) {
+      BidIngestionPipeline pipeline = new BidIngestionPipeline(sessionFactory, batchSize, linger, writers, bids);
+      try {
+        List<Future<CompletableFuture<Bid>>> submitted = new ArrayList<>(bids);
+        for (int i = 0; i < bids; i++) {
+          Long itemId = (Long) itemIds.get(i % itemIds.size());
+          Long bidderId = (Long) userIds.get(i % userIds.size());
+          submitted.add(bidderPool.submit(() -> pipeline.submit(itemId, bidderId, AMOUNT)));
+        }
+        for (Future<CompletableFuture<Bid>> bid : submitted) {
+          bid.get().get();
+        }
+      } finally {
+        pipeline.close();
+      }
+    } else {
+      List<Future<?>> placed = new ArrayList<>(bids);
+      for (int i = 0; i < bids; i++) {
+        Long itemId = (Long) itemIds.get(i % itemIds.size());
+        Long bidderId = (Long) userIds.get(i % userIds.size());
+        placed.add(bidderPool.submit(() -> placeBid(sessionFactory, itemId, bidderId)));
+      }
+      for (Future<?> bid : placed) {
+        bid.get();
+      }
+    }
+    return (System.nanoTime() - start) / 1e9;
+  }
+
+  private static void report(String mode, int bids, double seconds) {
+    System.out.println(String.format("%-24s %8d bids in %8.3f s, %10.0f bids/s", mode, bids, seconds, bids / seconds));
+  }
+
+  private static void placeBid(SessionFactory sessionFactory, Long itemId, Long bidderId) {
+    Session session = sessionFactory.openSession();
+    try {
+      session.beginTransaction();
+      session.save(new Bid(AMOUNT, (Item) session.load(Item.class, itemId), (User) session.load(User.class, bidderId)));
+      session.getTransaction().commit();
+    } finally {
+      session.close();
+    }
+  }
+
+  private static List<?> ids(SessionFactory sessionFactory, String query) {
+    Session session = sessionFactory.openSession();
+    try {
+      return session.createQuery(query).setMaxResults(100).list();
+    } finally {
+      session.close();
+    }
+  }
+
+}
@@ -0,0 +1,206 @@
+package benchmark;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+
+import hibernate_config.CENamingStrategy;
+import model.Bid;
+import model.Item;
+import model.User;
+import persistence.BidAdmissionController;
+import persistence.BidAdmissionController.BidRejectedException;
+import persistence.BidListAppender;
+import persistence.MonetaryAmount;
+import persistence.SessionFactoryRegistry;
+
+/**
+ * Time to append a bid to Item.bidsWithPosition of an item that already has
+ * 10000 bids: first the way the list used to be written, then with
+ * BidListAppender. The list is not an owning collection anymore, so the
+ * baseline replays the statements the old mapping executed for an append:
+ * the SELECT of the whole list, the INSERT of the bid without its place, and
+ * the UPDATE of ITEM_ID_INVERSE and BID_POSITION the collection persister
+ * issued at flush (here a bulk update, the properties are not updatable). At the end a number
+ * of bidders append to the same item at the same time, going through
+ * BidAdmissionController like the application does (the statistics of the item
+ * are printed after the run), and the positions are checked: they must go from 0 to the number of bids - 1 without holes or
+ * duplicates.
+ *
+ * The bids go to the first item and user found in the database, the item is
+ * first filled up to the given number of bids
+ *
+ * Usage: BidListAppendBenchmark [bids on the item] [appends] [bidders] [configuration resource]
+ */
+public class BidListAppendBenchmark {
+
+  private static final MonetaryAmount AMOUNT = new MonetaryAmount(new BigDecimal("10.00"), Currency.getInstance("EUR"));
+
+  public static void main(String[] args) throws Exception {
+    int existing = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int appends = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    int bidders = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+    String configResource = args.length > 3 ? args[3] : SessionFactoryRegistry.AUCTION_DATABASE;
+
+    Configuration configuration = new Configuration();
+    configuration.setNamingStrategy(new CENamingStrategy());
+    configuration.configure(configResource);
+    configuration.setProperty("hibernate.show_sql", "false");
+    configuration.setProperty("hibernate.jdbc.batch_size", "50");
+
+    SessionFactory sessionFactory = configuration.buildSessionFactory();
+    BidAdmissionController admission = BidAdmissionController.fromConfiguration(configuration);
+    ExecutorService bidderPool = Executors.newFixedThreadPool(bidders);
+    try {
+      Long itemId = firstId(sessionFactory, "select i.id from AuctionItem i order by i.id");
+      Long bidderId = firstId(sessionFactory, "select u.id from User u order by u.id");
+      fill(sessionFactory, itemId, bidderId, existing);
+
+      long start = System.nanoTime();
+      for (int i = 0; i < appends; i++) {
+        appendAfterLoading(sessionFactory, itemId, bidderId);
+      }
+      report("old owning list", appends, start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < appends; i++) {
+        append(sessionFactory, itemId, bidderId);
+      }
+      report("BidListAppender", appends, start);
+
+      start = System.nanoTime();
+      List<Future<?>> placed = new ArrayList<>(appends);
+      for (int i = 0; i < appends; i++) {
+        placed.add(bidderPool.submit(() -> {
+          place(sessionFactory, admission, itemId, bidderId);
+          return null;
+        }));
+      }
+      for (Future<?> bid : placed) {
+        bid.get();
+      }
+      report(bidders + " concurrent bidders", appends, start);
+      admission.logStatistics(1);
+
+      check(sessionFactory, itemId);
+    } finally {
+      bidderPool.shutdownNow();
+      admission.close();
+      sessionFactory.close();
+    }
+  }
+
+  private static void report(String mode, int appends, long start) {
+    double millis = (System.nanoTime() - start) / 1e6;
+    System.out.println(String.format("%-22s %6d appends in %9.1f ms, %8.3f ms per append", mode, appends, millis,
+        millis / appends));
+  }
+
+  // Bring the item to the given number of bids, in one transaction
+  private static void fill(SessionFactory sessionFactory, Long itemId, Long bidderId, int bids) {
+    Session session = sessionFactory.openSession();
+    try {
+      session.beginTransaction();
+      Item item = (Item) session.load(Item.class, itemId);
+      User bidder = (User) session.load(User.class, bidderId);
+      Integer last = (Integer) session
+          .createQuery("select max(b.position) from Bid b where b.itemInverse.id = :itemId")
+          .setParameter("itemId", itemId).uniqueResult();
+      for (int position = last == null ? 0 : last + 1; position < bids; position++) {
+        Bid bid = new Bid(AMOUNT, item, bidder);
+        bid.appendTo(item, position);
+        session.save(bid);
+        if (position % 50 == 0) {
+          session.flush();
+          session.clear();
+        }
+      }
+      session.getTransaction().commit();
+    } finally {
+      session.close();
+    }
+  }
+
+  private static void appendAfterLoading(SessionFactory sessionFactory, Long itemId, Long bidderId) {
+    Session session = sessionFactory.openSession();
+    try {
+      session.beginTransaction();
+      Item item = (Item) session.get(Item.class, itemId);
+      Hibernate.initialize(item.getBidsWithPosition());
+      Bid bid = new Bid(AMOUNT, item, (User) session.load(User.class, bidderId));
+      session.save(bid);
+      session.flush();
+      session.createQuery("update Bid b set b.itemInverse = :item, b.position = :position where b.id = :id")
+          .setParameter("item", item).setParameter("position", item.getBidsWithPosition().size())
+          .setParameter("id", bid.getId()).executeUpdate();
+      session.getTransaction().commit();
+    } finally {
+      session.close();
+    }
+  }
+
+  private static void append(SessionFactory sessionFactory, Long itemId, Long bidderId) {
+    Session session = sessionFactory.openSession();
+    try {
+      session.beginTransaction();
+      Bid bid = new Bid(AMOUNT, (Item) session.load(Item.class, itemId), (User) session.load(User.class, bidderId));
+      BidListAppender.append(session, itemId, bid);
+      session.getTransaction().commit();
+    } finally {
+      session.close();
+    }
+  }
+
+  // A rejected bid is placed again after the wait the controller suggests
+  private static void place(SessionFactory sessionFactory, BidAdmissionController admission, Long itemId,
+      Long bidderId) throws InterruptedException {
+    while (true) {
+      try {
+        BidListAppender.place(sessionFactory, null, admission, itemId, bidderId, AMOUNT);
+        return;
+      } catch (BidRejectedException e) {
+        Thread.sleep(e.getRetryAfterMillis());
+      }
+    }
+  }
+
+  private static void check(SessionFactory sessionFactory, Long itemId) {
+    Session session = sessionFactory.openSession();
+    try {
+      Object[] positions = (Object[]) session
+          .createQuery("select count(b), count(distinct b.position), min(b.position), max(b.position) "
+              + "from Bid b where b.itemInverse.id = :itemId")
+          .setParameter("itemId", itemId).uniqueResult();
+      long count = ((Number) positions[0]).longValue();
+      boolean ok = count == ((Number) positions[1]).longValue() && ((Number) positions[2]).intValue() == 0
+          && ((Number) positions[3]).longValue() == count - 1;
+      System.out.println(count + " bids, positions " + positions[2] + ".." + positions[3]
+          + (ok ? ", no holes or duplicates" : ", WRONG"));
+    } finally {
+      session.close();
+    }
+  }
+
+  private static Long firstId(SessionFactory sessionFactory, String query) {
+    Session session = sessionFactory.openSession();
+    try {
+      Long id = (Long) session.createQuery(query).setMaxResults(1).uniqueResult();
+      if (id == null) {
+        throw new IllegalStateException("Nothing found for " + query + ", nowhere to bid");
+      }
+      return id;
+    } finally {
+      session.close();
+    }
+  }
+
+}
@@ -0,0 +1,75 @@
+package benchmark;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.stat.Statistics;
+
+import hibernate_config.CENamingStrategy;
+import model.Category;
+import model.Item;
+import persistence.SessionFactoryRegistry;
+
+/**
+ * Walk the whole category tree, children and items of every node, a few times
+ * in a row, each time in a new session, and print the SQL statements of each
+ * walk. The first one fills the second-level cache, from the second one on the
+ * count should be 0. Run it against a database with a category tree, the root
+ * is the category with the given id
+ *
+ * Usage: CategoryTreeBenchmark [root category id] [walks] [configuration resource]
+ */
+public class CategoryTreeBenchmark {
+
+  public static void main(String[] args) {
+    Long rootId = args.length > 0 ? Long.valueOf(args[0]) : 1L;
+    int walks = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    String configResource = args.length > 2 ? args[2] : SessionFactoryRegistry.AUCTION_DATABASE;
+
+    Configuration configuration = new Configuration();
+    configuration.setNamingStrategy(new CENamingStrategy());
+    configuration.configure(configResource);
+    configuration.setProperty("hibernate.show_sql", "false");
+    configuration.setProperty("hibernate.generate_statistics", "true");
+
+    SessionFactory sessionFactory = configuration.buildSessionFactory();
+    try {
+      Statistics statistics = sessionFactory.getStatistics();
+      for (int walk = 1; walk <= walks; walk++) {
+        statistics.clear();
+        long start = System.nanoTime();
+
+        Session session = sessionFactory.openSession();
+        int nodes;
+        try {
+          session.beginTransaction();
+          nodes = visit((Category) session.get(Category.class, rootId));
+          session.getTransaction().commit();
+        } finally {
+          session.close();
+        }
+
+        System.out.println(String.format("walk %d: %d categories, %d statements, %d second-level cache hits, %d us",
+            walk, nodes, statistics.getPrepareStatementCount(), statistics.getSecondLevelCacheHitCount(),
+            (System.nanoTime() - start) / 1000));
+      }
+    } finally {
+      sessionFactory.close();
+    }
+  }
+
+  private static int visit(Category category) {
+    if (category == null) {
+      return 0;
+    }
+    for (Item item : category.getItems()) {
+      item.getName();
+    }
+    int nodes = 1;
+    for (Category child : category.getChildCategories()) {
+      nodes += visit(child);
+    }
+    return nodes;
+  }
+
+}
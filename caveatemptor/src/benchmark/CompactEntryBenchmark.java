@@ -0,0 +1,256 @@
+package benchmark;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Constructor;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.hibernate.cache.ReadWriteCache;
+import org.hibernate.cache.entry.CacheEntry;
+import org.hibernate.util.SerializationHelper;
+
+import hibernate_config.CompactEntryEncoder;
+import model.Rating;
+import persistence.MonetaryAmount;
+
+/**
+ * How much memory an entry of the Item and Comment regions takes as Hibernate
+ * puts it and packed by CompactEntryEncoder. Hibernate has two formats, both
+ * are measured from the same values: the default CacheEntry, a Serializable[]
+ * of disassembled values in property order, and structured entries, a Map from
+ * property name to value; for Item either of them is in the ReadWriteCache.Item
+ * wrapper. The saving to look at is against the default format, structured
+ * entries are bigger because of their keys and HashMap nodes.
+ *
+ * The entries are made up like the ones of the auction database: names of a
+ * few words, descriptions of a few hundred characters, prices in EUR and USD
+ * with 2 decimals, an auction of one to ten days, ids of sellers and
+ * categories. For each format the report tells the serialized size, the heap
+ * retained by all the entries of the region divided by their number, and
+ * checks that every entry is decoded equal to the original. The encoder knows
+ * the property names of both entities, like the one of a provider started by
+ * AuctionBootstrap (see CompactEntryCacheProvider.register()).
+ *
+ * The heap of the objects is measured, a first time on entries that are thrown
+ * away: until then the heap usage isn't steady, the first collections still
+ * size the generations. The heap of the encoded entries, plain byte arrays, is
+ * computed, a measure that small is mostly noise
+ *
+ * Usage: CompactEntryBenchmark [entries]
+ */
+public class CompactEntryBenchmark {
+
+  private static final String[] WORDS = { "vintage", "camera", "lens", "leather", "bag", "watch", "silver", "guitar",
+      "signed", "poster", "original", "box", "rare", "edition", "mint", "condition", "bicycle", "chair", "oak",
+      "lamp" };
+
+  // The properties of model.Item and model.Comment below
+  private static final List<String> PROPERTY_NAMES = Arrays.asList("name", "description", "image", "initialPrice",
+      "reservePrice", "startDate", "endDate", "lastModified", "totalIncludingTax", "seller", "buyer", "bids",
+      "categories", "imageSet", "categorizedItems", "rating", "text", "created", "auction", "fromUser");
+
+  private final Random random = new Random(7);
+
+  public static void main(String[] args) {
+    int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    System.out.println(String.format("%d entries per region", entries));
+
+    // Every format gets the same values, from the same seed. The entries of a
+    // format are garbage before the next one is measured, none dies in the
+    // middle of a measure
+    measure(new CompactEntryBenchmark().items(entries, false));
+    report("model.Item", new CompactEntryBenchmark().items(entries, false));
+    report("model.Item (structured)", new CompactEntryBenchmark().items(entries, true));
+    report("model.Comment", new CompactEntryBenchmark().comments(entries, false));
+    report("model.Comment (structured)", new CompactEntryBenchmark().comments(entries, true));
+  }
+
+  private Object[] items(int count, boolean structured) {
+    Object[] entries = new Object[count];
+    long timestamp = System.currentTimeMillis() << 12;
+    for (int i = 0; i < count; i++) {
+      Map<String, Object> item = item(i);
+      entries[i] = new ReadWriteCache.Item(
+          structured ? structured("model.Item", item) : cacheEntry("model.Item", item), null, timestamp);
+    }
+    return entries;
+  }
+
+  private Object[] comments(int count, boolean structured) {
+    Object[] entries = new Object[count];
+    for (int i = 0; i < count; i++) {
+      Map<String, Object> comment = comment(i);
+      entries[i] = structured ? structured("model.Comment", comment) : cacheEntry("model.Comment", comment);
+    }
+    return entries;
+  }
+
+  // The default format, the values in property order
+  private static CacheEntry cacheEntry(String subclass, Map<String, Object> properties) {
+    try {
+      Constructor<CacheEntry> constructor = CacheEntry.class.getDeclaredConstructor(Serializable[].class,
+          String.class, boolean.class, Object.class);
+      constructor.setAccessible(true);
+      return constructor.newInstance(properties.values().toArray(new Serializable[0]), subclass, false, null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Cannot create a CacheEntry", e);
+    }
+  }
+
+  // hibernate.cache.use_structured_entries, the keys StructuredCacheEntry uses
+  private static Map<String, Object> structured(String subclass, Map<String, Object> properties) {
+    Map<String, Object> state = new HashMap<>(properties);
+    state.put("_subclass", subclass);
+    state.put("_lazyPropertiesUnfetched", Boolean.FALSE);
+    return state;
+  }
+
+  private static void report(String region, Object[] entries) {
+    long[] sizes = measure(entries);
+    long serializedBytes = sizes[0];
+    long encodedBytes = sizes[1];
+    long objectHeap = sizes[2];
+    long encodedHeap = sizes[3];
+    System.out.println(String.format(
+        "%-26s serialized %4d bytes, encoded %4d bytes | heap: objects %4d bytes, encoded %4d bytes, saved %4d bytes per entry (%.0f%%)",
+        region, serializedBytes / entries.length, encodedBytes / entries.length, objectHeap / entries.length,
+        encodedHeap / entries.length, (objectHeap - encodedHeap) / entries.length,
+        100.0 * (objectHeap - encodedHeap) / objectHeap));
+  }
+
+  // Serialized and encoded bytes, heap of the objects and of the encoded arrays
+  private static long[] measure(Object[] entries) {
+    CompactEntryEncoder encoder = new CompactEntryEncoder();
+    encoder.registerPropertyNames(PROPERTY_NAMES);
+
+    long serializedBytes = 0;
+    long encodedBytes = 0;
+    byte[][] encoded = new byte[entries.length][];
+    for (int i = 0; i < entries.length; i++) {
+      serializedBytes += SerializationHelper.serialize((Serializable) entries[i]).length;
+      encoded[i] = encoder.encode(entries[i]);
+      encodedBytes += encoded[i].length;
+      if (!state(encoder.decode(encoded[i])).equals(state(entries[i]))) {
+        throw new IllegalStateException("Entry " + i + " was not decoded equal");
+      }
+    }
+
+    // Both formats must stay alive while the other one is measured, or the
+    // garbage collector would take them back in the middle of the measure
+    measured = new Object[] { entries, encoded };
+    long objectHeap = retained(entries);
+    long encodedHeap = encodedHeap(encoded);
+    measured = null;
+    return new long[] { serializedBytes, encodedBytes, objectHeap, encodedHeap };
+  }
+
+  private static Object state(Object entry) {
+    Object state = entry instanceof ReadWriteCache.Item ? ((ReadWriteCache.Item) entry).getValue() : entry;
+    if (state instanceof CacheEntry) {
+      // CacheEntry has no equals()
+      CacheEntry cacheEntry = (CacheEntry) state;
+      return Arrays.asList(cacheEntry.getSubclass(), Arrays.asList(cacheEntry.getDisassembledState()));
+    }
+    return state;
+  }
+
+  /**
+   * Heap used with a copy of the entries minus heap used without it. The
+   * original array is kept alive by the caller, so only what is reachable from
+   * the copy is counted: the objects are deep copied by serialization
+   */
+  private static long retained(Object[] entries) {
+    long before = usedHeap();
+    Object[] copy = new Object[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      copy[i] = SerializationHelper.clone((Serializable) entries[i]);
+    }
+    // In a static field, so it's surely alive when the heap is measured
+    retainedCopy = copy;
+    long after = usedHeap();
+    retainedCopy = null;
+    return after - before;
+  }
+
+  /**
+   * A byte[] is a header of 16 bytes (mark word, compressed class pointer and
+   * length on a 64-bit JVM) plus its bytes, rounded up to 8, and a reference of
+   * 4 bytes in the array holding it, like the copy of retained()
+   */
+  private static long encodedHeap(byte[][] encoded) {
+    long heap = (16 + 4L * encoded.length + 7) & ~7L;
+    for (byte[] entry : encoded) {
+      heap += (16 + entry.length + 7) & ~7L;
+    }
+    return heap;
+  }
+
+  private static Object[] retainedCopy;
+  private static Object[] measured;
+
+  private static long usedHeap() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 3; i++) {
+      memory.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  private Map<String, Object> item(long id) {
+    Map<String, Object> state = new LinkedHashMap<>();
+    state.put("name", words(2 + random.nextInt(4)));
+    state.put("description", words(30 + random.nextInt(40)));
+    state.put("image", null);
+    state.put("initialPrice", amount());
+    state.put("reservePrice", random.nextBoolean() ? amount() : null);
+    long start = System.currentTimeMillis() - random.nextInt(10 * 24 * 3600) * 1000L;
+    state.put("startDate", new Timestamp(start));
+    state.put("endDate", new Timestamp(start + (1 + random.nextInt(10)) * 24 * 3600 * 1000L));
+    state.put("lastModified", new Timestamp(start + random.nextInt(3600000)));
+    state.put("totalIncludingTax", null);
+    state.put("seller", Long.valueOf(1 + random.nextInt(50000)));
+    state.put("buyer", null);
+    // Collections are disassembled to the key of their owner
+    for (String collection : new String[] { "bids", "categories", "imageSet", "categorizedItems" }) {
+      state.put(collection, Long.valueOf(id));
+    }
+    return state;
+  }
+
+  private Map<String, Object> comment(long id) {
+    Map<String, Object> state = new LinkedHashMap<>();
+    state.put("rating", Rating.values()[random.nextInt(Rating.values().length)]);
+    state.put("text", words(5 + random.nextInt(20)));
+    state.put("created", new Date(System.currentTimeMillis() - random.nextInt(1000000000)));
+    state.put("auction", Long.valueOf(1 + random.nextInt(100000)));
+    state.put("fromUser", Long.valueOf(1 + random.nextInt(50000)));
+    return state;
+  }
+
+  private MonetaryAmount amount() {
+    BigDecimal amount = BigDecimal.valueOf(100 + random.nextInt(100000), 2);
+    return new MonetaryAmount(amount, Currency.getInstance(random.nextInt(4) == 0 ? "USD" : "EUR"));
+  }
+
+  private String words(int count) {
+    StringBuilder words = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        words.append(' ');
+      }
+      words.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return words.toString();
+  }
+
+}
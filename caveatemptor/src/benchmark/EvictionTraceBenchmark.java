@@ -0,0 +1,87 @@
+package benchmark;
+
+import java.util.Random;
+
+import hibernate_config.BoundedCacheProvider;
+import hibernate_config.EvictionPolicy;
+
+/**
+ * Replay the access trace of the ITEM region against LRU and TinyLFU regions
+ * of the same size and print the hit ratio of each. No database is needed, a
+ * miss is "loaded" with a put like Hibernate does.
+ *
+ * The trace: the auction pages read a hot set of items, a few of them much
+ * more than the others (zipf like), and every scan_interval reads the nightly
+ * report walks scan_length items that are read only that once
+ *
+ * Usage: EvictionTraceBenchmark [region entries] [hot items] [scan length] [scan interval] [reads]
+ */
+public class EvictionTraceBenchmark {
+
+  public static void main(String[] args) {
+    int maxEntries = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int hotItems = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    int scanLength = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+    int scanInterval = args.length > 3 ? Integer.parseInt(args[3]) : 50000;
+    int reads = args.length > 4 ? Integer.parseInt(args[4]) : 1000000;
+
+    long[] trace = trace(hotItems, scanLength, scanInterval, reads);
+    System.out.println(String.format("%d entries, %d hot items, scans of %d items every %d reads, %d accesses",
+        maxEntries, hotItems, scanLength, scanInterval, trace.length));
+
+    for (String eviction : new String[] { BoundedCacheProvider.LRU, BoundedCacheProvider.TINY_LFU }) {
+      replay(eviction, BoundedCacheProvider.createPolicy(eviction, maxEntries), trace);
+    }
+  }
+
+  /**
+   * Hot item ids are 0..hotItems-1, scanned item ids are negative and never
+   * repeat
+   */
+  private static long[] trace(int hotItems, int scanLength, int scanInterval, int reads) {
+    int scans = reads / scanInterval;
+    long[] trace = new long[reads + scans * scanLength];
+    Random random = new Random(42);
+    double skew = Math.log(hotItems + 1);
+
+    long scanned = 0;
+    int position = 0;
+    for (int read = 1; read <= reads; read++) {
+      // exp(u * log(n + 1)) - 1 is in [0, n), the small ids much more often
+      trace[position++] = (long) (Math.exp(random.nextDouble() * skew) - 1);
+      if (read % scanInterval == 0) {
+        for (int i = 0; i < scanLength; i++) {
+          trace[position++] = -(++scanned);
+        }
+      }
+    }
+    return trace;
+  }
+
+  private static void replay(String eviction, EvictionPolicy policy, long[] trace) {
+    long hits = 0;
+    long hotHits = 0;
+    long hotAccesses = 0;
+    long start = System.nanoTime();
+    for (long id : trace) {
+      Long key = id;
+      boolean hit = policy.get(key) != null;
+      if (hit) {
+        hits++;
+      } else {
+        policy.put(key, key);
+      }
+      if (id >= 0) {
+        hotAccesses++;
+        if (hit) {
+          hotHits++;
+        }
+      }
+    }
+    long micros = (System.nanoTime() - start) / 1000;
+
+    System.out.println(String.format("%-8s hit ratio %5.1f%%, hot set hit ratio %5.1f%%, %d evictions, %d us",
+        eviction, 100.0 * hits / trace.length, 100.0 * hotHits / hotAccesses, policy.getEvictionCount(), micros));
+  }
+
+}
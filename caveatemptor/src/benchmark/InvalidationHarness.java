@@ -0,0 +1,246 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.ReadWriteCache;
+import org.hibernate.cache.access.SoftLock;
+import org.hibernate.util.ComparableComparator;
+
+import hibernate_config.LoopbackCommunicator;
+import hibernate_config.LoopbackSwarmCacheProvider;
+import persistence.MonetaryAmount;
+
+/**
+ * Start two JVMs on this machine with a LoopbackSwarmCacheProvider each and
+ * measure the invalidation of the Item region. Both JVMs go through the
+ * ReadWriteCache strategy, like Hibernate does for the READ_WRITE Item. For
+ * every write:
+ *
+ * 1. the peer JVM loads the item in its cache (a put, no message)
+ *
+ * 2. this JVM changes the price of the item: lock() before the UPDATE and
+ * afterUpdate() after the commit, each of them replaces the entry and tells
+ * the peer to drop its copy, so at least 2 notifications per write
+ *
+ * 3. the peer reports when the item has been removed from its cache
+ *
+ * The latency is the time between the lock and the removal on the peer. Both
+ * are read with System.nanoTime(), which on Linux is the same monotonic clock
+ * for all the processes of the machine. The messages are counted by the
+ * communicator of this JVM.
+ *
+ * The notifications are UDP datagrams with no acknowledgement (see
+ * LoopbackCommunicator): a write whose invalidation doesn't reach the peer
+ * within the timeout is counted as lost and left out of the latencies, and the
+ * peer answering nothing at all stops the harness.
+ *
+ * Usage: InvalidationHarness [writes] [report file] [timeout ms]
+ */
+public class InvalidationHarness {
+
+  private static final String REGION = "model.Item";
+  private static final String PEER = "peer";
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && PEER.equals(args[0])) {
+      peer();
+      return;
+    }
+    int writes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    File reportFile = new File(args.length > 1 ? args[1] : "bench-invalidation.csv");
+    long timeoutMillis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+    writer(writes, reportFile, timeoutMillis);
+  }
+
+  private static Properties properties() {
+    Properties properties = new Properties();
+    properties.setProperty(LoopbackSwarmCacheProvider.BASE_PORT_PROPERTY,
+        System.getProperty(LoopbackSwarmCacheProvider.BASE_PORT_PROPERTY, "45588"));
+    properties.setProperty(LoopbackSwarmCacheProvider.MAX_NODES_PROPERTY,
+        System.getProperty(LoopbackSwarmCacheProvider.MAX_NODES_PROPERTY, "2"));
+    return properties;
+  }
+
+  // The read-write strategy of the region, as Hibernate builds it
+  private static ReadWriteCache strategy(Cache region) {
+    ReadWriteCache strategy = new ReadWriteCache();
+    strategy.setCache(region);
+    return strategy;
+  }
+
+  // The disassembled state of an item, name and initial price
+  private static Serializable[] itemState(long id, int price) {
+    return new Serializable[] { "Item " + id, new MonetaryAmount(new BigDecimal(price), Currency.getInstance("EUR")) };
+  }
+
+  private static void writer(int writes, File reportFile, long timeoutMillis) throws Exception {
+    Properties properties = properties();
+    LoopbackSwarmCacheProvider provider = new LoopbackSwarmCacheProvider();
+    provider.start(properties);
+    ReadWriteCache items = strategy(provider.buildCache(REGION, properties));
+    LoopbackCommunicator communicator = provider.getCommunicator();
+
+    Process peer = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+        "-cp", System.getProperty("java.class.path"),
+        "-D" + LoopbackSwarmCacheProvider.BASE_PORT_PROPERTY + "=" + properties.getProperty(LoopbackSwarmCacheProvider.BASE_PORT_PROPERTY),
+        "-D" + LoopbackSwarmCacheProvider.MAX_NODES_PROPERTY + "=" + properties.getProperty(LoopbackSwarmCacheProvider.MAX_NODES_PROPERTY),
+        InvalidationHarness.class.getName(), PEER)
+        .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    PrintWriter toPeer = new PrintWriter(peer.getOutputStream(), true);
+    BlockingQueue<String> fromPeer = lines(peer);
+
+    long[] latencies = new long[writes];
+    int measured = 0;
+    int lost = 0;
+    PrintWriter report = new PrintWriter(new FileWriter(reportFile));
+    try {
+      expect(fromPeer, "READY", TimeUnit.SECONDS.toMillis(30));
+      report.println("write,latency_micros");
+      long sentBefore = communicator.getNotificationsSent();
+      long datagramsBefore = communicator.getDatagramsSent();
+
+      for (int i = 0; i < writes; i++) {
+        Long id = Long.valueOf(i);
+        toPeer.println("LOAD " + id);
+        expect(fromPeer, "LOADED " + id, timeoutMillis);
+
+        long start = System.nanoTime();
+        SoftLock lock = items.lock(id, 1);
+        // Here the UPDATE and the commit of the transaction
+        items.afterUpdate(id, itemState(id, 200), 2, lock);
+
+        String invalidated = poll(fromPeer, "INVALIDATED " + id + " ", timeoutMillis);
+        if (invalidated == null) {
+          lost++;
+          report.println(i + ",");
+          continue;
+        }
+        latencies[measured] = (Long.parseLong(invalidated.split(" ")[2]) - start) / 1000;
+        report.println(i + "," + latencies[measured]);
+        measured++;
+      }
+
+      long notifications = communicator.getNotificationsSent() - sentBefore;
+      long datagrams = communicator.getDatagramsSent() - datagramsBefore;
+      if (measured > 0) {
+        Arrays.sort(latencies, 0, measured);
+        System.out.println(String.format("%d writes: latency p50 %d us, p99 %d us, max %d us", measured,
+            latencies[measured / 2], latencies[(int) (measured * 0.99)], latencies[measured - 1]));
+      }
+      System.out.println(String.format("%.2f notifications and %.2f datagrams per write, %d invalidations lost",
+          (double) notifications / writes, (double) datagrams / writes, lost));
+    } finally {
+      report.close();
+      toPeer.println("QUIT");
+      if (!peer.waitFor(10, TimeUnit.SECONDS)) {
+        peer.destroyForcibly();
+      }
+      provider.stop();
+    }
+    System.out.println("Invalidation report written to " + reportFile.getAbsolutePath());
+  }
+
+  // The lines written by the peer, read by a thread of their own so that a
+  // wait for an answer can time out
+  private static BlockingQueue<String> lines(Process peer) {
+    BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(peer.getInputStream()));
+    Thread reader = new Thread(() -> {
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          lines.add(line);
+        }
+      } catch (IOException e) {
+        // The peer is gone
+      }
+    }, "peer-output");
+    reader.setDaemon(true);
+    reader.start();
+    return lines;
+  }
+
+  // The first line starting with the prefix, null if none comes in time
+  private static String poll(BlockingQueue<String> lines, String prefix, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    long remaining;
+    while ((remaining = deadline - System.nanoTime()) > 0) {
+      String line = lines.poll(remaining, TimeUnit.NANOSECONDS);
+      if (line != null && line.startsWith(prefix)) {
+        return line;
+      }
+    }
+    return null;
+  }
+
+  private static String expect(BlockingQueue<String> lines, String prefix, long timeoutMillis)
+      throws IOException, InterruptedException {
+    String line = poll(lines, prefix, timeoutMillis);
+    if (line == null) {
+      throw new IOException("The peer JVM didn't answer " + prefix + " in " + timeoutMillis + " ms");
+    }
+    return line;
+  }
+
+  /**
+   * The other JVM, it reads the commands from standard input and writes the
+   * answers on standard output
+   */
+  private static void peer() throws IOException {
+    Properties properties = properties();
+    LoopbackSwarmCacheProvider provider = new LoopbackSwarmCacheProvider();
+    provider.start(properties);
+    final Cache region = provider.buildCache(REGION, properties);
+    final ReadWriteCache items = strategy(region);
+    final PrintWriter out = new PrintWriter(System.out, true);
+    // Loaded and not invalidated yet, every write is reported once even if
+    // both of its notifications arrive
+    final Set<Object> loaded = ConcurrentHashMap.newKeySet();
+
+    provider.getCommunicator().addListener(notification -> {
+      long now = System.nanoTime();
+      Object key = notification.getKey();
+      if (region.get(key) == null && loaded.remove(key)) {
+        synchronized (out) {
+          out.println("INVALIDATED " + key + " " + now);
+        }
+      }
+    });
+
+    synchronized (out) {
+      out.println("READY");
+    }
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+    String line;
+    while ((line = in.readLine()) != null && !line.equals("QUIT")) {
+      if (line.startsWith("LOAD ")) {
+        Long id = Long.valueOf(line.substring(5));
+        items.put(id, itemState(id, 100), items.getCache().nextTimestamp(), 1, ComparableComparator.INSTANCE,
+            false);
+        loaded.add(id);
+        synchronized (out) {
+          out.println("LOADED " + id);
+        }
+      }
+    }
+    provider.stop();
+  }
+
+}
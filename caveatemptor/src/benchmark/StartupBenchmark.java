@@ -0,0 +1,150 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.cfg.Configuration;
+
+import hibernate_config.CENamingStrategy;
+import persistence.ConfigurationSnapshot;
+import persistence.SessionFactoryRegistry;
+
+/**
+ * Time to bind the caveatemptor mappings with CENamingStrategy, the part of
+ * the startup that ConfigurationSnapshot saves. No database is needed, each
+ * run measures:
+ *
+ * parse -- read the configuration file and the mappings it lists
+ *
+ * binding -- bind the annotations and the mappings with CENamingStrategy
+ *
+ * snapshot-write -- the same with no snapshot, so parsed, bound and written
+ *
+ * snapshot-read -- the bound metadata read back from the snapshot
+ *
+ * The snapshots go to a temporary hibernate.snapshot.dir, removed at the end.
+ * All the runs are in this JVM: the first one also loads Hibernate and the
+ * XML parser, the next ones are what a JVM already warmed up pays. A start in
+ * a new JVM is measured by the StartupBenchmark of helloworld, which forks one
+ * per start, and the cold start of helloworldjpa, which forks one per run.
+ * Each phase of each run is a line of a CSV report with their columns, the
+ * mode always in-jvm like the second start of a helloworldjpa run: no run here
+ * is a start of a new JVM
+ *
+ * Usage: StartupBenchmark [runs] [report file] [configuration resource]
+ */
+public class StartupBenchmark {
+
+  private static final String MODULE = "caveatemptor";
+  private static final String MODE = "in-jvm";
+
+  private final String configResource;
+  private final File snapshotDir;
+  private final List<String[]> report = new ArrayList<>();
+
+  public StartupBenchmark(String configResource, File snapshotDir) {
+    this.configResource = configResource;
+    this.snapshotDir = snapshotDir;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    File reportFile = new File(args.length > 1 ? args[1] : "bench-startup.csv");
+    String configResource = args.length > 2 ? args[2] : SessionFactoryRegistry.AUCTION_DATABASE;
+
+    File workDir = Files.createTempDirectory("startup-benchmark").toFile();
+    File snapshotDir = new File(workDir, "snapshots");
+    System.setProperty(ConfigurationSnapshot.SNAPSHOT_DIR_PROPERTY, snapshotDir.getPath());
+
+    StartupBenchmark benchmark = new StartupBenchmark(configResource, snapshotDir);
+    try {
+      for (int run = 1; run <= runs; run++) {
+        benchmark.run(run);
+      }
+    } finally {
+      benchmark.deleteSnapshots();
+      snapshotDir.delete();
+      workDir.delete();
+    }
+    benchmark.writeReport(reportFile);
+    benchmark.printSummary();
+  }
+
+  private void run(int run) {
+    Map<String, Long> phases = new LinkedHashMap<>();
+
+    long start = System.nanoTime();
+    Configuration configuration = new Configuration();
+    configuration.setNamingStrategy(new CENamingStrategy());
+    configuration.configure(configResource);
+    phases.put("parse", lap(start));
+
+    start = System.nanoTime();
+    configuration.buildMappings();
+    phases.put("binding", lap(start));
+
+    deleteSnapshots();
+    start = System.nanoTime();
+    ConfigurationSnapshot.load(configResource, new CENamingStrategy());
+    phases.put("snapshot-write", lap(start));
+
+    start = System.nanoTime();
+    ConfigurationSnapshot.load(configResource, new CENamingStrategy());
+    phases.put("snapshot-read", lap(start));
+
+    for (Map.Entry<String, Long> phase : phases.entrySet()) {
+      record(run, phase.getKey(), phase.getValue());
+    }
+  }
+
+  private void deleteSnapshots() {
+    File[] snapshots = snapshotDir.listFiles();
+    if (snapshots != null) {
+      for (File snapshot : snapshots) {
+        snapshot.delete();
+      }
+    }
+  }
+
+  private static long lap(long start) {
+    return (System.nanoTime() - start) / 1000;
+  }
+
+  private void record(int run, String phase, long micros) {
+    report.add(new String[] { MODULE, String.valueOf(run), MODE, phase, String.valueOf(micros) });
+  }
+
+  private void writeReport(File reportFile) throws IOException {
+    PrintWriter out = new PrintWriter(new FileWriter(reportFile));
+    try {
+      out.println("module,run,mode,phase,micros");
+      for (String[] line : report) {
+        out.println(String.join(",", line));
+      }
+    } finally {
+      out.close();
+    }
+    System.out.println("Startup report written to " + reportFile.getAbsolutePath());
+  }
+
+  // The first run is apart, it's the one that loads the classes
+  private void printSummary() {
+    Map<String, long[]> sums = new LinkedHashMap<>();
+    for (String[] line : report) {
+      long[] sum = sums.computeIfAbsent((line[1].equals("1") ? "first " : "next ") + line[3], k -> new long[2]);
+      sum[0] += Long.parseLong(line[4]);
+      sum[1]++;
+    }
+    for (Map.Entry<String, long[]> sum : sums.entrySet()) {
+      System.out.println(String.format("%-24s %10.2f ms", sum.getKey(), sum.getValue()[0] / 1000.0 / sum.getValue()[1]));
+    }
+  }
+
+}
@@ -0,0 +1,139 @@
+package hibernate_config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.Timestamper;
+
+/**
+ * A region on the heap with a maximum number of entries, what to evict is
+ * decided by an EvictionPolicy. If the region has a time to live every entry
+ * older than that is thrown away when it's read, so it's a miss and Hibernate
+ * loads it again from the database
+ */
+public class BoundedCache implements Cache, EvictionCounting {
+
+  private final String regionName;
+  private final EvictionPolicy policy;
+  private final long ttlMillis;
+  private long expirations;
+
+  public BoundedCache(String regionName, EvictionPolicy policy, long ttlMillis) {
+    this.regionName = regionName;
+    this.policy = policy;
+    this.ttlMillis = ttlMillis;
+  }
+
+  private static final class Expiring {
+
+    final Object value;
+    final long expiresAt;
+
+    Expiring(Object value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+  }
+
+  public Object read(Object key) throws CacheException {
+    return get(key);
+  }
+
+  public synchronized Object get(Object key) throws CacheException {
+    Object value = policy.get(key);
+    if (value instanceof Expiring) {
+      Expiring expiring = (Expiring) value;
+      if (expiring.expiresAt < System.currentTimeMillis()) {
+        policy.remove(key);
+        expirations++;
+        return null;
+      }
+      return expiring.value;
+    }
+    return value;
+  }
+
+  public synchronized void put(Object key, Object value) throws CacheException {
+    policy.put(key, ttlMillis > 0 ? new Expiring(value, System.currentTimeMillis() + ttlMillis) : value);
+  }
+
+  public void update(Object key, Object value) throws CacheException {
+    put(key, value);
+  }
+
+  public synchronized void remove(Object key) throws CacheException {
+    policy.remove(key);
+  }
+
+  public synchronized void clear() throws CacheException {
+    policy.clear();
+  }
+
+  public void destroy() throws CacheException {
+    clear();
+  }
+
+  public void lock(Object key) throws CacheException {
+  }
+
+  public void unlock(Object key) throws CacheException {
+  }
+
+  public long nextTimestamp() {
+    return Timestamper.next();
+  }
+
+  public int getTimeout() {
+    return Timestamper.ONE_MS * 60000;
+  }
+
+  public String getRegionName() {
+    return regionName;
+  }
+
+  public long getSizeInMemory() {
+    return -1;
+  }
+
+  public synchronized long getElementCountInMemory() {
+    return policy.size();
+  }
+
+  public long getElementCountOnDisk() {
+    return 0;
+  }
+
+  /**
+   * Entries evicted by the policy plus entries expired
+   */
+  public synchronized long getEvictionCount() {
+    return policy.getEvictionCount() + expirations;
+  }
+
+  public EvictionPolicy getPolicy() {
+    return policy;
+  }
+
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  @SuppressWarnings("rawtypes")
+  public synchronized Map toMap() {
+    Map<Object, Object> map = new HashMap<>();
+    for (Map.Entry<Object, Object> entry : policy.toMap().entrySet()) {
+      Object value = entry.getValue();
+      map.put(entry.getKey(), value instanceof Expiring ? ((Expiring) value).value : value);
+    }
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    return "BoundedCache(" + regionName + ", " + policy.getClass().getSimpleName() + ")";
+  }
+
+}
@@ -0,0 +1,91 @@
+package hibernate_config;
+
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.CacheProvider;
+import org.hibernate.cache.Timestamper;
+
+/**
+ * A second-level cache on the heap where every region can choose how it
+ * evicts and how long its entries live.
+ *
+ * <property name="hibernate.cache.provider_class">hibernate_config.BoundedCacheProvider</property>
+ *
+ * The defaults for all the regions:
+ *
+ * <property name="hibernate.cache.bounded.max_entries">10000</property>
+ *
+ * <property name="hibernate.cache.bounded.eviction">tinylfu</property>
+ *
+ * <property name="hibernate.cache.bounded.ttl">0</property>
+ *
+ * eviction is lru or tinylfu (see TinyLfuPolicy, it doesn't let a scan of ITEM
+ * for the nightly reports push the hot items out), ttl is in seconds and 0
+ * means entries live until they are evicted. A single region can change them,
+ * for example items of live auctions change often and categories almost never:
+ *
+ * <property name="hibernate.cache.bounded.model.Item.ttl">30</property>
+ *
+ * <property name="hibernate.cache.bounded.model.Category.ttl">86400</property>
+ */
+public class BoundedCacheProvider implements CacheProvider {
+
+  private static final Logger log = Logger.getLogger(BoundedCacheProvider.class);
+
+  private static final String PROPERTY_PREFIX = "hibernate.cache.bounded.";
+  private static final String MAX_ENTRIES = "max_entries";
+  private static final String EVICTION = "eviction";
+  private static final String TTL = "ttl";
+
+  public static final String LRU = "lru";
+  public static final String TINY_LFU = "tinylfu";
+
+  private int defaultMaxEntries;
+  private String defaultEviction;
+  private long defaultTtl;
+
+  public void start(Properties properties) throws CacheException {
+    defaultMaxEntries = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + MAX_ENTRIES, "10000"));
+    defaultEviction = properties.getProperty(PROPERTY_PREFIX + EVICTION, TINY_LFU);
+    defaultTtl = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + TTL, "0"));
+  }
+
+  public Cache buildCache(String regionName, Properties properties) throws CacheException {
+    String prefix = PROPERTY_PREFIX + regionName + ".";
+    String maxEntries = properties.getProperty(prefix + MAX_ENTRIES);
+    String ttl = properties.getProperty(prefix + TTL);
+    String eviction = properties.getProperty(prefix + EVICTION, defaultEviction);
+
+    int entries = maxEntries == null ? defaultMaxEntries : Integer.parseInt(maxEntries);
+    long seconds = ttl == null ? defaultTtl : Long.parseLong(ttl);
+
+    log.info("Region " + regionName + ": " + entries + " entries, " + eviction
+        + (seconds > 0 ? ", " + seconds + "s ttl" : ""));
+    return new BoundedCache(regionName, createPolicy(eviction, entries), seconds * 1000);
+  }
+
+  public static EvictionPolicy createPolicy(String eviction, int maxEntries) {
+    if (LRU.equalsIgnoreCase(eviction)) {
+      return new LruPolicy(maxEntries);
+    }
+    if (TINY_LFU.equalsIgnoreCase(eviction)) {
+      return new TinyLfuPolicy(maxEntries);
+    }
+    throw new CacheException("Unknown eviction " + eviction + ", must be " + LRU + " or " + TINY_LFU);
+  }
+
+  public long nextTimestamp() {
+    return Timestamper.next();
+  }
+
+  public void stop() {
+  }
+
+  public boolean isMinimalPutsEnabledByDefault() {
+    return false;
+  }
+
+}
@@ -0,0 +1,304 @@
+package hibernate_config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.ReadWriteCache;
+import org.hibernate.cache.entry.CacheEntry;
+import org.hibernate.util.SerializationHelper;
+
+/**
+ * A file with the content of some cache regions, written when the
+ * SessionFactory is closed and read back, mapped in memory, when it's built
+ * again (see SnapshotCacheProvider). The layout is:
+ *
+ * MAGIC, number of regions, then for each region
+ *
+ * name, stamp, time it was written, number of entries, then for each entry
+ *
+ * key, entity version, value
+ *
+ * where strings are a length and UTF-8 bytes and objects a length and their
+ * Java serialization. The stamp of a region says which mappings the entries
+ * were made with, if it's not the stamp of the new SessionFactory the region is
+ * ignored. The version of each entry is written apart from the value so that
+ * CacheSnapshotValidator can compare it with the database without
+ * deserializing the values, those are deserialized only when the entry is
+ * asked for
+ */
+public class CacheSnapshot {
+
+  private static final Logger log = Logger.getLogger(CacheSnapshot.class);
+
+  private static final int MAGIC = 0x5ca7c4e1;
+
+  private final Map<String, RegionSnapshot> regions;
+
+  private CacheSnapshot(Map<String, RegionSnapshot> regions) {
+    this.regions = regions;
+  }
+
+  /**
+   * The region if it's in the snapshot and was written with the same stamp,
+   * null otherwise
+   */
+  public RegionSnapshot getRegion(String regionName, String stamp) {
+    RegionSnapshot region = regions.get(regionName);
+    if (region != null && !region.stamp.equals(stamp)) {
+      log.info("Snapshot of region " + regionName + " is stale (stamp " + region.stamp + "), ignored");
+      return null;
+    }
+    return region;
+  }
+
+  /**
+   * Map the file and read the header of every region, the entries are read
+   * only when a region is used. Returns null if there is no snapshot or it's
+   * not readable, the cache then simply starts cold
+   */
+  public static CacheSnapshot open(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      // The mapping stays valid after the channel is closed
+      ByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+      if (buffer.getInt() != MAGIC) {
+        log.warn(file + " is not a cache snapshot, ignored");
+        return null;
+      }
+
+      Map<String, RegionSnapshot> regions = new HashMap<>();
+      int count = buffer.getInt();
+      for (int i = 0; i < count; i++) {
+        String name = readString(buffer);
+        String stamp = readString(buffer);
+        long written = buffer.getLong();
+        int entries = buffer.getInt();
+        int start = buffer.position();
+        int length = buffer.getInt();
+        buffer.position(start + 4 + length);
+        ByteBuffer content = buffer.duplicate();
+        content.position(start + 4);
+        content.limit(start + 4 + length);
+        regions.put(name, new RegionSnapshot(name, stamp, written, entries, content.slice()));
+      }
+      log.info("Cache snapshot " + file + ": " + regions.keySet());
+      return new CacheSnapshot(regions);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Cannot read the cache snapshot " + file + ", the cache starts empty", e);
+      return null;
+    }
+  }
+
+  /**
+   * Write the regions to the file: first to a temporary file next to it, then
+   * renamed, so a crash in the middle never leaves half a snapshot, and a
+   * snapshot mapped by this JVM is never overwritten
+   */
+  public static void write(File file, String stamp, Map<String, Map<Object, Object>> regions) {
+    Map<String, List<byte[]>> records = new LinkedHashMap<>();
+    byte[] stampBytes = stamp.getBytes(StandardCharsets.UTF_8);
+    long size = 8;
+    for (Map.Entry<String, Map<Object, Object>> region : regions.entrySet()) {
+      List<byte[]> entries = new ArrayList<>();
+      for (Map.Entry<Object, Object> entry : region.getValue().entrySet()) {
+        Object value = entry.getValue();
+        if (value instanceof ReadWriteCache.Lock || !(value instanceof Serializable)
+            || !(entry.getKey() instanceof Serializable)) {
+          // A lock is a write in progress, there is nothing to keep
+          continue;
+        }
+        entries.add(SerializationHelper.serialize((Serializable) entry.getKey()));
+        entries.add(SerializationHelper.serialize((Serializable) versionOf(value)));
+        entries.add(SerializationHelper.serialize((Serializable) value));
+      }
+      records.put(region.getKey(), entries);
+
+      size += 4 + region.getKey().getBytes(StandardCharsets.UTF_8).length + 4 + stampBytes.length + 8 + 4 + 4;
+      for (byte[] bytes : entries) {
+        size += 4 + bytes.length;
+      }
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new CacheException("Cache snapshot bigger than 2g, not written: " + size + " bytes");
+    }
+
+    File temporary = new File(file.getPath() + ".tmp");
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(temporary, "rw")) {
+      randomAccessFile.setLength(0);
+      MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.putInt(MAGIC);
+      buffer.putInt(records.size());
+      long now = System.currentTimeMillis();
+      for (Map.Entry<String, List<byte[]>> region : records.entrySet()) {
+        writeBytes(buffer, region.getKey().getBytes(StandardCharsets.UTF_8));
+        writeBytes(buffer, stampBytes);
+        buffer.putLong(now);
+        buffer.putInt(region.getValue().size() / 3);
+
+        // Length of the entries, so open() can skip them
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        for (byte[] bytes : region.getValue()) {
+          writeBytes(buffer, bytes);
+        }
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+      }
+      buffer.force();
+    } catch (IOException e) {
+      throw new CacheException("Cannot write the cache snapshot " + temporary, e);
+    }
+    if (!temporary.renameTo(file)) {
+      throw new CacheException("Cannot rename " + temporary + " to " + file);
+    }
+  }
+
+  private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+    buffer.putInt(bytes.length);
+    buffer.put(bytes);
+  }
+
+  private static byte[] readBytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    return new String(readBytes(buffer), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * The version of the entity in a cache entry, null if the entity is not
+   * versioned or the entry is not an entity (a collection, a query result)
+   */
+  public static Object versionOf(Object value) {
+    if (value instanceof ReadWriteCache.Item) {
+      value = ((ReadWriteCache.Item) value).getValue();
+    }
+    if (value instanceof CacheEntry) {
+      return ((CacheEntry) value).getVersion();
+    }
+    if (value instanceof Map) {
+      // A structured entry
+      return ((Map<?, ?>) value).get("_version");
+    }
+    return null;
+  }
+
+  /**
+   * The entries of one region in the snapshot. The keys and versions are read
+   * the first time they are needed; a value is deserialized only by take(),
+   * and only once: after that the entry is in the real region and is removed
+   * from here. Entries that changed since, or are stale, are discarded
+   */
+  public static class RegionSnapshot {
+
+    private final String regionName;
+    private final String stamp;
+    private final long written;
+    private final int entryCount;
+    private final ByteBuffer content;
+
+    // Key -> {version, offset of the value}
+    private Map<Object, Object[]> index;
+
+    RegionSnapshot(String regionName, String stamp, long written, int entryCount, ByteBuffer content) {
+      this.regionName = regionName;
+      this.stamp = stamp;
+      this.written = written;
+      this.entryCount = entryCount;
+      this.content = content;
+    }
+
+    private Map<Object, Object[]> index() {
+      if (index == null) {
+        index = new HashMap<>(entryCount * 4 / 3 + 1);
+        ByteBuffer entries = content.duplicate();
+        for (int i = 0; i < entryCount; i++) {
+          Object key = SerializationHelper.deserialize(readBytes(entries));
+          Object version = SerializationHelper.deserialize(readBytes(entries));
+          int valueOffset = entries.position();
+          entries.position(valueOffset + 4 + entries.getInt(valueOffset));
+          index.put(key, new Object[] { version, valueOffset });
+        }
+      }
+      return index;
+    }
+
+    /**
+     * The value of the key, removed from the snapshot, or null if it's not here
+     */
+    public synchronized Object take(Object key) {
+      Object[] entry = index().remove(key);
+      if (entry == null) {
+        return null;
+      }
+      ByteBuffer value = content.duplicate();
+      value.position((Integer) entry[1]);
+      return SerializationHelper.deserialize(readBytes(value));
+    }
+
+    public synchronized void discard(Object key) {
+      index().remove(key);
+    }
+
+    public synchronized void discardAll() {
+      index = new HashMap<>();
+    }
+
+    /**
+     * Key -> entity version of the entries still here
+     */
+    public synchronized Map<Object, Object> getVersions() {
+      Map<Object, Object> versions = new HashMap<>();
+      for (Map.Entry<Object, Object[]> entry : index().entrySet()) {
+        versions.put(entry.getKey(), entry.getValue()[0]);
+      }
+      return versions;
+    }
+
+    /**
+     * Deserialize every entry still here, to write them again in the next
+     * snapshot
+     */
+    public synchronized Map<Object, Object> getEntries() {
+      Map<Object, Object> entries = new HashMap<>();
+      for (Object key : new ArrayList<>(index().keySet())) {
+        Object[] entry = index.get(key);
+        ByteBuffer value = content.duplicate();
+        value.position((Integer) entry[1]);
+        entries.put(key, SerializationHelper.deserialize(readBytes(value)));
+      }
+      return entries;
+    }
+
+    public synchronized int size() {
+      return index == null ? entryCount : index.size();
+    }
+
+    public String getRegionName() {
+      return regionName;
+    }
+
+    public long getWritten() {
+      return written;
+    }
+
+  }
+
+}
@@ -0,0 +1,116 @@
+package hibernate_config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+
+/**
+ * Wrap a region of another provider, entity state goes in it as the byte array
+ * of CompactEntryEncoder and comes out decoded, see CompactEntryCacheProvider.
+ * Nothing else Hibernate puts in a region is a byte[], so a byte[] read back
+ * is always an encoded entry
+ */
+public class CompactEntryCache implements Cache, EvictionCounting {
+
+  private final Cache region;
+  private final CompactEntryEncoder encoder;
+
+  public CompactEntryCache(Cache region, CompactEntryEncoder encoder) {
+    this.region = region;
+    this.encoder = encoder;
+  }
+
+  private Object encode(Object value) {
+    return encoder.isEncodable(value) ? encoder.encode(value) : value;
+  }
+
+  private Object decode(Object value) {
+    return value instanceof byte[] ? encoder.decode((byte[]) value) : value;
+  }
+
+  public Object read(Object key) throws CacheException {
+    return decode(region.read(key));
+  }
+
+  public Object get(Object key) throws CacheException {
+    return decode(region.get(key));
+  }
+
+  public void put(Object key, Object value) throws CacheException {
+    region.put(key, encode(value));
+  }
+
+  public void update(Object key, Object value) throws CacheException {
+    region.update(key, encode(value));
+  }
+
+  public void remove(Object key) throws CacheException {
+    region.remove(key);
+  }
+
+  public void clear() throws CacheException {
+    region.clear();
+  }
+
+  public void destroy() throws CacheException {
+    region.destroy();
+  }
+
+  public void lock(Object key) throws CacheException {
+    region.lock(key);
+  }
+
+  public void unlock(Object key) throws CacheException {
+    region.unlock(key);
+  }
+
+  public long nextTimestamp() {
+    return region.nextTimestamp();
+  }
+
+  public int getTimeout() {
+    return region.getTimeout();
+  }
+
+  public String getRegionName() {
+    return region.getRegionName();
+  }
+
+  public long getSizeInMemory() {
+    return region.getSizeInMemory();
+  }
+
+  public long getElementCountInMemory() {
+    return region.getElementCountInMemory();
+  }
+
+  public long getElementCountOnDisk() {
+    return region.getElementCountOnDisk();
+  }
+
+  public long getEvictionCount() {
+    return EvictionCounting.of(region);
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Map toMap() {
+    Map<Object, Object> map = new HashMap<>();
+    for (Object entry : region.toMap().entrySet()) {
+      Map.Entry<?, ?> mapEntry = (Map.Entry<?, ?>) entry;
+      map.put(mapEntry.getKey(), decode(mapEntry.getValue()));
+    }
+    return map;
+  }
+
+  public Cache getRegion() {
+    return region;
+  }
+
+  @Override
+  public String toString() {
+    return "CompactEntryCache(" + region + ")";
+  }
+
+}
@@ -0,0 +1,104 @@
+package hibernate_config;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.CacheProvider;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.mapping.Property;
+import org.hibernate.util.ReflectHelper;
+
+/**
+ * Keep the entity state in the regions of another provider packed by
+ * CompactEntryEncoder, a byte array of a few dozen bytes instead of a
+ * CacheEntry (or with structured entries a Map) of boxed values, BigDecimals
+ * and Dates.
+ *
+ * The encoded entries refer to the table of symbols of this provider, that
+ * lives only as long as the JVM, so the regions below must never be written to
+ * a file: SnapshotCacheProvider goes outside, where it sees the entries
+ * decoded, and it's refused as the provider of this one.
+ *
+ * <property name="hibernate.cache.provider_class">hibernate_config.CompactEntryCacheProvider</property>
+ *
+ * <property name="hibernate.cache.compact.provider_class">hibernate_config.BoundedCacheProvider</property>
+ *
+ * To see the size of the encoded entries in the region statistics, use
+ * StatisticsCacheProvider as hibernate.cache.compact.provider_class
+ *
+ * register() lists the property names of the mapped entities in
+ * hibernate.cache.compact.property_names, the only keys of a structured entry
+ * the encoder keeps as symbols; without it they are written in every entry
+ */
+public class CompactEntryCacheProvider implements CacheProvider {
+
+  public static final String PROVIDER_PROPERTY = "hibernate.cache.compact.provider_class";
+  public static final String PROPERTY_NAMES_PROPERTY = "hibernate.cache.compact.property_names";
+
+  private final CompactEntryEncoder encoder = new CompactEntryEncoder();
+  private CacheProvider provider;
+
+  public void start(Properties properties) throws CacheException {
+    String providerClass = properties.getProperty(PROVIDER_PROPERTY);
+    if (providerClass == null) {
+      throw new CacheException(PROVIDER_PROPERTY + " is not set, no provider to store the entries");
+    }
+    if (providerClass.trim().equals(SnapshotCacheProvider.class.getName())) {
+      throw new CacheException("SnapshotCacheProvider would write entries encoded with the symbols of this JVM, "
+          + "make it the provider of CompactEntryCacheProvider instead");
+    }
+    try {
+      provider = (CacheProvider) ReflectHelper.classForName(providerClass).newInstance();
+    } catch (Exception e) {
+      throw new CacheException("Could not instantiate cache provider " + providerClass, e);
+    }
+    provider.start(properties);
+
+    String propertyNames = properties.getProperty(PROPERTY_NAMES_PROPERTY);
+    if (propertyNames != null && !propertyNames.trim().isEmpty()) {
+      encoder.registerPropertyNames(Arrays.asList(propertyNames.trim().split(",")));
+    }
+  }
+
+  /**
+   * Set hibernate.cache.compact.property_names to the properties of the mapped
+   * entities, the same ones their persisters put in a structured entry. Must be
+   * called before the SessionFactory is built
+   */
+  public static void register(Configuration configuration) {
+    Set<String> names = new TreeSet<>();
+    for (Iterator<PersistentClass> classes = configuration.getClassMappings(); classes.hasNext();) {
+      for (Iterator<?> properties = classes.next().getPropertyClosureIterator(); properties.hasNext();) {
+        names.add(((Property) properties.next()).getName());
+      }
+    }
+    configuration.setProperty(PROPERTY_NAMES_PROPERTY, String.join(",", names));
+  }
+
+  public Cache buildCache(String regionName, Properties properties) throws CacheException {
+    return new CompactEntryCache(provider.buildCache(regionName, properties), encoder);
+  }
+
+  public CompactEntryEncoder getEncoder() {
+    return encoder;
+  }
+
+  public long nextTimestamp() {
+    return provider.nextTimestamp();
+  }
+
+  public void stop() {
+    provider.stop();
+  }
+
+  public boolean isMinimalPutsEnabledByDefault() {
+    return provider.isMinimalPutsEnabledByDefault();
+  }
+
+}
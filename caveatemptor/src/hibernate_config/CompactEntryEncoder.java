@@ -0,0 +1,475 @@
+package hibernate_config;
+
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Currency;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.ReadWriteCache;
+import org.hibernate.cache.entry.CacheEntry;
+import org.hibernate.util.SerializationHelper;
+
+import persistence.MonetaryAmount;
+
+/**
+ * Pack a cache entry in a single byte array instead of a graph of objects.
+ *
+ * The state of an entity in the cache is a CacheEntry holding a Serializable[]
+ * of disassembled values, or with hibernate.cache.use_structured_entries a Map
+ * from property name to disassembled value: the name, a MonetaryAmount with
+ * its BigDecimal and Currency, a few Dates... every one an object with its
+ * header, a few hundred bytes for an Item. Both are encoded. Here each value is
+ * a tag byte followed by:
+ *
+ * numbers -- variable length longs, small numbers and ids take 1 to 3 bytes
+ *
+ * BigDecimal and MonetaryAmount -- the unscaled value as a long plus the scale
+ * (and the currency code), when the unscaled value fits in a long
+ *
+ * Date and Timestamp -- epoch millis (and the nanos of the Timestamp)
+ *
+ * enums like model.Rating -- the ordinal
+ *
+ * strings -- UTF-8
+ *
+ * Property names, entity names and enum classes are written once in a table of
+ * symbols of this encoder and then only as their position in it, so the bytes
+ * can be decoded only by the same encoder, in the same JVM: they must never
+ * reach a file, see CompactEntryCacheProvider. The table only grows with the
+ * mappings: a key of a Map is a symbol only if it's one of the property names
+ * given to registerPropertyNames() (or a key StructuredCacheEntry adds), any
+ * other key, like the keys of a structured map collection, is data and is
+ * written inline. Anything else is written with Java serialization, so every
+ * entry can be encoded, it just doesn't get smaller
+ */
+public class CompactEntryEncoder {
+
+  private static final byte NULL = 0;
+  private static final byte TRUE = 1;
+  private static final byte FALSE = 2;
+  private static final byte INTEGER = 3;
+  private static final byte LONG = 4;
+  private static final byte SHORT = 5;
+  private static final byte BYTE = 6;
+  private static final byte DOUBLE = 7;
+  private static final byte FLOAT = 8;
+  private static final byte CHARACTER = 9;
+  private static final byte STRING = 10;
+  private static final byte DATE = 11;
+  private static final byte SQL_DATE = 12;
+  private static final byte TIMESTAMP = 13;
+  private static final byte DECIMAL = 14;
+  private static final byte MONETARY_AMOUNT = 15;
+  private static final byte ENUM = 16;
+  private static final byte MAP = 17;
+  private static final byte ARRAY = 18;
+  private static final byte READ_WRITE_ITEM = 19;
+  private static final byte SERIALIZED = 20;
+  private static final byte CACHE_ENTRY = 21;
+
+  // ReadWriteCache.Item has no getter for the version
+  private static final Field ITEM_VERSION;
+
+  // The constructor of CacheEntry from its disassembled state is package
+  // private
+  private static final Constructor<CacheEntry> CACHE_ENTRY_CONSTRUCTOR;
+
+  static {
+    try {
+      ITEM_VERSION = ReadWriteCache.Item.class.getDeclaredField("version");
+      ITEM_VERSION.setAccessible(true);
+      CACHE_ENTRY_CONSTRUCTOR = CacheEntry.class.getDeclaredConstructor(Serializable[].class, String.class,
+          boolean.class, Object.class);
+      CACHE_ENTRY_CONSTRUCTOR.setAccessible(true);
+    } catch (NoSuchFieldException | NoSuchMethodException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  // Property names, entity names and enum classes, shared by all the regions
+  // of a provider
+  private final List<Object> symbols = new CopyOnWriteArrayList<>();
+  private final ConcurrentMap<Object, Integer> symbolIndexes = new ConcurrentHashMap<>();
+
+  // The keys of a Map that become symbols, the others are written inline
+  private final Set<String> propertyNames = ConcurrentHashMap.newKeySet();
+
+  public CompactEntryEncoder() {
+    // The keys StructuredCacheEntry adds to the property names
+    registerPropertyNames(Arrays.asList("_subclass", "_version", "_lazyPropertiesUnfetched"));
+  }
+
+  /**
+   * The property names of the entities, the keys of their structured entries
+   * worth a symbol
+   */
+  public void registerPropertyNames(Collection<String> names) {
+    propertyNames.addAll(names);
+  }
+
+  public byte[] encode(Object value) {
+    Output output = new Output();
+    write(output, value);
+    return output.toByteArray();
+  }
+
+  public Object decode(byte[] bytes) {
+    return read(new Input(bytes));
+  }
+
+  /**
+   * Only the values worth encoding: entity state and the wrapper of READ_WRITE
+   * regions. Locks of READ_WRITE regions live a few milliseconds, and
+   * collection entries are arrays of ids, they are left as they are
+   */
+  public boolean isEncodable(Object value) {
+    if (value instanceof ReadWriteCache.Item) {
+      return isEncodable(((ReadWriteCache.Item) value).getValue());
+    }
+    return value instanceof CacheEntry || value instanceof Map;
+  }
+
+  private void write(Output output, Object value) {
+    if (value == null) {
+      output.writeByte(NULL);
+    } else if (value instanceof Boolean) {
+      output.writeByte((Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Integer) {
+      output.writeByte(INTEGER);
+      output.writeVarLong((Integer) value);
+    } else if (value instanceof Long) {
+      output.writeByte(LONG);
+      output.writeVarLong((Long) value);
+    } else if (value instanceof Short) {
+      output.writeByte(SHORT);
+      output.writeVarLong((Short) value);
+    } else if (value instanceof Byte) {
+      output.writeByte(BYTE);
+      output.writeByte((Byte) value);
+    } else if (value instanceof Double) {
+      output.writeByte(DOUBLE);
+      output.writeLong(Double.doubleToLongBits((Double) value));
+    } else if (value instanceof Float) {
+      output.writeByte(FLOAT);
+      output.writeVarLong(Float.floatToIntBits((Float) value));
+    } else if (value instanceof Character) {
+      output.writeByte(CHARACTER);
+      output.writeVarLong((Character) value);
+    } else if (value instanceof String) {
+      output.writeByte(STRING);
+      output.writeString((String) value);
+    } else if (value instanceof Timestamp) {
+      // Before Date, a Timestamp is a Date
+      output.writeByte(TIMESTAMP);
+      output.writeVarLong(((Timestamp) value).getTime());
+      output.writeVarLong(((Timestamp) value).getNanos());
+    } else if (value instanceof java.sql.Date) {
+      output.writeByte(SQL_DATE);
+      output.writeVarLong(((Date) value).getTime());
+    } else if (value.getClass() == Date.class) {
+      output.writeByte(DATE);
+      output.writeVarLong(((Date) value).getTime());
+    } else if (value instanceof BigDecimal && fitsInLong((BigDecimal) value)) {
+      output.writeByte(DECIMAL);
+      writeDecimal(output, (BigDecimal) value);
+    } else if (value.getClass() == MonetaryAmount.class && fitsInLong(((MonetaryAmount) value).getAmount())) {
+      MonetaryAmount amount = (MonetaryAmount) value;
+      output.writeByte(MONETARY_AMOUNT);
+      writeDecimal(output, amount.getAmount());
+      output.writeString(amount.getCurrency() == null ? "" : amount.getCurrency().getCurrencyCode());
+    } else if (value instanceof Enum) {
+      output.writeByte(ENUM);
+      output.writeVarLong(symbol(((Enum<?>) value).getDeclaringClass()));
+      output.writeVarLong(((Enum<?>) value).ordinal());
+    } else if (value instanceof Map) {
+      output.writeByte(MAP);
+      Map<?, ?> map = (Map<?, ?>) value;
+      output.writeVarLong(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        if (entry.getKey() instanceof String && propertyNames.contains(entry.getKey())) {
+          // A property name
+          output.writeVarLong(symbol(entry.getKey()) + 1);
+        } else {
+          output.writeVarLong(0);
+          write(output, entry.getKey());
+        }
+        write(output, entry.getValue());
+      }
+    } else if (value.getClass() == Serializable[].class || value.getClass() == Object[].class) {
+      output.writeByte(ARRAY);
+      output.writeByte(value.getClass() == Serializable[].class ? 1 : 0);
+      Object[] array = (Object[]) value;
+      output.writeVarLong(array.length);
+      for (Object element : array) {
+        write(output, element);
+      }
+    } else if (value instanceof ReadWriteCache.Item) {
+      ReadWriteCache.Item item = (ReadWriteCache.Item) value;
+      output.writeByte(READ_WRITE_ITEM);
+      output.writeVarLong(item.getFreshTimestamp());
+      write(output, versionOf(item));
+      write(output, item.getValue());
+    } else if (value instanceof CacheEntry) {
+      CacheEntry entry = (CacheEntry) value;
+      output.writeByte(CACHE_ENTRY);
+      output.writeVarLong(symbol(entry.getSubclass()));
+      output.writeByte(entry.areLazyPropertiesUnfetched() ? TRUE : FALSE);
+      write(output, entry.getVersion());
+      Serializable[] state = entry.getDisassembledState();
+      output.writeVarLong(state.length);
+      for (Serializable element : state) {
+        write(output, element);
+      }
+    } else if (value instanceof Serializable) {
+      output.writeByte(SERIALIZED);
+      byte[] bytes = SerializationHelper.serialize((Serializable) value);
+      output.writeVarLong(bytes.length);
+      output.writeBytes(bytes);
+    } else {
+      throw new CacheException("Cannot encode " + value.getClass() + ", it's not Serializable");
+    }
+  }
+
+  private Object read(Input input) {
+    byte tag = input.readByte();
+    switch (tag) {
+    case NULL:
+      return null;
+    case TRUE:
+      return Boolean.TRUE;
+    case FALSE:
+      return Boolean.FALSE;
+    case INTEGER:
+      return (int) input.readVarLong();
+    case LONG:
+      return input.readVarLong();
+    case SHORT:
+      return (short) input.readVarLong();
+    case BYTE:
+      return input.readByte();
+    case DOUBLE:
+      return Double.longBitsToDouble(input.readLong());
+    case FLOAT:
+      return Float.intBitsToFloat((int) input.readVarLong());
+    case CHARACTER:
+      return (char) input.readVarLong();
+    case STRING:
+      return input.readString();
+    case TIMESTAMP:
+      Timestamp timestamp = new Timestamp(input.readVarLong());
+      timestamp.setNanos((int) input.readVarLong());
+      return timestamp;
+    case SQL_DATE:
+      return new java.sql.Date(input.readVarLong());
+    case DATE:
+      return new Date(input.readVarLong());
+    case DECIMAL:
+      return readDecimal(input);
+    case MONETARY_AMOUNT:
+      BigDecimal amount = readDecimal(input);
+      String currency = input.readString();
+      return new MonetaryAmount(amount, currency.isEmpty() ? null : Currency.getInstance(currency));
+    case ENUM:
+      Class<?> enumClass = (Class<?>) symbols.get((int) input.readVarLong());
+      return enumClass.getEnumConstants()[(int) input.readVarLong()];
+    case MAP:
+      int size = (int) input.readVarLong();
+      Map<Object, Object> map = new HashMap<>(size * 4 / 3 + 1);
+      for (int i = 0; i < size; i++) {
+        int symbol = (int) input.readVarLong();
+        Object key = symbol == 0 ? read(input) : symbols.get(symbol - 1);
+        map.put(key, read(input));
+      }
+      return map;
+    case ARRAY:
+      boolean serializable = input.readByte() == 1;
+      int length = (int) input.readVarLong();
+      Object[] array = serializable ? new Serializable[length] : new Object[length];
+      for (int i = 0; i < length; i++) {
+        array[i] = read(input);
+      }
+      return array;
+    case READ_WRITE_ITEM:
+      long freshTimestamp = input.readVarLong();
+      Object version = read(input);
+      return new ReadWriteCache.Item(read(input), version, freshTimestamp);
+    case CACHE_ENTRY:
+      String subclass = (String) symbols.get((int) input.readVarLong());
+      boolean unfetched = input.readByte() == TRUE;
+      Object entryVersion = read(input);
+      Serializable[] state = new Serializable[(int) input.readVarLong()];
+      for (int i = 0; i < state.length; i++) {
+        state[i] = (Serializable) read(input);
+      }
+      return cacheEntry(state, subclass, unfetched, entryVersion);
+    case SERIALIZED:
+      return SerializationHelper.deserialize(input.readBytes((int) input.readVarLong()));
+    default:
+      throw new CacheException("Corrupted cache entry, unknown tag " + tag);
+    }
+  }
+
+  private static boolean fitsInLong(BigDecimal value) {
+    return value != null && value.unscaledValue().bitLength() < 64;
+  }
+
+  private static void writeDecimal(Output output, BigDecimal value) {
+    output.writeVarLong(value.unscaledValue().longValue());
+    output.writeVarLong(value.scale());
+  }
+
+  private static BigDecimal readDecimal(Input input) {
+    long unscaled = input.readVarLong();
+    return new BigDecimal(BigInteger.valueOf(unscaled), (int) input.readVarLong());
+  }
+
+  private static Object versionOf(ReadWriteCache.Item item) {
+    try {
+      return ITEM_VERSION.get(item);
+    } catch (IllegalAccessException e) {
+      throw new CacheException("Cannot read the version of " + item, e);
+    }
+  }
+
+  private static CacheEntry cacheEntry(Serializable[] state, String subclass, boolean unfetched, Object version) {
+    try {
+      return CACHE_ENTRY_CONSTRUCTOR.newInstance(state, subclass, unfetched, version);
+    } catch (ReflectiveOperationException e) {
+      throw new CacheException("Cannot create the cache entry of " + subclass, e);
+    }
+  }
+
+  private int symbol(Object symbol) {
+    Integer index = symbolIndexes.get(symbol);
+    if (index != null) {
+      return index;
+    }
+    synchronized (symbols) {
+      return symbolIndexes.computeIfAbsent(symbol, added -> {
+        symbols.add(added);
+        return symbols.size() - 1;
+      });
+    }
+  }
+
+  public int getSymbolCount() {
+    return symbols.size();
+  }
+
+  /**
+   * Longs are zigzag encoded, so small negative numbers are small too, 7 bits
+   * per byte
+   */
+  private static final class Output {
+
+    private byte[] bytes = new byte[64];
+    private int position;
+
+    private void ensure(int length) {
+      if (position + length > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + length));
+      }
+    }
+
+    void writeByte(int value) {
+      ensure(1);
+      bytes[position++] = (byte) value;
+    }
+
+    void writeBytes(byte[] value) {
+      ensure(value.length);
+      System.arraycopy(value, 0, bytes, position, value.length);
+      position += value.length;
+    }
+
+    void writeLong(long value) {
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        writeByte((int) (value >>> shift));
+      }
+    }
+
+    void writeVarLong(long value) {
+      long zigzag = (value << 1) ^ (value >> 63);
+      while ((zigzag & ~0x7FL) != 0) {
+        writeByte((int) ((zigzag & 0x7F) | 0x80));
+        zigzag >>>= 7;
+      }
+      writeByte((int) zigzag);
+    }
+
+    void writeString(String value) {
+      byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+      writeVarLong(utf8.length);
+      writeBytes(utf8);
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, position);
+    }
+
+  }
+
+  private static final class Input {
+
+    private final byte[] bytes;
+    private int position;
+
+    Input(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    byte readByte() {
+      return bytes[position++];
+    }
+
+    byte[] readBytes(int length) {
+      byte[] value = Arrays.copyOfRange(bytes, position, position + length);
+      position += length;
+      return value;
+    }
+
+    long readLong() {
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        value = (value << 8) | (readByte() & 0xFF);
+      }
+      return value;
+    }
+
+    long readVarLong() {
+      long zigzag = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = readByte();
+        zigzag |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    String readString() {
+      int length = (int) readVarLong();
+      String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return value;
+    }
+
+  }
+
+}
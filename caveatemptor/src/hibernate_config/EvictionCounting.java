@@ -0,0 +1,21 @@
+package hibernate_config;
+
+import org.hibernate.cache.Cache;
+
+/**
+ * A region that knows how many entries it evicted, read by RegionStatistics.
+ * A region wrapping another one (CompactEntryCache, SnapshotCache) evicts
+ * nothing itself and returns the count of the region it wraps
+ */
+public interface EvictionCounting {
+
+  long getEvictionCount();
+
+  /**
+   * The evictions of the region, -1 if it doesn't count them
+   */
+  static long of(Cache region) {
+    return region instanceof EvictionCounting ? ((EvictionCounting) region).getEvictionCount() : -1;
+  }
+
+}
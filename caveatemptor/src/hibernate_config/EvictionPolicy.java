@@ -0,0 +1,28 @@
+package hibernate_config;
+
+import java.util.Map;
+
+/**
+ * How a BoundedCache region decides what to keep when it's full. The
+ * implementations are not thread safe, the region synchronizes them
+ */
+public interface EvictionPolicy {
+
+  Object get(Object key);
+
+  void put(Object key, Object value);
+
+  void remove(Object key);
+
+  void clear();
+
+  int size();
+
+  long getEvictionCount();
+
+  /**
+   * Copy of the entries, only for debugging and statistics
+   */
+  Map<Object, Object> toMap();
+
+}
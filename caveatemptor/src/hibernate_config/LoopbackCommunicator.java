@@ -0,0 +1,276 @@
+package hibernate_config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+import org.hibernate.type.AbstractStandardBasicType;
+import org.hibernate.util.SerializationHelper;
+
+import net.sf.swarmcache.CacheNotification;
+import net.sf.swarmcache.Communicator;
+import net.sf.swarmcache.ObjectCache;
+
+/**
+ * SwarmCache sends its invalidation messages through a Communicator, the only
+ * one it ships uses JGroups, which we don't have (and which is a lot of
+ * machinery for a few JVMs on the same machine). This one uses UDP datagrams
+ * on the loopback interface.
+ *
+ * The nodes of a group use a range of consecutive ports starting at basePort:
+ * each node binds the first free port of the range and sends every
+ * notification to all the other ports of the range. A port nobody listens on
+ * simply drops the datagram. So the group has at most maxNodes JVMs and a
+ * notification costs maxNodes - 1 datagrams.
+ *
+ * The MultiCacheManager of SwarmCache can't be used without JGroups in the
+ * classpath (it creates the JGroups communicator itself), so the regions are
+ * registered here and a notification is applied to them directly.
+ *
+ * Any local process can send a datagram to these ports, so a datagram is never
+ * deserialized as it is: NotificationInputStream only resolves the classes a
+ * notification is made of (the notification, a CacheKey with its Hibernate
+ * type, String and number ids), anything else is refused before an object of
+ * it is created. A key of another kind (a composite id) is refused too, and
+ * the notification is lost with a warning.
+ *
+ * Datagrams carry no sequence number and are never acknowledged or sent
+ * again, so a notification can be lost: on the loopback interface that happens
+ * when the receive buffer of a node is full, e.g. under a burst of writes while
+ * the node is paused by the garbage collector. The copy on that node then stays
+ * stale until it's updated again or evicted. A READ_WRITE region still never
+ * lets a transaction overwrite a newer version, but a node may read an old one
+ */
+public class LoopbackCommunicator extends Communicator {
+
+  private static final Logger log = Logger.getLogger(LoopbackCommunicator.class);
+
+  private static final int MAX_DATAGRAM = 65507;
+
+  // The key of a notification that clears a whole region
+  public static final String CLEAR_ALL = "(ALL)";
+
+  private final DatagramSocket socket;
+  private final InetAddress loopback;
+  private final int basePort;
+  private final int maxNodes;
+  private final ConcurrentMap<String, ObjectCache> regions = new ConcurrentHashMap<>();
+  private final List<Consumer<CacheNotification>> listeners = new CopyOnWriteArrayList<>();
+
+  private final AtomicLong notificationsSent = new AtomicLong();
+  private final AtomicLong datagramsSent = new AtomicLong();
+  private final AtomicLong notificationsReceived = new AtomicLong();
+
+  public LoopbackCommunicator(String groupName, int basePort, int maxNodes) {
+    setGroupName(groupName);
+    this.basePort = basePort;
+    this.maxNodes = maxNodes;
+    this.loopback = InetAddress.getLoopbackAddress();
+    this.socket = bind();
+
+    Thread receiver = new Thread(this::receiveLoop, "loopback-communicator-" + socket.getLocalPort());
+    receiver.setDaemon(true);
+    receiver.start();
+    log.info("Cache group " + groupName + " joined on port " + socket.getLocalPort());
+  }
+
+  private DatagramSocket bind() {
+    for (int port = basePort; port < basePort + maxNodes; port++) {
+      try {
+        return new DatagramSocket(new InetSocketAddress(loopback, port));
+      } catch (BindException e) {
+        // Taken by another node, try the next one
+      } catch (SocketException e) {
+        throw new IllegalStateException("Cannot open a socket on port " + port, e);
+      }
+    }
+    throw new IllegalStateException("No free port between " + basePort + " and " + (basePort + maxNodes - 1)
+        + ", too many nodes in the group");
+  }
+
+  /**
+   * The notifications for this type (the region name) will clear entries of the
+   * given cache
+   */
+  public void register(String type, ObjectCache cache) {
+    regions.put(type, cache);
+  }
+
+  /**
+   * Tell the other nodes to drop a key of a region, or all of it with CLEAR_ALL
+   */
+  public void sendClear(String type, Serializable key) {
+    send(new CacheNotification(type, key));
+  }
+
+  @Override
+  protected void send(CacheNotification notification) {
+    byte[] bytes = SerializationHelper.serialize(notification);
+    if (bytes.length > MAX_DATAGRAM) {
+      log.warn("Notification too big for a datagram, not sent: " + notification.getKey());
+      return;
+    }
+    notificationsSent.incrementAndGet();
+    for (int port = basePort; port < basePort + maxNodes; port++) {
+      if (port == socket.getLocalPort()) {
+        continue;
+      }
+      try {
+        socket.send(new DatagramPacket(bytes, bytes.length, loopback, port));
+        datagramsSent.incrementAndGet();
+      } catch (IOException e) {
+        log.warn("Could not send notification to port " + port, e);
+      }
+    }
+  }
+
+  private void receiveLoop() {
+    byte[] buffer = new byte[MAX_DATAGRAM];
+    while (!socket.isClosed()) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        socket.receive(packet);
+        byte[] bytes = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), packet.getOffset(), bytes, 0, packet.getLength());
+        CacheNotification notification = readNotification(bytes);
+
+        notificationsReceived.incrementAndGet();
+        receive(notification);
+        for (Consumer<CacheNotification> listener : listeners) {
+          listener.accept(notification);
+        }
+      } catch (IOException e) {
+        if (!socket.isClosed()) {
+          log.warn("Error receiving a cache notification", e);
+        }
+      } catch (RuntimeException e) {
+        log.warn("Invalid cache notification", e);
+      }
+    }
+  }
+
+  private static CacheNotification readNotification(byte[] bytes) throws IOException {
+    try (ObjectInputStream in = new NotificationInputStream(new ByteArrayInputStream(bytes))) {
+      Object notification = in.readObject();
+      if (!(notification instanceof CacheNotification)) {
+        throw new InvalidClassException("Not a cache notification: " + notification);
+      }
+      return (CacheNotification) notification;
+    } catch (InvalidClassException e) {
+      log.warn("Cache notification refused: " + e.getMessage());
+      throw e;
+    } catch (ClassNotFoundException e) {
+      throw new InvalidClassException(e.getMessage());
+    }
+  }
+
+  /**
+   * Resolves only the classes of a notification
+   */
+  private static class NotificationInputStream extends ObjectInputStream {
+
+    private static final Set<String> ACCEPTED = new HashSet<>(Arrays.asList(
+        "net.sf.swarmcache.CacheNotification",
+        "org.hibernate.cache.CacheKey",
+        "org.hibernate.EntityMode",
+        "org.hibernate.util.ComparableComparator",
+        "java.lang.String",
+        "java.lang.Number",
+        "java.lang.Long",
+        "java.lang.Integer"));
+
+    // The basic type of the key and its descriptors, plain value classes
+    private static final String DESCRIPTORS = "org.hibernate.type.descriptor.";
+
+    NotificationInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+      String name = description.getName();
+      if (!ACCEPTED.contains(name) && !name.startsWith(DESCRIPTORS) && !isBasicType(name)) {
+        throw new InvalidClassException(name, "not part of a cache notification");
+      }
+      return super.resolveClass(description);
+    }
+
+    // Loaded without being initialized, nothing of it runs
+    private static boolean isBasicType(String name) {
+      if (!name.startsWith("org.hibernate.type.")) {
+        return false;
+      }
+      try {
+        return AbstractStandardBasicType.class.isAssignableFrom(
+            Class.forName(name, false, NotificationInputStream.class.getClassLoader()));
+      } catch (ClassNotFoundException e) {
+        return false;
+      }
+    }
+
+  }
+
+  @Override
+  protected void receive(CacheNotification notification) {
+    ObjectCache cache = regions.get(notification.getType());
+    if (cache == null) {
+      // A region this node doesn't have
+      return;
+    }
+    if (CLEAR_ALL.equals(notification.getKey())) {
+      cache.clearAll();
+    } else {
+      cache.clear(notification.getKey());
+    }
+  }
+
+  /**
+   * Called after a notification from another node has been applied to the
+   * local caches
+   */
+  public void addListener(Consumer<CacheNotification> listener) {
+    listeners.add(listener);
+  }
+
+  public int getPort() {
+    return socket.getLocalPort();
+  }
+
+  public long getNotificationsSent() {
+    return notificationsSent.get();
+  }
+
+  public long getDatagramsSent() {
+    return datagramsSent.get();
+  }
+
+  public long getNotificationsReceived() {
+    return notificationsReceived.get();
+  }
+
+  @Override
+  public void shutDown() {
+    socket.close();
+  }
+
+}
@@ -0,0 +1,118 @@
+package hibernate_config;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.Timestamper;
+
+import net.sf.swarmcache.LRUCache;
+
+/**
+ * A region of LoopbackSwarmCacheProvider. The MultiCache of SwarmCache sends an
+ * invalidation only when it replaces a key it already has, so a node that never
+ * read an item wouldn't tell the others that it changed it. Here the two cases
+ * of Hibernate are kept apart:
+ *
+ * put() -- the state was just read from the database, it's the same everywhere
+ * so it goes in the local cache only, no message
+ *
+ * update(), remove() -- this node changed the entity, the other nodes are told
+ * to drop their copy, one notification per key
+ */
+public class LoopbackSwarmCache implements Cache {
+
+  private final LRUCache local;
+  private final LoopbackCommunicator communicator;
+  private final String regionName;
+
+  public LoopbackSwarmCache(LRUCache local, LoopbackCommunicator communicator, String regionName) {
+    this.local = local;
+    this.communicator = communicator;
+    this.regionName = regionName;
+  }
+
+  public Object read(Object key) throws CacheException {
+    return get(key);
+  }
+
+  public Object get(Object key) throws CacheException {
+    return local.get(toSerializable(key));
+  }
+
+  public void put(Object key, Object value) throws CacheException {
+    local.put(toSerializable(key), value);
+  }
+
+  public void update(Object key, Object value) throws CacheException {
+    Serializable serializableKey = toSerializable(key);
+    local.put(serializableKey, value);
+    communicator.sendClear(regionName, serializableKey);
+  }
+
+  public void remove(Object key) throws CacheException {
+    Serializable serializableKey = toSerializable(key);
+    local.clear(serializableKey);
+    communicator.sendClear(regionName, serializableKey);
+  }
+
+  public void clear() throws CacheException {
+    local.clearAll();
+    communicator.sendClear(regionName, LoopbackCommunicator.CLEAR_ALL);
+  }
+
+  public void destroy() throws CacheException {
+    local.clearAll();
+  }
+
+  private Serializable toSerializable(Object key) {
+    if (!(key instanceof Serializable)) {
+      throw new CacheException("Keys of region " + regionName + " must be Serializable: " + key.getClass());
+    }
+    return (Serializable) key;
+  }
+
+  public void lock(Object key) throws CacheException {
+  }
+
+  public void unlock(Object key) throws CacheException {
+  }
+
+  public long nextTimestamp() {
+    return Timestamper.next();
+  }
+
+  public int getTimeout() {
+    return Timestamper.ONE_MS * 60000;
+  }
+
+  public String getRegionName() {
+    return regionName;
+  }
+
+  public long getSizeInMemory() {
+    return -1;
+  }
+
+  public long getElementCountInMemory() {
+    // LRUCache doesn't tell its size
+    return -1;
+  }
+
+  public long getElementCountOnDisk() {
+    return 0;
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Map toMap() {
+    return Collections.EMPTY_MAP;
+  }
+
+  @Override
+  public String toString() {
+    return "LoopbackSwarmCache(" + regionName + ")";
+  }
+
+}
@@ -0,0 +1,82 @@
+package hibernate_config;
+
+import java.util.Properties;
+
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.CacheProvider;
+import org.hibernate.cache.Timestamper;
+
+import net.sf.swarmcache.LRUCache;
+
+/**
+ * For several caveatemptor JVMs on the same machine: each one keeps its own
+ * local SwarmCache regions, and when one of them writes an entity it tells the
+ * others to drop their copy (invalidation only, the new state is never sent,
+ * the peers read it from the database the next time they need it). The
+ * messages go through a LoopbackCommunicator.
+ *
+ * <property name="hibernate.cache.provider_class">hibernate_config.LoopbackSwarmCacheProvider</property>
+ *
+ * <property name="hibernate.cache.loopback.base_port">45588</property>
+ *
+ * <property name="hibernate.cache.loopback.max_nodes">4</property>
+ *
+ * <property name="hibernate.cache.loopback.lru_size">10000</property>
+ *
+ * All the JVMs of the group must use the same base_port and max_nodes
+ */
+public class LoopbackSwarmCacheProvider implements CacheProvider {
+
+  public static final String BASE_PORT_PROPERTY = "hibernate.cache.loopback.base_port";
+  public static final String MAX_NODES_PROPERTY = "hibernate.cache.loopback.max_nodes";
+  public static final String LRU_SIZE_PROPERTY = "hibernate.cache.loopback.lru_size";
+
+  private LoopbackCommunicator communicator;
+  private int lruSize;
+
+  public void start(Properties properties) throws CacheException {
+    try {
+      communicator = new LoopbackCommunicator("caveatemptor",
+          Integer.parseInt(properties.getProperty(BASE_PORT_PROPERTY, "45588")),
+          Integer.parseInt(properties.getProperty(MAX_NODES_PROPERTY, "4")));
+    } catch (IllegalStateException e) {
+      throw new CacheException("Could not join the cache group", e);
+    }
+    lruSize = Integer.parseInt(properties.getProperty(LRU_SIZE_PROPERTY, "10000"));
+  }
+
+  public Cache buildCache(String regionName, Properties properties) throws CacheException {
+    if (communicator == null) {
+      throw new CacheException("LoopbackSwarmCacheProvider was not started");
+    }
+    LRUCache local = new LRUCache();
+    local.setSize(lruSize);
+    local.setType(regionName);
+    // The peers find the region by its name
+    communicator.register(regionName, local);
+    return new LoopbackSwarmCache(local, communicator, regionName);
+  }
+
+  public LoopbackCommunicator getCommunicator() {
+    return communicator;
+  }
+
+  public long nextTimestamp() {
+    return Timestamper.next();
+  }
+
+  public void stop() {
+    if (communicator != null) {
+      communicator.shutDown();
+      communicator = null;
+    }
+  }
+
+  public boolean isMinimalPutsEnabledByDefault() {
+    // Check the region before putting what was just loaded, it's cheaper than
+    // replacing an entry that is already there
+    return true;
+  }
+
+}
@@ -0,0 +1,61 @@
+package hibernate_config;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used: the entry that was not read for the longest time is the
+ * one to go. Simple, but a single scan bigger than the region replaces all of
+ * its content, the hot entries included
+ */
+public class LruPolicy implements EvictionPolicy {
+
+  private final LinkedHashMap<Object, Object> entries;
+  private long evictions;
+
+  public LruPolicy(final int maxEntries) {
+    this.entries = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+        if (size() > maxEntries) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  public Object get(Object key) {
+    return entries.get(key);
+  }
+
+  public void put(Object key, Object value) {
+    entries.put(key, value);
+  }
+
+  public void remove(Object key) {
+    entries.remove(key);
+  }
+
+  public void clear() {
+    entries.clear();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public long getEvictionCount() {
+    return evictions;
+  }
+
+  public Map<Object, Object> toMap() {
+    return new HashMap<>(entries);
+  }
+
+}
@@ -0,0 +1,257 @@
+package hibernate_config;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.Timestamper;
+import org.hibernate.util.SerializationHelper;
+
+/**
+ * A region of OffHeapCacheProvider. What Hibernate puts in the second-level
+ * cache is already disassembled state: arrays of Serializable values, like the
+ * MonetaryAmount returned by the disassemble() of our user types. Here every
+ * value is serialized into a ByteBuffer allocated outside the heap (direct or
+ * memory-mapped), so the garbage collector never sees it. Only the keys and
+ * the position of each entry stay on the heap.
+ *
+ * The buffer is filled from the start to the end. When a new value doesn't fit
+ * in the free space at the end, the live entries are first compacted at the
+ * beginning of the buffer, if that's still not enough the least recently used
+ * entries are evicted. A get() copies back to the heap only the bytes of the
+ * requested entry
+ */
+public class OffHeapCache implements Cache, EvictionCounting {
+
+  private static final Logger log = Logger.getLogger(OffHeapCache.class);
+
+  private final String regionName;
+  private final ByteBuffer buffer;
+
+  // Key -> {offset, length} in the buffer, in access order for the LRU eviction
+  private final LinkedHashMap<Object, int[]> index = new LinkedHashMap<>(16, 0.75f, true);
+  private int top;
+  private long usedBytes;
+  private long evictions;
+  private boolean destroyed;
+
+  public OffHeapCache(String regionName, ByteBuffer buffer) {
+    this.regionName = regionName;
+    this.buffer = buffer;
+  }
+
+  public Object read(Object key) throws CacheException {
+    return get(key);
+  }
+
+  public Object get(Object key) throws CacheException {
+    byte[] bytes = copy(key);
+    // Deserialize outside the lock, like put() serializes
+    return bytes == null ? null : SerializationHelper.deserialize(bytes);
+  }
+
+  private synchronized byte[] copy(Object key) {
+    int[] entry = index.get(key);
+    if (entry == null) {
+      return null;
+    }
+    byte[] bytes = new byte[entry[1]];
+    ByteBuffer view = buffer.duplicate();
+    view.position(entry[0]);
+    view.get(bytes);
+    return bytes;
+  }
+
+  public void put(Object key, Object value) throws CacheException {
+    if (value != null && !(value instanceof Serializable)) {
+      throw new CacheException("Value of region " + regionName + " is not Serializable: " + value.getClass());
+    }
+    // Serialize outside the lock, it's the slow part
+    byte[] bytes = SerializationHelper.serialize((Serializable) value);
+    store(key, bytes);
+  }
+
+  public void update(Object key, Object value) throws CacheException {
+    put(key, value);
+  }
+
+  private synchronized void store(Object key, byte[] bytes) {
+    if (destroyed) {
+      return;
+    }
+    release(index.remove(key));
+    if (bytes.length > buffer.capacity()) {
+      // It would never fit, simply don't cache it
+      return;
+    }
+
+    while (top + bytes.length > buffer.capacity()) {
+      if (usedBytes + bytes.length <= buffer.capacity()) {
+        compact();
+      } else {
+        evictEldest();
+      }
+    }
+
+    ByteBuffer view = buffer.duplicate();
+    view.position(top);
+    view.put(bytes);
+    index.put(key, new int[] { top, bytes.length });
+    top += bytes.length;
+    usedBytes += bytes.length;
+  }
+
+  private void release(int[] entry) {
+    if (entry != null) {
+      usedBytes -= entry[1];
+    }
+  }
+
+  private void evictEldest() {
+    Iterator<int[]> eldest = index.values().iterator();
+    release(eldest.next());
+    eldest.remove();
+    evictions++;
+  }
+
+  /**
+   * Move all the live entries to the start of the buffer, in the order they are
+   * in the buffer, so an entry never overwrites one not moved yet. The bytes go
+   * from buffer to buffer, nothing is copied on the heap
+   */
+  private void compact() {
+    List<int[]> entries = new ArrayList<>(index.values());
+    entries.sort(Comparator.comparingInt(entry -> entry[0]));
+
+    ByteBuffer source = buffer.duplicate();
+    ByteBuffer target = buffer.duplicate();
+    int position = 0;
+    for (int[] entry : entries) {
+      if (entry[0] != position) {
+        source.limit(entry[0] + entry[1]).position(entry[0]);
+        target.position(position);
+        target.put(source);
+        entry[0] = position;
+      }
+      position += entry[1];
+    }
+    top = position;
+  }
+
+  public synchronized void remove(Object key) throws CacheException {
+    release(index.remove(key));
+  }
+
+  public synchronized void clear() throws CacheException {
+    index.clear();
+    top = 0;
+    usedBytes = 0;
+  }
+
+  /**
+   * Free the buffer now instead of at the next GC that notices it's
+   * unreachable, the region can't be used anymore
+   */
+  public synchronized void destroy() throws CacheException {
+    if (destroyed) {
+      return;
+    }
+    clear();
+    destroyed = true;
+    free(buffer);
+  }
+
+  // Unsafe.invokeCleaner() from Java 9 on, the buffer's Cleaner before
+  private static void free(ByteBuffer buffer) {
+    if (!buffer.isDirect()) {
+      return;
+    }
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+    } catch (NoSuchMethodException e) {
+      try {
+        Method cleaner = buffer.getClass().getMethod("cleaner");
+        cleaner.setAccessible(true);
+        Object clean = cleaner.invoke(buffer);
+        clean.getClass().getMethod("clean").invoke(clean);
+      } catch (Exception java8) {
+        log.warn("Cannot free the off-heap buffer, it's freed by the GC", java8);
+      }
+    } catch (Exception e) {
+      log.warn("Cannot free the off-heap buffer, it's freed by the GC", e);
+    }
+  }
+
+  public void lock(Object key) throws CacheException {
+  }
+
+  public void unlock(Object key) throws CacheException {
+  }
+
+  public long nextTimestamp() {
+    return Timestamper.next();
+  }
+
+  public int getTimeout() {
+    return Timestamper.ONE_MS * 60000;
+  }
+
+  public String getRegionName() {
+    return regionName;
+  }
+
+  /**
+   * Bytes taken by the entries in the off-heap buffer, not on the heap
+   */
+  public synchronized long getSizeInMemory() {
+    return usedBytes;
+  }
+
+  public synchronized long getElementCountInMemory() {
+    return index.size();
+  }
+
+  public long getElementCountOnDisk() {
+    return 0;
+  }
+
+  public long getCapacity() {
+    return buffer.capacity();
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  /**
+   * Copy the whole region on the heap, only for debugging and statistics
+   */
+  @SuppressWarnings("rawtypes")
+  public synchronized Map toMap() {
+    Map<Object, Object> map = new HashMap<>();
+    for (Object key : new ArrayList<>(index.keySet())) {
+      map.put(key, SerializationHelper.deserialize(copy(key)));
+    }
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    return "OffHeapCache(" + regionName + ")";
+  }
+
+}
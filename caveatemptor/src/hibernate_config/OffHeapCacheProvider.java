@@ -0,0 +1,106 @@
+package hibernate_config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.CacheProvider;
+import org.hibernate.cache.Timestamper;
+
+/**
+ * A second-level cache that keeps the cached state out of the heap, see
+ * OffHeapCache. With a big cache most of the heap is cached entity state that
+ * lives for a long time, and every full GC has to walk all of it; outside the
+ * heap it costs nothing to the collector.
+ *
+ * <property name="hibernate.cache.provider_class">hibernate_config.OffHeapCacheProvider</property>
+ *
+ * Each region gets its own buffer of hibernate.cache.offheap.capacity bytes (a
+ * k, m or g suffix can be used, the default is 16m), a single region can be
+ * changed with hibernate.cache.offheap.<region name>.capacity. The buffers are
+ * direct buffers, if hibernate.cache.offheap.directory is set they are instead
+ * files of that directory mapped in memory, so the operating system can page
+ * them out
+ */
+public class OffHeapCacheProvider implements CacheProvider {
+
+  private static final Logger log = Logger.getLogger(OffHeapCacheProvider.class);
+
+  public static final String CAPACITY_PROPERTY = "hibernate.cache.offheap.capacity";
+  public static final String DIRECTORY_PROPERTY = "hibernate.cache.offheap.directory";
+  private static final String PROPERTY_PREFIX = "hibernate.cache.offheap.";
+  private static final String CAPACITY_SUFFIX = ".capacity";
+  private static final String DEFAULT_CAPACITY = "16m";
+
+  private long defaultCapacity;
+  private File directory;
+
+  public void start(Properties properties) throws CacheException {
+    defaultCapacity = parseCapacity(properties.getProperty(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+    String directoryName = properties.getProperty(DIRECTORY_PROPERTY);
+    if (directoryName != null) {
+      directory = new File(directoryName);
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new CacheException("Cannot create the off-heap cache directory " + directory);
+      }
+    }
+  }
+
+  public Cache buildCache(String regionName, Properties properties) throws CacheException {
+    String capacity = properties.getProperty(PROPERTY_PREFIX + regionName + CAPACITY_SUFFIX);
+    long bytes = capacity == null ? defaultCapacity : parseCapacity(capacity);
+    if (bytes > Integer.MAX_VALUE) {
+      throw new CacheException("Capacity of region " + regionName + " is bigger than 2g: " + bytes);
+    }
+
+    log.info("Off-heap region " + regionName + ": " + bytes + " bytes" + (directory != null ? ", mapped" : ""));
+    return new OffHeapCache(regionName, directory == null ? ByteBuffer.allocateDirect((int) bytes)
+        : map(new File(directory, regionName + ".cache"), (int) bytes));
+  }
+
+  private static ByteBuffer map(File file, int capacity) {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      // The mapping stays valid after the channel is closed
+      return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    } catch (IOException e) {
+      throw new CacheException("Cannot map " + file, e);
+    }
+  }
+
+  static long parseCapacity(String value) {
+    String capacity = value.trim().toLowerCase();
+    long unit = 1;
+    switch (capacity.charAt(capacity.length() - 1)) {
+    case 'k':
+      unit = 1024;
+      break;
+    case 'm':
+      unit = 1024 * 1024;
+      break;
+    case 'g':
+      unit = 1024 * 1024 * 1024;
+      break;
+    default:
+      return Long.parseLong(capacity);
+    }
+    return Long.parseLong(capacity.substring(0, capacity.length() - 1).trim()) * unit;
+  }
+
+  public long nextTimestamp() {
+    return Timestamper.next();
+  }
+
+  public void stop() {
+  }
+
+  public boolean isMinimalPutsEnabledByDefault() {
+    return false;
+  }
+
+}
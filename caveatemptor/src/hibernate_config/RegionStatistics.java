@@ -0,0 +1,147 @@
+package hibernate_config;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.cache.Cache;
+
+/**
+ * The counters of a region wrapped by StatisticsCache.
+ *
+ * Hits and misses are the reads of the application: the gets ReadWriteCache
+ * makes itself to check an entry before it writes it are not counted (see
+ * StatisticsCache). Puts are all the writes, a new key or an update of one.
+ *
+ * Not every provider knows how many entries it evicted or how many bytes it
+ * takes. When the region doesn't tell:
+ *
+ * evictions -- unknown, -1: the writes don't say which are new keys, so no
+ * estimate can be made from the puts and the entries
+ *
+ * bytes -- one put every SAMPLE_RATE is serialized to know its size, the mean
+ * size times the entries is the estimate
+ */
+public class RegionStatistics implements RegionStatisticsMBean {
+
+  static final int SAMPLE_RATE = 64;
+
+  private final Cache region;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong puts = new AtomicLong();
+  private final AtomicLong removes = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong loadNanos = new AtomicLong();
+  private final AtomicLong sampledEntries = new AtomicLong();
+  private final AtomicLong sampledBytes = new AtomicLong();
+
+  public RegionStatistics(Cache region) {
+    this.region = region;
+  }
+
+  void hit() {
+    hits.incrementAndGet();
+  }
+
+  void miss() {
+    misses.incrementAndGet();
+  }
+
+  // The get was ReadWriteCache checking the entry, not a read
+  void uncount(boolean hit) {
+    (hit ? hits : misses).decrementAndGet();
+  }
+
+  /**
+   * Return true if the caller should sample the size of this put
+   */
+  boolean put() {
+    return puts.incrementAndGet() % SAMPLE_RATE == 1;
+  }
+
+  void sampled(int bytes) {
+    sampledEntries.incrementAndGet();
+    sampledBytes.addAndGet(bytes);
+  }
+
+  void removed() {
+    removes.incrementAndGet();
+  }
+
+  void loaded(long nanos) {
+    loads.incrementAndGet();
+    loadNanos.addAndGet(nanos);
+  }
+
+  public String getRegionName() {
+    return region.getRegionName();
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public double getHitRatio() {
+    long requests = hits.get() + misses.get();
+    return requests == 0 ? 0 : (double) hits.get() / requests;
+  }
+
+  public long getPutCount() {
+    return puts.get();
+  }
+
+  public long getRemoveCount() {
+    return removes.get();
+  }
+
+  public long getEvictionCount() {
+    return EvictionCounting.of(region);
+  }
+
+  public long getEntryCount() {
+    return region.getElementCountInMemory();
+  }
+
+  public long getEstimatedBytes() {
+    long size = region.getSizeInMemory();
+    if (size >= 0) {
+      return size;
+    }
+    long entries = region.getElementCountInMemory();
+    long samples = sampledEntries.get();
+    return entries < 0 || samples == 0 ? -1 : entries * (sampledBytes.get() / samples);
+  }
+
+  /**
+   * The time between a miss and the put of the same key in the same thread,
+   * that is how long it took to read the entry from the database
+   */
+  public double getMeanLoadMillis() {
+    long count = loads.get();
+    return count == 0 ? 0 : loadNanos.get() / 1000000.0 / count;
+  }
+
+  public void reset() {
+    hits.set(0);
+    misses.set(0);
+    puts.set(0);
+    removes.set(0);
+    loads.set(0);
+    loadNanos.set(0);
+    sampledEntries.set(0);
+    sampledBytes.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s: %d hits, %d misses (%.1f%%), %d puts, %d removes, %d evictions, %d entries, %d bytes, %.3f ms mean load",
+        getRegionName(), getHitCount(), getMissCount(), getHitRatio() * 100, getPutCount(), getRemoveCount(),
+        getEvictionCount(), getEntryCount(), getEstimatedBytes(), getMeanLoadMillis());
+  }
+
+}
@@ -0,0 +1,30 @@
+package hibernate_config;
+
+/**
+ * What a cache region publishes over JMX, see RegionStatistics
+ */
+public interface RegionStatisticsMBean {
+
+  String getRegionName();
+
+  long getHitCount();
+
+  long getMissCount();
+
+  double getHitRatio();
+
+  long getPutCount();
+
+  long getRemoveCount();
+
+  long getEvictionCount();
+
+  long getEntryCount();
+
+  long getEstimatedBytes();
+
+  double getMeanLoadMillis();
+
+  void reset();
+
+}
@@ -0,0 +1,158 @@
+package hibernate_config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+
+/**
+ * A region of another provider with the entries of the last snapshot behind
+ * it, see SnapshotCacheProvider. A miss in the region looks in the snapshot,
+ * if the entry is there it's moved into the region, so the snapshot is
+ * reloaded a piece at a time, only what is asked for. Every write of a key
+ * discards it from the snapshot, the region has the newer state.
+ *
+ * SessionFactory.close() destroys the regions before it stops the provider,
+ * and a destroyed region is empty (BoundedCache) or freed (OffHeapCache): its
+ * content is taken in destroy(), while it's still there
+ */
+public class SnapshotCache implements Cache, EvictionCounting {
+
+  private final Cache region;
+  private volatile CacheSnapshot.RegionSnapshot snapshot;
+  private volatile Map<Object, Object> destroyedContent;
+
+  public SnapshotCache(Cache region, CacheSnapshot.RegionSnapshot snapshot) {
+    this.region = region;
+    this.snapshot = snapshot;
+  }
+
+  public CacheSnapshot.RegionSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  public Object read(Object key) throws CacheException {
+    return reload(key, region.read(key));
+  }
+
+  public Object get(Object key) throws CacheException {
+    return reload(key, region.get(key));
+  }
+
+  private Object reload(Object key, Object value) {
+    CacheSnapshot.RegionSnapshot regionSnapshot = snapshot;
+    if (value == null && regionSnapshot != null) {
+      value = regionSnapshot.take(key);
+      if (value != null) {
+        region.put(key, value);
+      }
+    }
+    return value;
+  }
+
+  private void discard(Object key) {
+    CacheSnapshot.RegionSnapshot regionSnapshot = snapshot;
+    if (regionSnapshot != null) {
+      regionSnapshot.discard(key);
+    }
+  }
+
+  public void put(Object key, Object value) throws CacheException {
+    discard(key);
+    region.put(key, value);
+  }
+
+  public void update(Object key, Object value) throws CacheException {
+    discard(key);
+    region.update(key, value);
+  }
+
+  public void remove(Object key) throws CacheException {
+    discard(key);
+    region.remove(key);
+  }
+
+  public void clear() throws CacheException {
+    snapshot = null;
+    region.clear();
+  }
+
+  @SuppressWarnings("unchecked")
+  public void destroy() throws CacheException {
+    try {
+      destroyedContent = toMap();
+    } finally {
+      region.destroy();
+    }
+  }
+
+  /**
+   * What toMap() returned right before the region was destroyed, null if it
+   * wasn't
+   */
+  public Map<Object, Object> getDestroyedContent() {
+    return destroyedContent;
+  }
+
+  public void lock(Object key) throws CacheException {
+    region.lock(key);
+  }
+
+  public void unlock(Object key) throws CacheException {
+    region.unlock(key);
+  }
+
+  public long nextTimestamp() {
+    return region.nextTimestamp();
+  }
+
+  public int getTimeout() {
+    return region.getTimeout();
+  }
+
+  public String getRegionName() {
+    return region.getRegionName();
+  }
+
+  public long getSizeInMemory() {
+    return region.getSizeInMemory();
+  }
+
+  public long getElementCountInMemory() {
+    return region.getElementCountInMemory();
+  }
+
+  /**
+   * The entries still in the snapshot
+   */
+  public long getElementCountOnDisk() {
+    CacheSnapshot.RegionSnapshot regionSnapshot = snapshot;
+    return regionSnapshot == null ? 0 : regionSnapshot.size();
+  }
+
+  public long getEvictionCount() {
+    return EvictionCounting.of(region);
+  }
+
+  /**
+   * What goes in the next snapshot: the entries of the region and the ones of
+   * the last snapshot never asked for, still valid
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public Map toMap() {
+    Map<Object, Object> map = new HashMap<>();
+    CacheSnapshot.RegionSnapshot regionSnapshot = snapshot;
+    if (regionSnapshot != null) {
+      map.putAll(regionSnapshot.getEntries());
+    }
+    map.putAll(region.toMap());
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    return "SnapshotCache(" + region + ")";
+  }
+
+}
@@ -0,0 +1,138 @@
+package hibernate_config;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.CacheProvider;
+import org.hibernate.util.ReflectHelper;
+
+/**
+ * After a rolling restart every node starts with an empty cache and it takes
+ * minutes to fill it again. This provider wraps the regions of another one and
+ * when the SessionFactory is closed (SessionFactoryRegistry.shutdown()) writes
+ * the content of some regions to a snapshot file, see CacheSnapshot. The next
+ * SessionFactory maps the file and each region gets back its entries one by
+ * one when they are missed, see SnapshotCache.
+ *
+ * Only regions that change rarely are worth it, listed in snapshot.regions. An
+ * entry that changed in the database while the node was down must not come
+ * back: every region is stamped with the stamp of the mappings (set by
+ * AuctionBootstrap), a region written with other mappings is ignored, and
+ * CacheSnapshotValidator compares the version of each entry with the one in
+ * the database before the factory is used.
+ *
+ * It must be the outermost provider, so it sees the entries decoded:
+ *
+ * <property name="hibernate.cache.provider_class">hibernate_config.SnapshotCacheProvider</property>
+ *
+ * <property name="hibernate.cache.snapshot.provider_class">hibernate_config.BoundedCacheProvider</property>
+ *
+ * <property name="hibernate.cache.snapshot.file">/var/cache/caveatemptor/auction.snapshot</property>
+ *
+ * <property name="hibernate.cache.snapshot.regions">model.Category,model.Bid,model.User</property>
+ */
+public class SnapshotCacheProvider implements CacheProvider {
+
+  private static final Logger log = Logger.getLogger(SnapshotCacheProvider.class);
+
+  public static final String PROVIDER_PROPERTY = "hibernate.cache.snapshot.provider_class";
+  public static final String FILE_PROPERTY = "hibernate.cache.snapshot.file";
+  public static final String REGIONS_PROPERTY = "hibernate.cache.snapshot.regions";
+  public static final String STAMP_PROPERTY = "hibernate.cache.snapshot.stamp";
+
+  private final ConcurrentMap<String, SnapshotCache> regions = new ConcurrentHashMap<>();
+  private CacheProvider provider;
+  private File file;
+  private String stamp;
+  private Set<String> regionNames;
+  private CacheSnapshot snapshot;
+
+  public void start(Properties properties) throws CacheException {
+    String providerClass = properties.getProperty(PROVIDER_PROPERTY);
+    String fileName = properties.getProperty(FILE_PROPERTY);
+    if (providerClass == null || fileName == null) {
+      throw new CacheException(PROVIDER_PROPERTY + " and " + FILE_PROPERTY + " must be set");
+    }
+    try {
+      provider = (CacheProvider) ReflectHelper.classForName(providerClass).newInstance();
+    } catch (Exception e) {
+      throw new CacheException("Could not instantiate cache provider " + providerClass, e);
+    }
+    provider.start(properties);
+
+    file = new File(fileName);
+    stamp = properties.getProperty(STAMP_PROPERTY, "");
+    regionNames = new HashSet<>(Arrays.asList(properties.getProperty(REGIONS_PROPERTY, "").trim().split("\\s*,\\s*")));
+    snapshot = CacheSnapshot.open(file);
+  }
+
+  public Cache buildCache(String regionName, Properties properties) throws CacheException {
+    Cache region = provider.buildCache(regionName, properties);
+    if (!regionNames.contains(regionName)) {
+      return region;
+    }
+    SnapshotCache cache = new SnapshotCache(region, snapshot == null ? null : snapshot.getRegion(regionName, stamp));
+    regions.put(regionName, cache);
+    return cache;
+  }
+
+  /**
+   * The regions written to the snapshot, by name
+   */
+  public Map<String, SnapshotCache> getRegions() {
+    return regions;
+  }
+
+  public long nextTimestamp() {
+    return provider.nextTimestamp();
+  }
+
+  public void stop() {
+    if (!regions.isEmpty()) {
+      try {
+        Map<String, Map<Object, Object>> content = new LinkedHashMap<>();
+        long entries = 0;
+        for (Map.Entry<String, SnapshotCache> region : regions.entrySet()) {
+          // The factory destroyed the region already, it's empty now
+          Map<Object, Object> map = region.getValue().getDestroyedContent();
+          if (map == null) {
+            @SuppressWarnings("unchecked")
+            Map<Object, Object> live = region.getValue().toMap();
+            map = live;
+          }
+          if (map.values().stream().anyMatch(value -> value instanceof byte[])) {
+            // Encoded by a CompactEntryCacheProvider below, the symbols of
+            // this JVM would be needed to read them
+            log.warn("Region " + region.getKey() + " holds encoded entries, it's not written to the snapshot: "
+                + "SnapshotCacheProvider must be outside CompactEntryCacheProvider");
+            continue;
+          }
+          content.put(region.getKey(), map);
+          entries += map.size();
+        }
+        CacheSnapshot.write(file, stamp, content);
+        log.info("Cache snapshot " + file + " written: " + entries + " entries of " + content.keySet());
+      } catch (RuntimeException e) {
+        // Closing the factory must not fail because of the snapshot
+        log.warn("Cannot write the cache snapshot " + file, e);
+      }
+      regions.clear();
+    }
+    provider.stop();
+  }
+
+  public boolean isMinimalPutsEnabledByDefault() {
+    return provider.isMinimalPutsEnabledByDefault();
+  }
+
+}
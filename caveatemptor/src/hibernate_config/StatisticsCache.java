@@ -0,0 +1,172 @@
+package hibernate_config;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.ReadWriteCache;
+import org.hibernate.util.SerializationHelper;
+
+/**
+ * Wrap a region of another provider and count what happens to it, see
+ * StatisticsCacheProvider
+ */
+public class StatisticsCache implements Cache {
+
+  // Key -> time of the miss, per thread, to measure how long the load took
+  private static final ThreadLocal<Map<Object, Long>> pendingLoads = ThreadLocal.withInitial(HashMap::new);
+  private static final int MAX_PENDING_LOADS = 64;
+
+  // The last get of the thread, until the thread writes or gets again
+  private static final ThreadLocal<LastGet> lastGet = new ThreadLocal<>();
+
+  private static final class LastGet {
+
+    final RegionStatistics statistics;
+    final Object key;
+    final boolean hit;
+    final boolean pendingLoad;
+
+    LastGet(RegionStatistics statistics, Object key, boolean hit, boolean pendingLoad) {
+      this.statistics = statistics;
+      this.key = key;
+      this.hit = hit;
+      this.pendingLoad = pendingLoad;
+    }
+
+  }
+
+  private final Cache region;
+  private final RegionStatistics statistics;
+
+  public StatisticsCache(Cache region) {
+    this.region = region;
+    this.statistics = new RegionStatistics(region);
+  }
+
+  public RegionStatistics getStatistics() {
+    return statistics;
+  }
+
+  public Object read(Object key) throws CacheException {
+    return count(key, region.read(key));
+  }
+
+  public Object get(Object key) throws CacheException {
+    return count(key, region.get(key));
+  }
+
+  private Object count(Object key, Object value) {
+    boolean pendingLoad = false;
+    if (value != null) {
+      statistics.hit();
+    } else {
+      statistics.miss();
+      Map<Object, Long> pending = pendingLoads.get();
+      if (pending.size() >= MAX_PENDING_LOADS) {
+        // Misses never followed by a put, like a row that doesn't exist
+        pending.clear();
+      }
+      // A miss of the same key before this one is when the load started
+      pendingLoad = pending.putIfAbsent(key, System.nanoTime()) == null;
+    }
+    lastGet.set(new LastGet(statistics, key, value != null, pendingLoad));
+    return value;
+  }
+
+  /**
+   * ReadWriteCache gets the entry of a key before its put(), lock(), release()
+   * and afterUpdate() write an Item or a Lock, that get is not a read: when the
+   * thread writes a Lockable to the key it just got, the get is taken back
+   */
+  private void written(Object key, Object value) {
+    LastGet get = lastGet.get();
+    if (get == null) {
+      return;
+    }
+    lastGet.remove();
+    if (value instanceof ReadWriteCache.Lockable && get.statistics == statistics && get.key.equals(key)) {
+      statistics.uncount(get.hit);
+      if (get.pendingLoad) {
+        pendingLoads.get().remove(key);
+      }
+    }
+  }
+
+  public void put(Object key, Object value) throws CacheException {
+    written(key, value);
+    Long missed = pendingLoads.get().remove(key);
+    if (missed != null) {
+      statistics.loaded(System.nanoTime() - missed);
+    }
+    if (statistics.put() && value instanceof Serializable) {
+      statistics.sampled(SerializationHelper.serialize((Serializable) value).length);
+    }
+    region.put(key, value);
+  }
+
+  public void update(Object key, Object value) throws CacheException {
+    written(key, value);
+    statistics.put();
+    region.update(key, value);
+  }
+
+  public void remove(Object key) throws CacheException {
+    written(key, null);
+    statistics.removed();
+    region.remove(key);
+  }
+
+  public void clear() throws CacheException {
+    region.clear();
+  }
+
+  public void destroy() throws CacheException {
+    region.destroy();
+  }
+
+  public void lock(Object key) throws CacheException {
+    region.lock(key);
+  }
+
+  public void unlock(Object key) throws CacheException {
+    region.unlock(key);
+  }
+
+  public long nextTimestamp() {
+    return region.nextTimestamp();
+  }
+
+  public int getTimeout() {
+    return region.getTimeout();
+  }
+
+  public String getRegionName() {
+    return region.getRegionName();
+  }
+
+  public long getSizeInMemory() {
+    return region.getSizeInMemory();
+  }
+
+  public long getElementCountInMemory() {
+    return region.getElementCountInMemory();
+  }
+
+  public long getElementCountOnDisk() {
+    return region.getElementCountOnDisk();
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Map toMap() {
+    return region.toMap();
+  }
+
+  @Override
+  public String toString() {
+    return "StatisticsCache(" + region + ")";
+  }
+
+}
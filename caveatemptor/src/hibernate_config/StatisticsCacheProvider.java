@@ -0,0 +1,149 @@
+package hibernate_config;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.CacheProvider;
+import org.hibernate.cfg.Environment;
+import org.hibernate.util.ReflectHelper;
+
+/**
+ * Hibernate statistics tell hits, misses and puts of a region, but not how many
+ * entries were evicted, how much memory the region takes or how long it takes
+ * to load what is missing, and they must be read from code. This provider wraps
+ * the regions of the real provider, counts everything (see RegionStatistics)
+ * and publishes each region, entity, collection and query regions alike, as an
+ * MBean named caveatemptor:type=CacheRegion,factory=<factory>,name=<region
+ * name>. Every database has regions with the same names, so factory tells
+ * them apart: AuctionBootstrap sets it to the configuration resource,
+ * otherwise it's hibernate.session_factory_name. A name already taken by
+ * another provider is left alone, that region is not published. The
+ * statistics of all the regions are also written to the log every
+ * log_interval seconds (0 to disable it).
+ *
+ * <property name="hibernate.cache.provider_class">hibernate_config.StatisticsCacheProvider</property>
+ *
+ * <property name="hibernate.cache.statistics.provider_class">hibernate_config.OffHeapCacheProvider</property>
+ *
+ * <property name="hibernate.cache.statistics.log_interval">60</property>
+ */
+public class StatisticsCacheProvider implements CacheProvider {
+
+  private static final Logger log = Logger.getLogger(StatisticsCacheProvider.class);
+
+  public static final String PROVIDER_PROPERTY = "hibernate.cache.statistics.provider_class";
+  public static final String LOG_INTERVAL_PROPERTY = "hibernate.cache.statistics.log_interval";
+  public static final String FACTORY_PROPERTY = "hibernate.cache.statistics.factory";
+
+  private static final String OBJECT_NAME = "caveatemptor:type=CacheRegion";
+
+  private final ConcurrentMap<String, RegionStatistics> regions = new ConcurrentHashMap<>();
+  // The MBeans this provider registered, the only ones it unregisters
+  private final ConcurrentMap<String, ObjectName> registered = new ConcurrentHashMap<>();
+  private String factory;
+  private CacheProvider provider;
+  private ScheduledExecutorService logger;
+
+  public void start(Properties properties) throws CacheException {
+    String providerClass = properties.getProperty(PROVIDER_PROPERTY);
+    if (providerClass == null) {
+      throw new CacheException(PROVIDER_PROPERTY + " is not set, no provider to take the statistics of");
+    }
+    try {
+      Class<?> type = ReflectHelper.classForName(providerClass);
+      provider = (CacheProvider) type.getDeclaredConstructor().newInstance();
+    } catch (Exception e) {
+      throw new CacheException("Could not instantiate cache provider " + providerClass, e);
+    }
+    provider.start(properties);
+    factory = properties.getProperty(FACTORY_PROPERTY,
+        properties.getProperty(Environment.SESSION_FACTORY_NAME, "default"));
+
+    int interval = Integer.parseInt(properties.getProperty(LOG_INTERVAL_PROPERTY, "60"));
+    if (interval > 0) {
+      logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cache-statistics");
+        thread.setDaemon(true);
+        return thread;
+      });
+      logger.scheduleAtFixedRate(this::logStatistics, interval, interval, TimeUnit.SECONDS);
+    }
+  }
+
+  public Cache buildCache(String regionName, Properties properties) throws CacheException {
+    StatisticsCache cache = new StatisticsCache(provider.buildCache(regionName, properties));
+    regions.put(regionName, cache.getStatistics());
+    register(regionName, cache.getStatistics());
+    return cache;
+  }
+
+  private void register(String regionName, RegionStatistics statistics) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      ObjectName name = new ObjectName(OBJECT_NAME + ",factory=" + ObjectName.quote(factory) + ",name="
+          + ObjectName.quote(regionName));
+      server.registerMBean(statistics, name);
+      registered.put(regionName, name);
+    } catch (InstanceAlreadyExistsException e) {
+      log.warn("The statistics of region " + regionName + " are not published, another factory named " + factory
+          + " has them");
+    } catch (JMException e) {
+      log.warn("Could not register the statistics of region " + regionName, e);
+    }
+  }
+
+  private void unregister(ObjectName name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (JMException e) {
+      // Already gone
+    }
+  }
+
+  public void logStatistics() {
+    for (RegionStatistics statistics : regions.values()) {
+      log.info(statistics);
+    }
+  }
+
+  public Map<String, RegionStatistics> getStatistics() {
+    return regions;
+  }
+
+  public long nextTimestamp() {
+    return provider.nextTimestamp();
+  }
+
+  public void stop() {
+    if (logger != null) {
+      logger.shutdownNow();
+      logger = null;
+    }
+    logStatistics();
+    for (ObjectName name : registered.values()) {
+      unregister(name);
+    }
+    registered.clear();
+    regions.clear();
+    provider.stop();
+  }
+
+  public boolean isMinimalPutsEnabledByDefault() {
+    return provider.isMinimalPutsEnabledByDefault();
+  }
+
+}
@@ -0,0 +1,218 @@
+package hibernate_config;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * W-TinyLFU, the policy of Caffeine, in a simple form. The region is split in
+ * three LRU segments:
+ *
+ * window -- 1% of the entries, every new entry starts here
+ *
+ * probation -- entries that left the window and were not read again yet
+ *
+ * protected -- 80% of the main space, entries read at least once in probation
+ *
+ * When an entry leaves the window it has to win its place in the main space: it
+ * is admitted only if it was used more often than the entry it would replace
+ * (the eldest of probation), otherwise it's the one evicted. How often a key was
+ * used is counted by a small frequency sketch, that also remembers keys that
+ * are not in the region anymore, and halves all its counters from time to time
+ * so old popularity fades away.
+ *
+ * The effect is that a scan, like the nightly report over ITEM, goes through
+ * the window and dies there: each scanned row was used once, the hot items
+ * many times
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+
+  private final int windowMax;
+  private final int mainMax;
+  private final int protectedMax;
+
+  private final LinkedHashMap<Object, Object> window = new LinkedHashMap<>();
+  private final LinkedHashMap<Object, Object> probation = new LinkedHashMap<>();
+  private final LinkedHashMap<Object, Object> protectedSegment = new LinkedHashMap<>();
+  private final List<LinkedHashMap<Object, Object>> segments = Arrays.asList(window, probation, protectedSegment);
+  private final FrequencySketch sketch;
+  private long evictions;
+
+  public TinyLfuPolicy(int maxEntries) {
+    if (maxEntries < 2) {
+      throw new IllegalArgumentException("A TinyLFU region needs at least 2 entries");
+    }
+    this.windowMax = Math.max(1, maxEntries / 100);
+    this.mainMax = maxEntries - windowMax;
+    this.protectedMax = (int) (mainMax * 0.8);
+    this.sketch = new FrequencySketch(maxEntries);
+  }
+
+  public Object get(Object key) {
+    sketch.increment(key);
+
+    // Values are never null, remove() tells where the key was
+    Object value = window.remove(key);
+    if (value != null) {
+      window.put(key, value);
+      return value;
+    }
+    value = probation.remove(key);
+    if (value != null) {
+      // Read again: promote it
+      protectedSegment.put(key, value);
+      if (protectedSegment.size() > protectedMax) {
+        Map.Entry<Object, Object> demoted = removeEldest(protectedSegment);
+        probation.put(demoted.getKey(), demoted.getValue());
+      }
+      return value;
+    }
+    value = protectedSegment.remove(key);
+    if (value != null) {
+      protectedSegment.put(key, value);
+    }
+    return value;
+  }
+
+  public void put(Object key, Object value) {
+    for (LinkedHashMap<Object, Object> segment : segments) {
+      if (segment.containsKey(key)) {
+        // Same position, new value
+        segment.put(key, value);
+        return;
+      }
+    }
+
+    sketch.increment(key);
+    window.put(key, value);
+    if (window.size() > windowMax) {
+      Map.Entry<Object, Object> candidate = removeEldest(window);
+      admit(candidate.getKey(), candidate.getValue());
+    }
+  }
+
+  private void admit(Object key, Object value) {
+    if (probation.size() + protectedSegment.size() < mainMax) {
+      probation.put(key, value);
+      return;
+    }
+
+    LinkedHashMap<Object, Object> victims = probation.isEmpty() ? protectedSegment : probation;
+    Object victim = victims.keySet().iterator().next();
+    if (sketch.frequency(key) > sketch.frequency(victim)) {
+      victims.remove(victim);
+      probation.put(key, value);
+    }
+    // Otherwise the candidate is the one dropped
+    evictions++;
+  }
+
+  private static Map.Entry<Object, Object> removeEldest(LinkedHashMap<Object, Object> segment) {
+    Iterator<Map.Entry<Object, Object>> eldest = segment.entrySet().iterator();
+    Map.Entry<Object, Object> entry = eldest.next();
+    Map.Entry<Object, Object> copy = new AbstractMap.SimpleEntry<>(entry);
+    eldest.remove();
+    return copy;
+  }
+
+  public void remove(Object key) {
+    if (window.remove(key) == null && probation.remove(key) == null) {
+      protectedSegment.remove(key);
+    }
+  }
+
+  public void clear() {
+    window.clear();
+    probation.clear();
+    protectedSegment.clear();
+  }
+
+  public int size() {
+    return window.size() + probation.size() + protectedSegment.size();
+  }
+
+  public long getEvictionCount() {
+    return evictions;
+  }
+
+  public Map<Object, Object> toMap() {
+    Map<Object, Object> map = new HashMap<>();
+    for (LinkedHashMap<Object, Object> segment : segments) {
+      map.putAll(segment);
+    }
+    return map;
+  }
+
+  /**
+   * A count-min sketch with 4 rows of 4 bit counters (kept in ints for
+   * simplicity): the frequency of a key is the minimum of its 4 counters, so
+   * collisions can only make it bigger. After 10 increments per entry of the
+   * region all the counters are halved
+   */
+  static final class FrequencySketch {
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+        0xcbf29ce484222325L };
+    private static final int MAX_COUNT = 15;
+
+    private final int[] table;
+    private final int width;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int maxEntries) {
+      int size = Integer.highestOneBit(Math.max(16, maxEntries - 1)) << 1;
+      this.width = size;
+      this.table = new int[SEEDS.length * size];
+      this.sampleSize = 10 * maxEntries;
+    }
+
+    private int index(int hash, int row) {
+      long h = (hash + SEEDS[row]) * SEEDS[row];
+      h += h >>> 32;
+      return row * width + ((int) h & (width - 1));
+    }
+
+    void increment(Object key) {
+      int hash = spread(key.hashCode());
+      boolean added = false;
+      for (int row = 0; row < SEEDS.length; row++) {
+        int i = index(hash, row);
+        if (table[i] < MAX_COUNT) {
+          table[i]++;
+          added = true;
+        }
+      }
+      if (added && ++additions == sampleSize) {
+        reset();
+      }
+    }
+
+    int frequency(Object key) {
+      int hash = spread(key.hashCode());
+      int frequency = MAX_COUNT;
+      for (int row = 0; row < SEEDS.length; row++) {
+        frequency = Math.min(frequency, table[index(hash, row)]);
+      }
+      return frequency;
+    }
+
+    private void reset() {
+      for (int i = 0; i < table.length; i++) {
+        table[i] >>>= 1;
+      }
+      additions /= 2;
+    }
+
+    private static int spread(int hash) {
+      int h = hash * 0x9e3779b9;
+      return h ^ (h >>> 16);
+    }
+
+  }
+
+}
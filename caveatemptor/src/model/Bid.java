@@ -1,10 +1,24 @@
 package model;
 
+import java.util.Date;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Temporal;
+import javax.persistence.Table;
+import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
+
+import org.hibernate.proxy.HibernateProxy;
 
 import persistence.MonetaryAmount;
 
@@ -21,11 +35,33 @@ import persistence.MonetaryAmount;
  */
 
 @Entity
+@NamedQueries({
+    @NamedQuery(name = "Bid.max", query = "from Bid b where b.item.id = :itemId order by b.bidAmount desc"),
+    @NamedQuery(name = "Bid.history", query = "from Bid b where b.item.id = :itemId order by b.created desc, b.id desc"),
+    @NamedQuery(name = "Bid.count", query = "select count(b) from Bid b where b.item.id = :itemId"),
+    // The streams read BID only, a shard has no ITEM or USERS table (see BidStream)
+    @NamedQuery(name = "Bid.streamOfItem", query = "from Bid b where b.item.id = :itemId order by b.created, b.id"),
+    @NamedQuery(name = "Bid.streamOfPeriod", query = "from Bid b "
+        + "where b.created >= :from and b.created < :to order by b.created, b.id"),
+    @NamedQuery(name = "Bid.lastPosition", query = "select max(b.position) from Bid b where b.itemInverse.id = :itemId") })
+// Two bids can never take the same place in Item.bidsWithPosition, and the
+// index also makes the lookup of the last position cheap
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = { "ITEM_ID_INVERSE", "BID_POSITION" }))
 @org.hibernate.annotations.Entity(mutable = false)
 @org.hibernate.annotations.AccessType("field")
+// A bid never changes once placed, so a read-only cache region is enough
+@org.hibernate.annotations.Cache(usage = org.hibernate.annotations.CacheConcurrencyStrategy.READ_ONLY)
 public class Bid {
 
+  /**
+   * With an identity column Hibernate must execute the INSERT right away to know
+   * the id, so inserts are never batched. A sequence with an allocation size of
+   * 50 gives 50 ids per round trip (hi/lo) and lets BidIngestionPipeline send
+   * its bids in JDBC batches
+   */
   @Id
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "BID_SEQUENCE")
+  @SequenceGenerator(name = "BID_SEQUENCE", sequenceName = "BID_SEQUENCE", allocationSize = 50)
   private Long id;
 
   @org.hibernate.annotations.Type(type = "monetary_amount_eur")
@@ -132,19 +168,104 @@ public class Bid {
    * is no conceptual reason to implement it
    */
 
-  @ManyToOne(targetEntity = model.Item.class)
+  // Lazy: with sharded bids (see BidShardRouter) there is no ITEM table in the
+  // database of the bid, the item must never be selected from there. Use
+  // getItemId() when only the id is needed
+  @ManyToOne(targetEntity = model.Item.class, fetch = FetchType.LAZY)
   @JoinColumn(name = "ITEM_ID") // , nullable = false)
   private Item item;
 
-  @ManyToOne
-  @JoinColumn(name = "ITEM_ID_INVERSE", nullable = false, updatable = false, insertable = false)
+  /**
+   * The bid writes its own place in Item.bidsWithPosition: the list is mapped
+   * with insertable = false and updatable = false, so appending a bid is a
+   * single INSERT with ITEM_ID_INVERSE and BID_POSITION already set, instead
+   * of the list being loaded and its positions written again (see
+   * BidListAppender). Bids not in the list leave both null, so ITEM_ID_INVERSE
+   * is nullable: a schema created when it was NOT NULL must drop the
+   * constraint before bids are saved outside the list
+   */
+  @ManyToOne(fetch = FetchType.LAZY)
+  @JoinColumn(name = "ITEM_ID_INVERSE", updatable = false)
   private Item itemInverse;
 
-  @Column(name = "BID_POSITION")
-  private int position;
+  @Column(name = "BID_POSITION", updatable = false)
+  private Integer position;
+
+  @ManyToOne(fetch = FetchType.LAZY)
+  @JoinColumn(name = "BIDDER_ID", nullable = false, updatable = false)
+  private User bidder;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "CREATED", nullable = false, updatable = false)
+  private Date created;
+
+  // For Hibernate, a bid is always created with all its values
+  protected Bid() {
+  }
+
+  public Bid(MonetaryAmount bidAmount, Item item, User bidder) {
+    this(bidAmount, item, bidder, new Date());
+  }
+
+  // A bid replayed from BidJournal keeps the time it was accepted
+  public Bid(MonetaryAmount bidAmount, Item item, User bidder, Date created) {
+    this.bidAmount = bidAmount;
+    this.item = item;
+    this.bidder = bidder;
+    this.created = created;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public MonetaryAmount getBidAmount() {
+    return bidAmount;
+  }
+
+  public Item getItem() {
+    return item;
+  }
+
+  /**
+   * The id of the item without loading it, the proxy already knows it
+   */
+  public Long getItemId() {
+    if (item instanceof HibernateProxy) {
+      return (Long) ((HibernateProxy) item).getHibernateLazyInitializer().getIdentifier();
+    }
+    return item == null ? null : item.getId();
+  }
+
+  public User getBidder() {
+    return bidder;
+  }
+
+  /**
+   * The id of the bidder without loading it, like getItemId()
+   */
+  public Long getBidderId() {
+    if (bidder instanceof HibernateProxy) {
+      return (Long) ((HibernateProxy) bidder).getHibernateLazyInitializer().getIdentifier();
+    }
+    return bidder == null ? null : bidder.getId();
+  }
+
+  public Date getCreated() {
+    return created;
+  }
 
   public void setItem(Item item) {
     this.item = item;
   }
 
+  public Integer getPosition() {
+    return position;
+  }
+
+  public void appendTo(Item item, int position) {
+    this.itemInverse = item;
+    this.position = position;
+  }
+
 }
@@ -0,0 +1,50 @@
+package model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Version;
+
+/**
+ * How far BidJournalApplier got in a bid journal: the sequence of the next
+ * record to apply. It's updated in the same transaction that inserts the bids
+ * of the records, so after a crash either both are there or none, and the
+ * applier starts again exactly where it stopped. It's versioned, so two
+ * appliers on the same journal can't both move it from the same value
+ */
+@Entity
+@Table(name = "BID_JOURNAL_OFFSET")
+public class BidJournalOffset {
+
+  @Id
+  @Column(name = "JOURNAL_NAME", length = 255)
+  private String journalName;
+
+  @Column(name = "NEXT_SEQUENCE", nullable = false)
+  private long nextSequence;
+
+  @Version
+  @Column(name = "OBJ_VERSION")
+  private int version;
+
+  protected BidJournalOffset() {
+  }
+
+  public BidJournalOffset(String journalName) {
+    this.journalName = journalName;
+  }
+
+  public String getJournalName() {
+    return journalName;
+  }
+
+  public long getNextSequence() {
+    return nextSequence;
+  }
+
+  public void setNextSequence(long nextSequence) {
+    this.nextSequence = nextSequence;
+  }
+
+}
@@ -14,19 +14,55 @@ import javax.persistence.Entity;
 import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
+import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
+import javax.persistence.Version;
 
 import org.hibernate.annotations.CollectionId;
 
 @Entity
 @Table(name = "CATEGORY")
+@org.hibernate.annotations.Cache(usage = org.hibernate.annotations.CacheConcurrencyStrategy.READ_WRITE)
 public class Category {
 
   private Long id;
   private String name;
+
+  @Version
+  @Column(name = "OBJ_VERSION")
+  private int version;
+
+  @ManyToOne
+  @JoinColumn(name = "PARENT_CATEGORY_ID")
   private Category parentCategory;
+
+  /**
+   * The category tree is read all the time and changes maybe once a day, so
+   * both collections are cached. The cache keeps only the identifiers of the
+   * elements, the categories and the items themselves come from their own
+   * regions, so with a warm cache a traversal of the whole tree doesn't hit the
+   * database at all.
+   *
+   * Both sides are inverse, but Hibernate still evicts the cached collection
+   * when the in-memory collection is modified, that's why addChildCategory(),
+   * removeChildCategory() and addItem() always update these collections and not
+   * only the owning side. The items are the rows of CATEGORY_ITEM, written by
+   * their owning side Item.categories
+   */
+  @OneToMany(mappedBy = "parentCategory")
+  @org.hibernate.annotations.Cache(usage = org.hibernate.annotations.CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
   private Set<Category> childCategories = new HashSet<>();
+
+  /**
+   * A category of the first level has hundreds of thousands of items, so items
+   * is extra lazy: size() and contains() run a query instead of loading the
+   * set. add() from addItem() checks with a query that the item is not there
+   * yet and then only queues the element
+   */
+  @ManyToMany(mappedBy = "categories")
+  @org.hibernate.annotations.Cache(usage = org.hibernate.annotations.CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
+  @org.hibernate.annotations.LazyCollection(org.hibernate.annotations.LazyCollectionOption.EXTRA)
   private Set<Item> items = new HashSet<>();
 
   public Category() {
@@ -144,9 +180,11 @@ public class Category {
   @org.hibernate.annotations.IndexColumn(name = "DISPLAY_POSITION")
   private List<Item> itemListManyToMany = new ArrayList<>();
 
+  // Written once, through Item.categories: itemSetManyToMany maps the same
+  // CATEGORY_ITEM rows, adding the item there too would insert the row twice
   public void addItem(Item item) {
-    this.itemSetManyToMany.add(item);
-    item.getCategoriesSetManyToMany().add(this);
+    this.items.add(item);
+    item.getCategories().add(this);
   }
 
   public Long getId() {
@@ -3,6 +3,7 @@ package model;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Set;
 import java.util.SortedMap;
@@ -17,6 +18,7 @@ import java.util.HashMap;
 This is an example to show that a lot of hibernate annotations does not exist in JPA
 */
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
 import javax.persistence.Lob;
@@ -24,11 +26,13 @@ import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
 import javax.persistence.MapKey;
 import javax.persistence.MapKeyColumn;
+import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 import javax.persistence.Transient;
+import javax.persistence.Version;
 import javax.persistence.AttributeOverride;
 import javax.persistence.AttributeOverrides;
 import javax.persistence.CascadeType;
@@ -46,13 +50,21 @@ import persistence.MonetaryAmount;
 // same name but in different packages
 @Entity(name = "AuctionItem")
 @Table(name = "ITEM")
+@NamedQuery(name = "AuctionItem.description", query = "select i.description from AuctionItem i where i.id = :itemid")
 @BatchSize(size = 10)
+@org.hibernate.annotations.Cache(usage = org.hibernate.annotations.CacheConcurrencyStrategy.READ_WRITE)
 @DiscriminatorFormula("case when ITEM_IS_SPECIAL is not null then A else B")
 public class Item {
 
   private Long id;
   private String name;
 
+  // Incremented by Hibernate at every update, it's also how a cache snapshot
+  // reloaded after a restart knows if an entry is stale (CacheSnapshotValidator)
+  @Version
+  @Column(name = "OBJ_VERSION")
+  private int version;
+
   /**
    * Hibernate provide a serialization fallback for property which is
    * serializable, of course in database the byte stream is saved as a sequence of
@@ -106,6 +118,14 @@ public class Item {
   @Transient
   private BigDecimal totalIncludingTax;
 
+  // The owning side of Category.items, on the same CATEGORY_ITEM table of
+  // Category.itemSetManyToMany. Cached like Category.items, the categories of
+  // an item change about as often as the tree: CacheWarmer fetches it with the
+  // ending auctions, so the item page doesn't query the join table
+  @ManyToMany
+  @org.hibernate.annotations.Cache(usage = org.hibernate.annotations.CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
+  @JoinTable(name = "CATEGORY_ITEM", joinColumns = { @JoinColumn(name = "ITEM_ID") }, inverseJoinColumns = {
+      @JoinColumn(name = "CATEGORY_ID") })
   private Set<Category> categories = new HashSet<>();
 
   public Item() {
@@ -317,10 +337,19 @@ public class Item {
    */
   @OneToMany(mappedBy = "item", cascade = { CascadeType.PERSIST, CascadeType.MERGE, CascadeType.REMOVE })
   @org.hibernate.annotations.Cascade(value = org.hibernate.annotations.CascadeType.DELETE_ORPHAN)
+  // Only the identifiers of the bids are cached, the bids themselves are in the
+  // Bid region. Evicted by BidCacheInvalidator when a bid is placed
+  @org.hibernate.annotations.Cache(usage = org.hibernate.annotations.CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
+  // Extra lazy: size() is a count(*), contains() a query for that bid only,
+  // and add() is queued, an auction with thousands of bids isn't loaded to
+  // show how many there are. Iterating still loads all of them
+  @org.hibernate.annotations.LazyCollection(org.hibernate.annotations.LazyCollectionOption.EXTRA)
   private Collection<Bid> bids = new ArrayList<>();
 
+  // Read only: adding to it would load all the bids and write every
+  // position again, a bid is appended by BidListAppender with one INSERT
   @OneToMany
-  @JoinColumn(name = "ITEM_ID_INVERSE", nullable = false)
+  @JoinColumn(name = "ITEM_ID_INVERSE", insertable = false, updatable = false)
   @org.hibernate.annotations.IndexColumn(name = "BID_POSITION")
   private List<Bid> bidsWithPosition = new ArrayList<>();
 
@@ -332,11 +361,24 @@ public class Item {
     return bids;
   }
 
+  // The "N bids" of the item page, a count query while bids is not loaded. It
+  // counts the BID table of the auction database, empty when the bids are
+  // sharded (see BidShardRouter): then ask ItemDAO.getBidCount()
+  public int getBidCount() {
+    return bids.size();
+  }
+
+  public List<Bid> getBidsWithPosition() {
+    return Collections.unmodifiableList(bidsWithPosition);
+  }
+
   public void addBid(Bid bid) {
     bid.setItem(this);
 
-    // This is useless as explained in mappedBy in Bid.class
-    // bids.add(bid);
+    // Ignored by the database as explained in mappedBy in Bid.class, but with
+    // extra lazy bids it's only queued, the bids are not loaded, and it keeps
+    // getBidCount() right in this session
+    bids.add(bid);
   }
 
   /**
@@ -362,6 +404,19 @@ public class Item {
       @JoinColumn(name = "USER_ID") })
   private User buyer;
 
+  // The user who put the item on sale, every item has one
+  @ManyToOne(fetch = FetchType.LAZY)
+  @JoinColumn(name = "SELLER_ID", nullable = false, updatable = false)
+  private User seller;
+
+  public User getSeller() {
+    return seller;
+  }
+
+  public void setSeller(User seller) {
+    this.seller = seller;
+  }
+
   @ManyToMany(mappedBy = "itemSetManyToMany", cascade = { CascadeType.PERSIST, CascadeType.MERGE })
   private Set<Category> categoriesSetManyToMany = new HashSet<>();
 
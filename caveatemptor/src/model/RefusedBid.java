@@ -0,0 +1,116 @@
+package model;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * A journaled bid the database refused (the item or the bidder was deleted).
+ * The bid was already acknowledged to the bidder, so BidJournalApplier doesn't
+ * drop it: the record is kept here, inserted in the same transaction that moves
+ * the BidJournalOffset past it, and someone decides what to do with it. Only
+ * ids and values, the item and the bidder may not exist anymore
+ */
+@Entity
+@Table(name = "REFUSED_BID", uniqueConstraints = @UniqueConstraint(columnNames = { "JOURNAL_NAME",
+    "JOURNAL_SEQUENCE" }))
+public class RefusedBid {
+
+  @Id
+  @GeneratedValue
+  @Column(name = "REFUSED_BID_ID")
+  private Long id;
+
+  @Column(name = "JOURNAL_NAME", length = 255, nullable = false, updatable = false)
+  private String journalName;
+
+  @Column(name = "JOURNAL_SEQUENCE", nullable = false, updatable = false)
+  private long sequence;
+
+  @Column(name = "ITEM_ID", nullable = false, updatable = false)
+  private Long itemId;
+
+  @Column(name = "BIDDER_ID", nullable = false, updatable = false)
+  private Long bidderId;
+
+  @Column(name = "BID_AMOUNT", nullable = false, updatable = false)
+  private BigDecimal amount;
+
+  @Column(name = "BID_AMOUNT_CUR", length = 3, nullable = false, updatable = false)
+  private String currency;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "CREATED", nullable = false, updatable = false)
+  private Date created;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "REFUSED", nullable = false, updatable = false)
+  private Date refused = new Date();
+
+  @Column(name = "REASON", length = 1000, updatable = false)
+  private String reason;
+
+  protected RefusedBid() {
+  }
+
+  public RefusedBid(String journalName, long sequence, Long itemId, Long bidderId, BigDecimal amount,
+      String currency, Date created, String reason) {
+    this.journalName = journalName;
+    this.sequence = sequence;
+    this.itemId = itemId;
+    this.bidderId = bidderId;
+    this.amount = amount;
+    this.currency = currency;
+    this.created = created;
+    this.reason = reason != null && reason.length() > 1000 ? reason.substring(0, 1000) : reason;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getJournalName() {
+    return journalName;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public Long getItemId() {
+    return itemId;
+  }
+
+  public Long getBidderId() {
+    return bidderId;
+  }
+
+  public BigDecimal getAmount() {
+    return amount;
+  }
+
+  public String getCurrency() {
+    return currency;
+  }
+
+  public Date getCreated() {
+    return created;
+  }
+
+  public Date getRefused() {
+    return refused;
+  }
+
+  public String getReason() {
+    return reason;
+  }
+
+}
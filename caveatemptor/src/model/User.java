@@ -13,22 +13,32 @@ import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 import javax.persistence.PrimaryKeyJoinColumn;
 import javax.persistence.Table;
+import javax.persistence.Version;
 
 import freemarker.core.ReturnInstruction;
 
 @Entity
 @Table(name = "USER")
+@NamedQuery(name = "User.idByUsername", query = "select u.id from User u where u.username = :username")
+@org.hibernate.annotations.Cache(usage = org.hibernate.annotations.CacheConcurrencyStrategy.READ_WRITE)
 public class User {
 
   @Id
   private Long id;
 
+  @Version
+  @Column(name = "OBJ_VERSION")
+  private int version;
+
   private String firstName;
   private String lastName;
+  // The business key: unique, but a user can change it, see UserNaturalIdResolver
+  @org.hibernate.annotations.NaturalId(mutable = true)
   private String username;
   private String password;
   private String email;
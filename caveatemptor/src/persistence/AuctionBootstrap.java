@@ -0,0 +1,159 @@
+package persistence;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+
+import hibernate_config.CENamingStrategy;
+import hibernate_config.CompactEntryCacheProvider;
+import hibernate_config.SnapshotCacheProvider;
+import hibernate_config.StatisticsCacheProvider;
+
+/**
+ * What the auction application adds around the SessionFactory of a database,
+ * so SessionFactoryRegistry only builds it once, shares it and closes it. The
+ * registry creates a bootstrap for each configuration resource and calls it:
+ *
+ * start() -- the bound metadata is read from a snapshot if the mappings didn't
+ * change since the last start (see ConfigurationSnapshot), the listeners and
+ * the cache properties are registered, then the factory is built. The schema
+ * is validated only if its fingerprint changed (see SchemaFingerprint), the
+ * named queries are translated (see NamedQueryRegistry) and the high bid of
+ * every item is loaded in MaxBidTracker. A snapshot of the second-level cache
+ * left by the last shutdown is checked against the database (see
+ * CacheSnapshotValidator, the mappings checksum is its stamp) and, if it's
+ * configured, the cache is warmed up with the auctions ending soon (see
+ * CacheWarmer). Last, the admission control of the bids is created and the
+ * applier of the bid journal, if there is one, is started (see
+ * BidAdmissionController and BidJournalApplier). If any step fails, even with
+ * an Error, what was started is closed, the factory too, and the failure is
+ * thrown
+ *
+ * stop() -- the applier applies the journaled bids left and the admission
+ * control is closed. The registry stops every database before it closes any
+ * factory: with hibernate.bid_shards the applier writes the bids in their
+ * shards, each shard being a factory of the registry too
+ *
+ * close() -- the factory, with its connection pool and its cache provider
+ *
+ * Not to be confused with SessionFactoryBootstrap, which asks the registry for
+ * several factories in parallel
+ */
+public class AuctionBootstrap {
+
+  private static final Logger log = Logger.getLogger(AuctionBootstrap.class);
+
+  private final String configResource;
+  private SessionFactory sessionFactory;
+  private BidShardRouter bidShardRouter;
+  private BidAdmissionController admissionController;
+  private BidJournalApplier bidJournalApplier;
+
+  AuctionBootstrap(String configResource) {
+    this.configResource = configResource;
+  }
+
+  /**
+   * The admission control of the bids placed in this database, see
+   * BidListAppender.place()
+   */
+  public static BidAdmissionController getBidAdmissionController(String configResource) {
+    return SessionFactoryRegistry.getBootstrap(configResource).admissionController;
+  }
+
+  /**
+   * The shards of the bids of this database, null if hibernate.bid_shards is
+   * not set and the bids are in the database itself. See BidShardRouter
+   */
+  public static BidShardRouter getBidShardRouter(String configResource) {
+    return SessionFactoryRegistry.getBootstrap(configResource).bidShardRouter;
+  }
+
+  /**
+   * The journal where the bids of this database are accepted, null if
+   * hibernate.bid_journal.file is not set. See BidJournalApplier
+   */
+  public static BidJournal getBidJournal(String configResource) {
+    BidJournalApplier applier = SessionFactoryRegistry.getBootstrap(configResource).bidJournalApplier;
+    return applier == null ? null : applier.getJournal();
+  }
+
+  public SessionFactory getSessionFactory() {
+    return sessionFactory;
+  }
+
+  void start() {
+    Configuration configuration = ConfigurationSnapshot.load(configResource, new CENamingStrategy());
+    BidShardRouter shardRouter = BidShardRouter.fromConfiguration(configuration);
+    if (shardRouter != null && shardRouter.getShards().contains(configResource)) {
+      // The shard would wait for its own build
+      throw new HibernateException(configResource + " can't be one of its own bid shards");
+    }
+    BidCacheInvalidator.register(configuration);
+    UserNaturalIdResolver.register(configuration);
+    MaxBidTracker maxBidTracker = MaxBidTracker.register(configuration);
+    configuration.setProperty(SnapshotCacheProvider.STAMP_PROPERTY,
+        ConfigurationSnapshot.checksum(configResource, configuration));
+    configuration.setProperty(StatisticsCacheProvider.FACTORY_PROPERTY, configResource);
+    CompactEntryCacheProvider.register(configuration);
+
+    SessionFactory built = configuration.buildSessionFactory();
+    BidAdmissionController admission = null;
+    try {
+      SchemaFingerprint.validate(configuration, built);
+      NamedQueryRegistry.register(configuration, built);
+      CacheSnapshotValidator.validate(built);
+      maxBidTracker.rebuild(built);
+
+      CacheWarmer cacheWarmer = CacheWarmer.fromConfiguration(configuration, built);
+      if (cacheWarmer != null) {
+        try {
+          cacheWarmer.warm();
+        } catch (RuntimeException e) {
+          log.warn("Could not warm up the second-level cache of " + configResource + ", starting cold", e);
+        }
+      }
+      admission = BidAdmissionController.fromConfiguration(configuration);
+      // Last, once started its thread is the only thing left to stop
+      bidJournalApplier = BidJournalApplier.fromConfiguration(configuration, built, shardRouter);
+    } catch (Throwable e) {
+      // Whatever failed, an Error too, the threads, the pool and the cache of
+      // the factory must not leak, and the failure thrown is the first one
+      if (admission != null) {
+        closeAfter(e, admission::close);
+      }
+      closeAfter(e, built::close);
+      throw e;
+    }
+    sessionFactory = built;
+    bidShardRouter = shardRouter;
+    admissionController = admission;
+  }
+
+  private static void closeAfter(Throwable failure, Runnable close) {
+    try {
+      close.run();
+    } catch (RuntimeException e) {
+      failure.addSuppressed(e);
+    }
+  }
+
+  /**
+   * Apply the journaled bids left and close the admission control, the
+   * factory stays open
+   */
+  void stop() {
+    if (bidJournalApplier != null) {
+      bidJournalApplier.close();
+    }
+    admissionController.close();
+  }
+
+  void close() {
+    if (!sessionFactory.isClosed()) {
+      sessionFactory.close();
+    }
+  }
+
+}
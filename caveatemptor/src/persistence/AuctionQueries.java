@@ -0,0 +1,35 @@
+package persistence;
+
+/**
+ * The names of the auction queries. The HQL itself is declared with @NamedQuery
+ * on the entities (see Bid, Item and User), so it's parsed with the mappings and
+ * checked when the SessionFactory is built. Use them through NamedQueryRegistry
+ * so they are counted and timed
+ */
+public class AuctionQueries {
+
+  // Used to find the winning bid when an auction ends
+  public static final String MAX_BID = "Bid.max";
+
+  // The bids of an item, latest first, for the auction page
+  public static final String BID_HISTORY = "Bid.history";
+
+  // The "N bids" of the auction page when the bids are in a shard
+  public static final String BID_COUNT = "Bid.count";
+
+  // Exports and audits, scrolled by BidStream
+  public static final String BID_STREAM_OF_ITEM = "Bid.streamOfItem";
+  public static final String BID_STREAM_OF_PERIOD = "Bid.streamOfPeriod";
+
+  public static final String ITEM_DESCRIPTION = "AuctionItem.description";
+
+  // Where BidListAppender puts the next bid of Item.bidsWithPosition
+  public static final String LAST_BID_POSITION = "Bid.lastPosition";
+
+  // Logins and seller lookups, through UserNaturalIdResolver
+  public static final String USER_ID_BY_USERNAME = "User.idByUsername";
+
+  private AuctionQueries() {
+  }
+
+}
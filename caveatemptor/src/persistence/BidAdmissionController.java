@@ -0,0 +1,357 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cfg.Configuration;
+
+/**
+ * Admission control for bids, item by item. In the last seconds of an auction
+ * the bids on an item all read the same last position, only one of them
+ * inserts it and BidListAppender retries the others, each retry a new
+ * transaction on a pooled connection that collides again with the next
+ * winner. A few hot items spin through the whole pool that way and bids on
+ * quiet items wait for a connection. Here a bid first needs one of
+ * max_in_flight permits of its item, so at most that many bids of the item
+ * compete for its next position, and hold a connection, at once:
+ *
+ * - the permits are fair, bids on an item go in the order they arrived
+ *
+ * - at most max_queued bids wait for a permit, the next one is rejected at once
+ *
+ * - a bid waits at most max_wait_ms, then it's rejected
+ *
+ * A rejected bid gets a BidRejectedException with a retry-after hint: the
+ * mean time a bid on that item keeps its permit, times the bids ahead of it.
+ * The auction page shows it as "too many bids, retry in n seconds" and bids on
+ * quiet items never wait at all.
+ *
+ * <property name="hibernate.bid_admission.max_in_flight">2</property>
+ *
+ * <property name="hibernate.bid_admission.max_queued">50</property>
+ *
+ * <property name="hibernate.bid_admission.max_wait_ms">2000</property>
+ *
+ * <property name="hibernate.bid_admission.log_interval">60</property>
+ *
+ * ItemGate keeps the counters of each item: bids in flight and queued, admitted
+ * and rejected, mean and max wait. The busiest items are written to the log
+ * every log_interval seconds (0 to disable it) and when the controller is
+ * closed. Gates of items without bids for a while are dropped, with their
+ * counters. AuctionBootstrap keeps a controller for each database.
+ *
+ * Only BidListAppender.place() goes through it, the one entry point where
+ * bids on an item collide: each bid takes the next BID_POSITION of the item.
+ * The other two don't need it. BidIngestionPipeline and BidJournal save bids
+ * outside Item.bidsWithPosition, with no position, so concurrent bids on a
+ * hot item never conflict and are never retried. Their load is already
+ * bounded: the pipeline by its queue and its few writer connections, the
+ * journal by its capacity and the single connection of its applier. In this
+ * tree place() is called by BidListAppendBenchmark only
+ */
+public class BidAdmissionController {
+
+  private static final Logger log = Logger.getLogger(BidAdmissionController.class);
+
+  public static final String MAX_IN_FLIGHT_PROPERTY = "hibernate.bid_admission.max_in_flight";
+  public static final String MAX_QUEUED_PROPERTY = "hibernate.bid_admission.max_queued";
+  public static final String MAX_WAIT_PROPERTY = "hibernate.bid_admission.max_wait_ms";
+  public static final String LOG_INTERVAL_PROPERTY = "hibernate.bid_admission.log_interval";
+
+  private static final long MIN_RETRY_AFTER_MILLIS = 50;
+  private static final int PURGE_INTERVAL = 4096;
+  private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+  private static final int LOGGED_ITEMS = 10;
+
+  private final int maxInFlight;
+  private final int maxQueued;
+  private final long maxWaitNanos;
+
+  private final ConcurrentMap<Long, ItemGate> gates = new ConcurrentHashMap<>();
+  private final AtomicLong admissions = new AtomicLong();
+  private ScheduledExecutorService logger;
+
+  /**
+   * Thrown when a bid is not admitted, the caller should retry after
+   * getRetryAfterMillis()
+   */
+  public static class BidRejectedException extends RejectedExecutionException {
+
+    private static final long serialVersionUID = -6206213478394628337L;
+
+    private final Long itemId;
+    private final long retryAfterMillis;
+
+    BidRejectedException(Long itemId, String reason, long retryAfterMillis) {
+      super("Bid on item " + itemId + " rejected, " + reason + ", retry after " + retryAfterMillis + " ms");
+      this.itemId = itemId;
+      this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public Long getItemId() {
+      return itemId;
+    }
+
+    public long getRetryAfterMillis() {
+      return retryAfterMillis;
+    }
+
+  }
+
+  /**
+   * The permits and the counters of one item
+   */
+  public static class ItemGate {
+
+    private final Long itemId;
+    private final int maxInFlight;
+    private final Semaphore permits;
+
+    // Bids waiting for a permit, -1 once the gate is dropped
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder heldNanos = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private volatile long lastUsed = System.nanoTime();
+
+    ItemGate(Long itemId, int maxInFlight) {
+      this.itemId = itemId;
+      this.maxInFlight = maxInFlight;
+      this.permits = new Semaphore(maxInFlight, true);
+    }
+
+    // Until the permit is released the bid is in flight
+    void release(long acquiredAt) {
+      long now = System.nanoTime();
+      heldNanos.add(now - acquiredAt);
+      released.increment();
+      lastUsed = now;
+      permits.release();
+    }
+
+    long retryAfterMillis() {
+      long releases = released.sum();
+      long meanHeldNanos = releases == 0 ? 0 : heldNanos.sum() / releases;
+      long ahead = Math.max(queued.get(), 0) + 1;
+      long millis = TimeUnit.NANOSECONDS.toMillis(meanHeldNanos * ahead / maxInFlight);
+      return Math.max(millis, MIN_RETRY_AFTER_MILLIS);
+    }
+
+    boolean retireIfIdle(long now) {
+      if (now - lastUsed < IDLE_NANOS || permits.availablePermits() != maxInFlight
+          || !queued.compareAndSet(0, -1)) {
+        return false;
+      }
+      if (permits.availablePermits() != maxInFlight) {
+        // A bid got in between the two checks
+        queued.set(0);
+        return false;
+      }
+      return true;
+    }
+
+    public Long getItemId() {
+      return itemId;
+    }
+
+    public int getInFlight() {
+      return maxInFlight - permits.availablePermits();
+    }
+
+    public int getQueueDepth() {
+      return Math.max(queued.get(), 0);
+    }
+
+    public long getAdmittedCount() {
+      return admitted.sum();
+    }
+
+    public long getRejectedCount() {
+      return rejected.sum();
+    }
+
+    public double getMeanWaitMillis() {
+      long count = admitted.sum();
+      return count == 0 ? 0 : waitNanos.sum() / 1e6 / count;
+    }
+
+    public double getMaxWaitMillis() {
+      return maxWaitNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Item %d: %d in flight, %d queued, %d admitted, %d rejected, wait %.1f ms mean %.1f ms max",
+          itemId, getInFlight(), getQueueDepth(), getAdmittedCount(), getRejectedCount(), getMeanWaitMillis(),
+          getMaxWaitMillis());
+    }
+
+  }
+
+  /**
+   * The permit of an admitted bid, close it when the bid's transaction is over
+   */
+  public static final class Permit implements AutoCloseable {
+
+    private final ItemGate gate;
+    private final long acquiredAt = System.nanoTime();
+    private boolean closed;
+
+    Permit(ItemGate gate) {
+      this.gate = gate;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        gate.release(acquiredAt);
+      }
+    }
+
+  }
+
+  public BidAdmissionController(int maxInFlight, int maxQueued, long maxWaitMillis) {
+    if (maxInFlight <= 0 || maxQueued < 0 || maxWaitMillis < 0) {
+      throw new IllegalArgumentException("Bids in flight must be positive, queued bids and wait not negative");
+    }
+    this.maxInFlight = maxInFlight;
+    this.maxQueued = maxQueued;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+  }
+
+  public static BidAdmissionController fromConfiguration(Configuration configuration) {
+    BidAdmissionController controller = new BidAdmissionController(
+        Integer.parseInt(configuration.getProperties().getProperty(MAX_IN_FLIGHT_PROPERTY, "2").trim()),
+        Integer.parseInt(configuration.getProperties().getProperty(MAX_QUEUED_PROPERTY, "50").trim()),
+        Long.parseLong(configuration.getProperties().getProperty(MAX_WAIT_PROPERTY, "2000").trim()));
+    int interval = Integer.parseInt(configuration.getProperties().getProperty(LOG_INTERVAL_PROPERTY, "60").trim());
+    if (interval > 0) {
+      controller.logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "bid-admission-statistics");
+        thread.setDaemon(true);
+        return thread;
+      });
+      controller.logger.scheduleAtFixedRate(() -> controller.logStatistics(LOGGED_ITEMS), interval, interval,
+          TimeUnit.SECONDS);
+    }
+    return controller;
+  }
+
+  /**
+   * Wait for a permit to bid on the item, fails with BidRejectedException if
+   * too many bids are waiting already or the wait is too long
+   */
+  public Permit admit(Long itemId) throws InterruptedException {
+    if (admissions.incrementAndGet() % PURGE_INTERVAL == 0) {
+      purgeIdle();
+    }
+
+    ItemGate gate;
+    while (true) {
+      gate = gates.computeIfAbsent(itemId, id -> new ItemGate(id, maxInFlight));
+      int waiting = gate.queued.get();
+      if (waiting < 0) {
+        // Dropped while we were looking it up, a new one takes its place
+        gates.remove(itemId, gate);
+        continue;
+      }
+      if (waiting >= maxQueued && gate.permits.availablePermits() == 0) {
+        gate.rejected.increment();
+        throw new BidRejectedException(itemId, waiting + " bids already waiting", gate.retryAfterMillis());
+      }
+      if (gate.queued.compareAndSet(waiting, waiting + 1)) {
+        break;
+      }
+    }
+
+    long start = System.nanoTime();
+    boolean acquired = false;
+    try {
+      acquired = gate.permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+    } finally {
+      gate.queued.decrementAndGet();
+    }
+    long waited = System.nanoTime() - start;
+    if (!acquired) {
+      gate.rejected.increment();
+      throw new BidRejectedException(itemId, "waited " + TimeUnit.NANOSECONDS.toMillis(waited) + " ms",
+          gate.retryAfterMillis());
+    }
+    gate.admitted.increment();
+    gate.waitNanos.add(waited);
+    gate.maxWaitNanos.accumulate(waited);
+    return new Permit(gate);
+  }
+
+  /**
+   * Place the bid with the permit of its item held
+   */
+  public <T> T execute(Long itemId, Supplier<T> placement) throws InterruptedException {
+    Permit permit = admit(itemId);
+    try {
+      return placement.get();
+    } finally {
+      permit.close();
+    }
+  }
+
+  /**
+   * Drop the gates of the items without bids for a minute
+   */
+  public void purgeIdle() {
+    long now = System.nanoTime();
+    gates.values().removeIf(gate -> gate.retireIfIdle(now));
+  }
+
+  public ItemGate getStatistics(Long itemId) {
+    return gates.get(itemId);
+  }
+
+  /**
+   * The gates of the items with the most bids in flight or queued first
+   */
+  public List<ItemGate> getStatistics() {
+    List<ItemGate> statistics = new ArrayList<>(gates.values());
+    statistics.sort(Comparator.comparingInt((ItemGate gate) -> gate.getInFlight() + gate.getQueueDepth())
+        .reversed().thenComparing(Comparator.comparingLong(ItemGate::getRejectedCount).reversed()));
+    return statistics;
+  }
+
+  public void logStatistics(int items) {
+    List<ItemGate> statistics = getStatistics();
+    for (ItemGate gate : statistics.subList(0, Math.min(items, statistics.size()))) {
+      log.info(gate);
+    }
+  }
+
+  /**
+   * Stop the periodic log and write the statistics one last time
+   */
+  public void close() {
+    if (logger != null) {
+      logger.shutdownNow();
+      logger = null;
+    }
+    logStatistics(LOGGED_ITEMS);
+  }
+
+}
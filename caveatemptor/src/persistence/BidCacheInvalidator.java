@@ -0,0 +1,51 @@
+package persistence;
+
+import org.hibernate.cfg.Configuration;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+
+import model.Bid;
+import model.Item;
+
+/**
+ * Item.bids is the inverse side of Bid.item (mappedBy), so when a bid is saved
+ * Hibernate updates only the BID row and doesn't touch the cached collection of
+ * the item: the auction page would keep showing the old bid history. Bids are
+ * immutable and never deleted one by one, so an insert is the only event that
+ * can make the collection stale.
+ *
+ * The collection of the item is evicted twice: right after the insert, and
+ * again after the commit, because between the two another transaction may
+ * have loaded the collection without the new bid and put it back in the cache
+ */
+public class BidCacheInvalidator implements PostInsertEventListener {
+
+  private static final long serialVersionUID = 4150872395510187216L;
+
+  public static final String BIDS_ROLE = Item.class.getName() + ".bids";
+
+  public void onPostInsert(PostInsertEvent event) {
+    if (!(event.getEntity() instanceof Bid)) {
+      return;
+    }
+    Long itemId = ((Bid) event.getEntity()).getItemId();
+    if (itemId != null) {
+      event.getSession().getFactory().getCache().evictCollection(BIDS_ROLE, itemId);
+    }
+  }
+
+  /**
+   * Add the listener both to the post insert and the post commit insert
+   * listeners of the configuration
+   */
+  public static void register(Configuration configuration) {
+    BidCacheInvalidator invalidator = new BidCacheInvalidator();
+    EventListeners listeners = configuration.getEventListeners();
+    listeners.setPostInsertEventListeners(
+        EventListenerArrays.append(listeners.getPostInsertEventListeners(), invalidator));
+    listeners.setPostCommitInsertEventListeners(
+        EventListenerArrays.append(listeners.getPostCommitInsertEventListeners(), invalidator));
+  }
+
+}
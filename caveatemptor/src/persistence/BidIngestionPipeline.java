@@ -0,0 +1,299 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+import org.hibernate.CacheMode;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+
+import model.Bid;
+import model.Item;
+import model.User;
+
+/**
+ * When many auctions end together thousands of bids arrive every second, and
+ * with a transaction per bid every bid takes a connection of the pool for a
+ * single-row INSERT and a commit. The pipeline puts the bids in a bounded
+ * queue instead; a few writer threads take them out in groups of batch_size
+ * (waiting at most linger_ms for a group to fill up) and insert each group in
+ * one transaction, so with hibernate.jdbc.batch_size the inserts go to the
+ * database as a single JDBC batch, and with hibernate.order_inserts they are
+ * grouped by table. A few connections are enough for all of them.
+ *
+ * submit() returns at once with a future, completed with the saved bid when
+ * the transaction of its group commits. If a group fails, its bids are
+ * inserted again one by one, so a single wrong bid (an item that doesn't exist)
+ * fails only its own future. When the queue is full the future fails with
+ * RejectedExecutionException: the caller decides whether to retry.
+ *
+ * submit() queues a bid under the read lock and close() stops the pipeline
+ * under the write lock, so a bid is either queued before the writers are told
+ * to stop, and written, or rejected: none can be left in the queue unnoticed.
+ *
+ * Bids are not admitted by BidAdmissionController: they are saved outside
+ * Item.bidsWithPosition, bids on the same item don't collide, and the queue
+ * already bounds the load.
+ *
+ * With hibernate.bid_shards (see BidShardRouter) a group is split by shard and
+ * each part is inserted in its shard, in a transaction of its own.
+ *
+ * <property name="hibernate.jdbc.batch_size">50</property>
+ *
+ * <property name="hibernate.order_inserts">true</property>
+ *
+ * <property name="hibernate.bid_ingestion.batch_size">50</property>
+ *
+ * <property name="hibernate.bid_ingestion.linger_ms">5</property>
+ *
+ * <property name="hibernate.bid_ingestion.writers">4</property>
+ *
+ * <property name="hibernate.bid_ingestion.queue_capacity">10000</property>
+ */
+public class BidIngestionPipeline {
+
+  private static final Logger log = Logger.getLogger(BidIngestionPipeline.class);
+
+  public static final String BATCH_SIZE_PROPERTY = "hibernate.bid_ingestion.batch_size";
+  public static final String LINGER_PROPERTY = "hibernate.bid_ingestion.linger_ms";
+  public static final String WRITERS_PROPERTY = "hibernate.bid_ingestion.writers";
+  public static final String QUEUE_CAPACITY_PROPERTY = "hibernate.bid_ingestion.queue_capacity";
+
+  private static final String JDBC_BATCH_SIZE = "hibernate.jdbc.batch_size";
+  private static final String ORDER_INSERTS = "hibernate.order_inserts";
+
+  private final SessionFactory sessionFactory;
+  private final BidShardRouter shardRouter;
+  private final int batchSize;
+  private final long lingerNanos;
+  private final BlockingQueue<PendingBid> queue;
+  private final List<Thread> writers = new ArrayList<>();
+  // Read by submit(), written by close()
+  private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+  private volatile boolean running = true;
+
+  private static final class PendingBid {
+
+    final Long itemId;
+    final Long bidderId;
+    final MonetaryAmount amount;
+    final CompletableFuture<Bid> future = new CompletableFuture<>();
+
+    PendingBid(Long itemId, Long bidderId, MonetaryAmount amount) {
+      this.itemId = itemId;
+      this.bidderId = bidderId;
+      this.amount = amount;
+    }
+
+  }
+
+  public BidIngestionPipeline(SessionFactory sessionFactory, int batchSize, long lingerMillis, int writerCount,
+      int queueCapacity) {
+    this(sessionFactory, null, batchSize, lingerMillis, writerCount, queueCapacity);
+  }
+
+  /**
+   * The bids go in the shards of the router, in sessionFactory if it's null
+   */
+  public BidIngestionPipeline(SessionFactory sessionFactory, BidShardRouter shardRouter, int batchSize,
+      long lingerMillis, int writerCount, int queueCapacity) {
+    if (batchSize <= 0 || lingerMillis < 0 || writerCount <= 0 || queueCapacity <= 0) {
+      throw new IllegalArgumentException("Batch size, writers and queue capacity must be positive");
+    }
+    this.sessionFactory = sessionFactory;
+    this.shardRouter = shardRouter;
+    this.batchSize = batchSize;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+    for (int i = 0; i < writerCount; i++) {
+      Thread writer = new Thread(this::write, "bid-writer-" + i);
+      writer.setDaemon(true);
+      writer.start();
+      writers.add(writer);
+    }
+  }
+
+  public static BidIngestionPipeline fromConfiguration(Configuration configuration, SessionFactory sessionFactory) {
+    int batchSize = Integer.parseInt(configuration.getProperties().getProperty(BATCH_SIZE_PROPERTY, "50").trim());
+    String jdbcBatchSize = configuration.getProperty(JDBC_BATCH_SIZE);
+    if (jdbcBatchSize == null || Integer.parseInt(jdbcBatchSize.trim()) < batchSize) {
+      log.warn(JDBC_BATCH_SIZE + " is " + jdbcBatchSize + ", smaller than the bid batches of " + batchSize
+          + ": the inserts will not go in a single JDBC batch");
+    }
+    if (!Boolean.parseBoolean(configuration.getProperty(ORDER_INSERTS))) {
+      log.warn(ORDER_INSERTS + " is not true, the inserts will not be grouped by table");
+    }
+    return new BidIngestionPipeline(sessionFactory, BidShardRouter.fromConfiguration(configuration), batchSize,
+        Long.parseLong(configuration.getProperties().getProperty(LINGER_PROPERTY, "5").trim()),
+        Integer.parseInt(configuration.getProperties().getProperty(WRITERS_PROPERTY, "4").trim()),
+        Integer.parseInt(configuration.getProperties().getProperty(QUEUE_CAPACITY_PROPERTY, "10000").trim()));
+  }
+
+  /**
+   * Queue a bid, the future is completed when it's committed
+   */
+  public CompletableFuture<Bid> submit(Long itemId, Long bidderId, MonetaryAmount amount) {
+    PendingBid pending = new PendingBid(itemId, bidderId, amount);
+    stateLock.readLock().lock();
+    try {
+      if (!running) {
+        pending.future.completeExceptionally(new RejectedExecutionException("The bid pipeline is closed"));
+      } else if (!queue.offer(pending)) {
+        pending.future.completeExceptionally(new RejectedExecutionException("The bid queue is full"));
+      }
+    } finally {
+      stateLock.readLock().unlock();
+    }
+    return pending.future;
+  }
+
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  private void write() {
+    List<PendingBid> batch = new ArrayList<>(batchSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        PendingBid first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+
+        // Wait a little for the batch to fill up, but never more than the linger
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < batchSize) {
+          if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+            continue;
+          }
+          long remaining = deadline - System.nanoTime();
+          PendingBid next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+
+        for (List<PendingBid> shardBatch : splitByShard(batch)) {
+          insert(shardBatch);
+        }
+      } catch (InterruptedException e) {
+        for (PendingBid pending : batch) {
+          pending.future.completeExceptionally(e);
+        }
+        Thread.currentThread().interrupt();
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private List<List<PendingBid>> splitByShard(List<PendingBid> batch) {
+    if (shardRouter == null || shardRouter.getShardCount() == 1) {
+      return Collections.singletonList(batch);
+    }
+    Map<Integer, List<PendingBid>> shardBatches = new LinkedHashMap<>();
+    for (PendingBid pending : batch) {
+      shardBatches.computeIfAbsent(shardRouter.shardOf(pending.itemId), shard -> new ArrayList<>()).add(pending);
+    }
+    return new ArrayList<>(shardBatches.values());
+  }
+
+  // All the bids of the batch are in the same shard
+  private void insert(List<PendingBid> batch) {
+    List<Bid> bids;
+    try {
+      bids = insertInOneTransaction(batch);
+    } catch (RuntimeException e) {
+      if (batch.size() == 1) {
+        batch.get(0).future.completeExceptionally(e);
+        return;
+      }
+      log.warn("Batch of " + batch.size() + " bids failed, inserting them one by one", e);
+      for (PendingBid pending : batch) {
+        insert(Collections.singletonList(pending));
+      }
+      return;
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      batch.get(i).future.complete(bids.get(i));
+    }
+  }
+
+  private List<Bid> insertInOneTransaction(List<PendingBid> batch) {
+    Session session = BidShardRouter.getBidSessionFactory(shardRouter, sessionFactory, batch.get(0).itemId)
+        .openSession();
+    Transaction tx = null;
+    try {
+      session.setFlushMode(FlushMode.COMMIT);
+      // A bid is never read back by this session
+      session.setCacheMode(CacheMode.IGNORE);
+      tx = session.beginTransaction();
+
+      List<Bid> bids = new ArrayList<>(batch.size());
+      for (PendingBid pending : batch) {
+        // Proxies, no SELECT for the item and the bidder
+        Item item = (Item) session.load(Item.class, pending.itemId);
+        User bidder = (User) session.load(User.class, pending.bidderId);
+        Bid bid = new Bid(pending.amount, item, bidder);
+        session.save(bid);
+        bids.add(bid);
+      }
+
+      tx.commit();
+      return bids;
+    } catch (RuntimeException e) {
+      if (tx != null && tx.isActive()) {
+        tx.rollback();
+      }
+      throw e;
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * Stop accepting bids, write the ones already queued and wait for the
+   * writers to finish. If the wait is interrupted the bids still queued fail,
+   * those a writer already took are completed by it
+   */
+  public void close() {
+    stateLock.writeLock().lock();
+    try {
+      running = false;
+    } finally {
+      stateLock.writeLock().unlock();
+    }
+    try {
+      for (Thread writer : writers) {
+        writer.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // poll() hands each bid to a writer or to this loop, never to both
+      PendingBid left;
+      while ((left = queue.poll()) != null) {
+        left.future.completeExceptionally(new RejectedExecutionException("The bid pipeline is closed"));
+      }
+    }
+  }
+
+}
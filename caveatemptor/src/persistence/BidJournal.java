@@ -0,0 +1,400 @@
+package persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+
+/**
+ * An append-only journal of the accepted bids, in a file mapped in memory. A
+ * bid is acknowledged as soon as its record is on disk, the INSERT into BID
+ * comes later (see BidJournalApplier), so accepting a bid costs a copy of 48
+ * bytes and a share of an fsync.
+ *
+ * Every record has the same size:
+ *
+ * sequence, item id, bidder id, amount in minor units, created (millis),
+ * currency code (3 ASCII bytes and a padding byte), CRC32 of the previous
+ * fields, padding
+ *
+ * A currency without minor units (XAU, XDR... getDefaultFractionDigits() is
+ * -1) has no amount in minor units, its bids are refused.
+ *
+ * The file is a ring of capacity records, the record with sequence n is in slot
+ * n % capacity. A slot is written again only when the applier has gone past
+ * it, so the journal is full when capacity records are still to be applied and
+ * append() then fails like a full queue. The sequence and the CRC in each
+ * record tell on restart where the journal ends: a slot holding an older
+ * sequence, or half written when the process died, stops the recovery.
+ *
+ * Appends are written under a lock and wait for a flusher thread: it forces the
+ * file and wakes every append written before it started, so with many bids
+ * arriving together one fsync covers all of them (group commit). Once its
+ * record is written an append can't be taken back, the applier will insert
+ * the bid: the wait for the fsync is not interruptible, so the caller always
+ * learns the sequence of a bid that will be applied, and an interrupt is left
+ * set on the thread.
+ *
+ * A bid acknowledged here is not in BID yet: before an auction is closed,
+ * awaitApplied() waits until the applier caught up with the journal, see
+ * ItemDAO.awaitJournaledBids()
+ */
+public class BidJournal {
+
+  private static final Logger log = Logger.getLogger(BidJournal.class);
+
+  public static final int RECORD_SIZE = 48;
+
+  private static final int CHECKED_SIZE = 44;
+
+  private final File file;
+  private final int capacity;
+  private final MappedByteBuffer buffer;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition written = lock.newCondition();
+  private final Condition forced = lock.newCondition();
+  private final Condition caughtUp = lock.newCondition();
+
+  // Guarded by lock
+  private long nextSequence;
+  private long forcedSequence;
+  private long appliedSequence;
+  private boolean closed;
+  private RuntimeException failure;
+
+  private final Thread flusher;
+  private long fsyncs;
+
+  /**
+   * A bid read back from the journal
+   */
+  public static final class Record {
+
+    private final long sequence;
+    private final long itemId;
+    private final long bidderId;
+    private final long amountInMinorUnits;
+    private final Currency currency;
+    private final long created;
+
+    Record(long sequence, long itemId, long bidderId, long amountInMinorUnits, Currency currency, long created) {
+      this.sequence = sequence;
+      this.itemId = itemId;
+      this.bidderId = bidderId;
+      this.amountInMinorUnits = amountInMinorUnits;
+      this.currency = currency;
+      this.created = created;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    public Long getItemId() {
+      return itemId;
+    }
+
+    public Long getBidderId() {
+      return bidderId;
+    }
+
+    public MonetaryAmount getAmount() {
+      return new MonetaryAmount(BigDecimal.valueOf(amountInMinorUnits, fractionDigits(currency)), currency);
+    }
+
+    public Date getCreated() {
+      return new Date(created);
+    }
+
+  }
+
+  /**
+   * Open the journal, creating the file if needed, and find the records after
+   * appliedSequence that are still to be applied
+   */
+  public BidJournal(File file, int capacity, long appliedSequence) {
+    if (capacity <= 0 || (long) capacity * RECORD_SIZE > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Journal capacity must be between 1 and "
+          + Integer.MAX_VALUE / RECORD_SIZE + " records");
+    }
+    this.file = file;
+    this.capacity = capacity;
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      if (randomAccessFile.length() != 0 && randomAccessFile.length() != (long) capacity * RECORD_SIZE) {
+        throw new HibernateException("Bid journal " + file + " was created with another capacity: "
+            + randomAccessFile.length() / RECORD_SIZE + " records");
+      }
+      buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD_SIZE);
+    } catch (IOException e) {
+      throw new HibernateException("Cannot open the bid journal " + file, e);
+    }
+
+    long sequence = appliedSequence;
+    while (sequence - appliedSequence < capacity && read(sequence) != null) {
+      sequence++;
+    }
+    this.appliedSequence = appliedSequence;
+    this.nextSequence = sequence;
+    this.forcedSequence = sequence;
+    log.info("Bid journal " + file + ": " + (sequence - appliedSequence) + " bids to apply from sequence "
+        + appliedSequence);
+
+    flusher = new Thread(this::flush, "bid-journal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Write the bid and return its sequence once it's on disk
+   */
+  public long append(Long itemId, Long bidderId, MonetaryAmount amount) {
+    int fractionDigits = fractionDigits(amount.getCurrency());
+    long minorUnits;
+    try {
+      minorUnits = amount.getAmount().movePointRight(fractionDigits).longValueExact();
+    } catch (ArithmeticException e) {
+      throw new IllegalArgumentException("Not an amount of " + amount.getCurrency() + ": " + amount.getAmount());
+    }
+    byte[] currency = amount.getCurrency().getCurrencyCode().getBytes(StandardCharsets.US_ASCII);
+
+    lock.lock();
+    try {
+      if (closed || failure != null) {
+        throw new RejectedExecutionException("The bid journal is closed");
+      }
+      if (nextSequence - appliedSequence >= capacity) {
+        throw new RejectedExecutionException("The bid journal is full, " + capacity + " bids are not applied yet");
+      }
+      long sequence = nextSequence++;
+      write(sequence, itemId, bidderId, minorUnits, currency, System.currentTimeMillis());
+      written.signal();
+
+      // The flusher forces everything before it stops, even after close()
+      while (forcedSequence <= sequence) {
+        if (failure != null) {
+          throw new HibernateException("Cannot write the bid journal " + file, failure);
+        }
+        forced.awaitUninterruptibly();
+      }
+      return sequence;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // The digits of the minor unit, a record has no room for the amount otherwise
+  private static int fractionDigits(Currency currency) {
+    int digits = currency.getDefaultFractionDigits();
+    if (digits < 0) {
+      throw new IllegalArgumentException(currency + " has no minor unit, its bids can't be journaled");
+    }
+    return digits;
+  }
+
+  private void write(long sequence, long itemId, long bidderId, long minorUnits, byte[] currency, long created) {
+    ByteBuffer record = slot(sequence);
+    record.putLong(sequence);
+    record.putLong(itemId);
+    record.putLong(bidderId);
+    record.putLong(minorUnits);
+    record.putLong(created);
+    record.put(currency);
+    record.put((byte) 0);
+    record.putInt(checksum(record));
+  }
+
+  private ByteBuffer slot(long sequence) {
+    ByteBuffer record = buffer.duplicate();
+    int position = (int) (sequence % capacity) * RECORD_SIZE;
+    record.position(position);
+    record.limit(position + RECORD_SIZE);
+    return record.slice();
+  }
+
+  private static int checksum(ByteBuffer record) {
+    CRC32 crc = new CRC32();
+    ByteBuffer checked = record.duplicate();
+    checked.position(0);
+    checked.limit(CHECKED_SIZE);
+    crc.update(checked);
+    return (int) crc.getValue();
+  }
+
+  // The record if the slot holds this sequence and is complete, null otherwise
+  private Record read(long sequence) {
+    ByteBuffer record = slot(sequence);
+    if (record.getLong(0) != sequence || record.getInt(CHECKED_SIZE) != checksum(record)) {
+      return null;
+    }
+    byte[] currency = new byte[3];
+    record.position(40);
+    record.get(currency);
+    return new Record(sequence, record.getLong(8), record.getLong(16), record.getLong(24),
+        Currency.getInstance(new String(currency, StandardCharsets.US_ASCII)), record.getLong(32));
+  }
+
+  private void flush() {
+    while (true) {
+      long target;
+      lock.lock();
+      try {
+        while (forcedSequence == nextSequence && !closed) {
+          written.awaitUninterruptibly();
+        }
+        if (closed && forcedSequence == nextSequence) {
+          return;
+        }
+        target = nextSequence;
+      } finally {
+        lock.unlock();
+      }
+
+      // Outside the lock: bids keep being written while the disk works, they
+      // go in the next group
+      RuntimeException error = null;
+      try {
+        buffer.force();
+      } catch (RuntimeException e) {
+        log.error("Cannot force the bid journal " + file + ", no more bids are accepted", e);
+        error = e;
+      }
+
+      lock.lock();
+      try {
+        if (error != null) {
+          failure = error;
+        } else {
+          forcedSequence = target;
+          fsyncs++;
+        }
+        forced.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      if (error != null) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Up to max records on disk from the sequence on, waiting at most timeout for
+   * the first one
+   */
+  public List<Record> read(long fromSequence, int max, long timeout, TimeUnit unit) throws InterruptedException {
+    long last;
+    lock.lock();
+    try {
+      long nanos = unit.toNanos(timeout);
+      while (forcedSequence <= fromSequence && nanos > 0 && !closed) {
+        nanos = forced.awaitNanos(nanos);
+      }
+      last = Math.min(forcedSequence, fromSequence + max);
+    } finally {
+      lock.unlock();
+    }
+
+    List<Record> records = new ArrayList<>((int) Math.max(0, last - fromSequence));
+    for (long sequence = fromSequence; sequence < last; sequence++) {
+      Record record = read(sequence);
+      if (record == null) {
+        throw new HibernateException("Bid journal " + file + " is corrupted at sequence " + sequence);
+      }
+      records.add(record);
+    }
+    return records;
+  }
+
+  /**
+   * The records before the sequence are in the database, their slots can be
+   * written again
+   */
+  public void applied(long nextSequence) {
+    lock.lock();
+    try {
+      appliedSequence = Math.max(appliedSequence, nextSequence);
+      caughtUp.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until the bids on disk when it's called are applied: the applier's
+   * next sequence has reached the forced sequence. False if the timeout
+   * elapsed first
+   */
+  public boolean awaitApplied(long timeout, TimeUnit unit) throws InterruptedException {
+    lock.lock();
+    try {
+      long target = forcedSequence;
+      long nanos = unit.toNanos(timeout);
+      while (appliedSequence < target) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = caughtUp.awaitNanos(nanos);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Number of bids on disk and not applied yet
+   */
+  public long getBacklog() {
+    lock.lock();
+    try {
+      return forcedSequence - appliedSequence;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getFsyncCount() {
+    lock.lock();
+    try {
+      return fsyncs;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stop accepting bids and wait for the last ones to be forced
+   */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      written.signal();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
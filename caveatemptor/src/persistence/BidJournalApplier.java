@@ -0,0 +1,365 @@
+package persistence;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.hibernate.CacheMode;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleStateException;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.exception.ConstraintViolationException;
+
+import model.Bid;
+import model.BidJournalOffset;
+import model.Item;
+import model.RefusedBid;
+import model.User;
+
+/**
+ * Copies the bids of a BidJournal into the BID table, in the background. Each
+ * group of records is inserted in one transaction together with the new
+ * BidJournalOffset, so a record is applied exactly once: after a crash the
+ * applier reads the offset back and starts from the first record that is not
+ * in the database.
+ *
+ * The offset row is versioned: when a second applier started by mistake on
+ * the same journal commits a group first, the commit of this one fails with
+ * StaleStateException and rolls back its inserts, then the group is checked
+ * again against the new offset and the records already applied are skipped.
+ * Nothing waits, FOR UPDATE is an empty string for HSQLDialect.
+ *
+ * A record the database refuses (the item was deleted) would block the
+ * journal forever, but its bid was already acknowledged: it's moved to
+ * REFUSED_BID (see RefusedBid) in the transaction that moves the offset past
+ * it; with shards the other shards move their offsets past it too, in a
+ * transaction each. Any other failure is retried until the database is back.
+ *
+ * With hibernate.bid_shards (see BidShardRouter) the bids go in the shard of
+ * their item and every shard has its own offset, moved in the transaction
+ * that inserts the shard's part of a group. The shards of a group commit one
+ * after the other: after a crash the applier starts from the lowest offset and
+ * each shard skips the records it already has.
+ *
+ * AuctionBootstrap starts the applier of a database when its factory is built,
+ * if hibernate.bid_journal.file is set, and closes it at shutdown.
+ *
+ * <property name="hibernate.bid_journal.file">/var/lib/caveatemptor/bids.journal</property>
+ *
+ * <property name="hibernate.bid_journal.capacity">1048576</property>
+ *
+ * <property name="hibernate.bid_journal.apply_batch_size">500</property>
+ */
+public class BidJournalApplier {
+
+  private static final Logger log = Logger.getLogger(BidJournalApplier.class);
+
+  public static final String FILE_PROPERTY = "hibernate.bid_journal.file";
+  public static final String CAPACITY_PROPERTY = "hibernate.bid_journal.capacity";
+  public static final String BATCH_SIZE_PROPERTY = "hibernate.bid_journal.apply_batch_size";
+
+  private static final long RETRY_MILLIS = 1000;
+
+  private final BidShardRouter shardRouter;
+  // The database itself or, with a router, the shards in its order
+  private final List<SessionFactory> databases = new ArrayList<>();
+  private final String journalName;
+  private final BidJournal journal;
+  private final int batchSize;
+  private final Thread applier;
+  private volatile boolean running = true;
+
+  // Only the applier thread changes it
+  private volatile long nextSequence;
+
+  public BidJournalApplier(SessionFactory sessionFactory, File file, int capacity, int batchSize) {
+    this(sessionFactory, null, file, capacity, batchSize);
+  }
+
+  /**
+   * The bids go in the shards of the router, in sessionFactory if it's null
+   */
+  public BidJournalApplier(SessionFactory sessionFactory, BidShardRouter shardRouter, File file, int capacity,
+      int batchSize) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("Batch size must be positive");
+    }
+    this.shardRouter = shardRouter;
+    if (shardRouter == null) {
+      databases.add(sessionFactory);
+    } else {
+      for (String shard : shardRouter.getShards()) {
+        databases.add(SessionFactoryRegistry.getSessionFactory(shard));
+      }
+    }
+    this.journalName = file.getName();
+    this.batchSize = batchSize;
+    this.nextSequence = readOffset();
+    this.journal = new BidJournal(file, capacity, nextSequence);
+
+    applier = new Thread(this::apply, "bid-journal-applier");
+    applier.setDaemon(true);
+    applier.start();
+  }
+
+  /**
+   * The applier of the journal configured in hibernate.bid_journal.file, null
+   * if there is none
+   */
+  public static BidJournalApplier fromConfiguration(Configuration configuration, SessionFactory sessionFactory,
+      BidShardRouter shardRouter) {
+    String file = configuration.getProperty(FILE_PROPERTY);
+    if (file == null) {
+      return null;
+    }
+    return new BidJournalApplier(sessionFactory, shardRouter, new File(file.trim()),
+        Integer.parseInt(configuration.getProperties().getProperty(CAPACITY_PROPERTY, "1048576").trim()),
+        Integer.parseInt(configuration.getProperties().getProperty(BATCH_SIZE_PROPERTY, "500").trim()));
+  }
+
+  /**
+   * Where bids are accepted
+   */
+  public BidJournal getJournal() {
+    return journal;
+  }
+
+  public long getNextSequence() {
+    return nextSequence;
+  }
+
+  // The lowest offset of the databases, a database without one starts there
+  private long readOffset() {
+    long lowest = Long.MAX_VALUE;
+    List<SessionFactory> withoutOffset = new ArrayList<>();
+    for (SessionFactory database : databases) {
+      BidJournalOffset offset = findOffset(database);
+      if (offset == null) {
+        withoutOffset.add(database);
+      } else {
+        lowest = Math.min(lowest, offset.getNextSequence());
+      }
+    }
+    if (lowest == Long.MAX_VALUE) {
+      lowest = 0;
+    }
+    for (SessionFactory database : withoutOffset) {
+      createOffset(database, lowest);
+    }
+    return lowest;
+  }
+
+  private BidJournalOffset findOffset(SessionFactory database) {
+    Session session = database.openSession();
+    try {
+      return (BidJournalOffset) session.get(BidJournalOffset.class, journalName);
+    } finally {
+      session.close();
+    }
+  }
+
+  private void createOffset(SessionFactory database, long nextSequence) {
+    Session session = database.openSession();
+    Transaction tx = null;
+    try {
+      tx = session.beginTransaction();
+      BidJournalOffset offset = new BidJournalOffset(journalName);
+      offset.setNextSequence(nextSequence);
+      session.save(offset);
+      tx.commit();
+    } catch (RuntimeException e) {
+      if (tx != null && tx.isActive()) {
+        tx.rollback();
+      }
+      throw e;
+    } finally {
+      session.close();
+    }
+  }
+
+  private void apply() {
+    while (running || journal.getBacklog() > 0) {
+      try {
+        List<BidJournal.Record> records = journal.read(nextSequence, batchSize, 100, TimeUnit.MILLISECONDS);
+        if (records.isEmpty()) {
+          continue;
+        }
+        apply(records);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException e) {
+        if (!running) {
+          log.warn("Cannot apply the bid journal from sequence " + nextSequence
+              + ", the rest is applied at the next start", e);
+          return;
+        }
+        log.warn("Cannot apply the bid journal from sequence " + nextSequence + ", retrying", e);
+        try {
+          Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private void apply(List<BidJournal.Record> records) {
+    while (true) {
+      try {
+        insertOrRefuse(records);
+        return;
+      } catch (StaleStateException e) {
+        log.warn("Bid journal offset moved by another applier, checking the group from "
+            + records.get(0).getSequence() + " again", e);
+      }
+    }
+  }
+
+  private void insertOrRefuse(List<BidJournal.Record> records) {
+    try {
+      insertInOneTransaction(records);
+    } catch (ConstraintViolationException e) {
+      if (records.size() > 1) {
+        log.warn("Group of " + records.size() + " journaled bids refused, applying them one by one", e);
+        for (BidJournal.Record record : records) {
+          apply(Collections.singletonList(record));
+        }
+        return;
+      }
+      BidJournal.Record record = records.get(0);
+      log.error("Journaled bid " + record.getSequence() + " on item " + record.getItemId() + " of "
+          + record.getAmount().getAmount() + " " + record.getAmount().getCurrency() + " refused, moved to "
+          + "REFUSED_BID", e);
+      refuse(record, e);
+    }
+  }
+
+  private void insertInOneTransaction(List<BidJournal.Record> records) {
+    long expected = records.get(0).getSequence();
+    long next = records.get(records.size() - 1).getSequence() + 1;
+
+    if (shardRouter == null) {
+      insertInOneTransaction(databases.get(0), records, expected, next);
+    } else {
+      // Every shard moves its offset, even with no record of the group
+      for (int shard = 0; shard < databases.size(); shard++) {
+        List<BidJournal.Record> shardRecords = new ArrayList<>();
+        for (BidJournal.Record record : records) {
+          if (shardRouter.shardOf(record.getItemId()) == shard) {
+            shardRecords.add(record);
+          }
+        }
+        insertInOneTransaction(databases.get(shard), shardRecords, expected, next);
+      }
+    }
+    advance(next);
+  }
+
+  private void insertInOneTransaction(SessionFactory database, List<BidJournal.Record> records, long expected,
+      long next) {
+    Session session = database.openSession();
+    Transaction tx = null;
+    try {
+      session.setFlushMode(FlushMode.COMMIT);
+      session.setCacheMode(CacheMode.IGNORE);
+      tx = session.beginTransaction();
+
+      BidJournalOffset offset = (BidJournalOffset) session.get(BidJournalOffset.class, journalName);
+      if (offset.getNextSequence() < expected) {
+        throw new HibernateException("Bid journal offset went back to " + offset.getNextSequence()
+            + ", expected " + expected);
+      }
+      if (offset.getNextSequence() >= next) {
+        // Someone else applied them, or this database before a crash
+        log.warn("Bid journal already applied up to " + offset.getNextSequence());
+        tx.rollback();
+        return;
+      }
+
+      for (BidJournal.Record record : records) {
+        if (record.getSequence() < offset.getNextSequence()) {
+          continue;
+        }
+        Item item = (Item) session.load(Item.class, record.getItemId());
+        User bidder = (User) session.load(User.class, record.getBidderId());
+        session.save(new Bid(record.getAmount(), item, bidder, record.getCreated()));
+      }
+      offset.setNextSequence(next);
+
+      tx.commit();
+    } catch (RuntimeException e) {
+      if (tx != null && tx.isActive()) {
+        tx.rollback();
+      }
+      throw e;
+    } finally {
+      session.close();
+    }
+  }
+
+  // Move the offset past a refused record, keeping the record in REFUSED_BID.
+  // With shards every shard moves its offset, the record is kept in the one of
+  // its item: the shards after it never saw the failed group
+  private void refuse(BidJournal.Record record, ConstraintViolationException cause) {
+    int owner = shardRouter == null ? 0 : shardRouter.shardOf(record.getItemId());
+    for (int shard = 0; shard < databases.size(); shard++) {
+      refuse(databases.get(shard), record, shard == owner ? cause : null);
+    }
+    advance(record.getSequence() + 1);
+  }
+
+  // Keep the record in REFUSED_BID only if there's a cause
+  private void refuse(SessionFactory database, BidJournal.Record record, ConstraintViolationException cause) {
+    Session session = database.openSession();
+    Transaction tx = null;
+    try {
+      tx = session.beginTransaction();
+      BidJournalOffset offset = (BidJournalOffset) session.get(BidJournalOffset.class, journalName);
+      if (offset.getNextSequence() <= record.getSequence()) {
+        if (cause != null) {
+          String reason = cause.getSQLException() != null ? cause.getSQLException().getMessage() : cause.getMessage();
+          session.save(new RefusedBid(journalName, record.getSequence(), record.getItemId(), record.getBidderId(),
+              record.getAmount().getAmount(), record.getAmount().getCurrency().getCurrencyCode(), record.getCreated(),
+              reason));
+        }
+        offset.setNextSequence(record.getSequence() + 1);
+      }
+      tx.commit();
+    } catch (RuntimeException e) {
+      if (tx != null && tx.isActive()) {
+        tx.rollback();
+      }
+      throw e;
+    } finally {
+      session.close();
+    }
+  }
+
+  private void advance(long next) {
+    nextSequence = next;
+    journal.applied(next);
+  }
+
+  /**
+   * Stop accepting bids and apply the ones already in the journal
+   */
+  public void close() {
+    journal.close();
+    running = false;
+    try {
+      applier.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,120 @@
+package persistence;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.exception.ConstraintViolationException;
+
+import model.Bid;
+import model.Item;
+import model.User;
+
+/**
+ * Appends a bid at the end of Item.bidsWithPosition without touching the
+ * list. With a list owning its index column, bidsWithPosition.add() loads every
+ * bid of the item and then UPDATEs BID_POSITION of the rows; on an item with
+ * 10000 bids that's 10000 rows read to write one. Here the bid carries its
+ * position (Bid.appendTo()), so the only write is its INSERT:
+ *
+ * select max(BID_POSITION) from BID where ITEM_ID_INVERSE = ?
+ *
+ * insert into BID (..., ITEM_ID_INVERSE, BID_POSITION) values (...)
+ *
+ * No row is locked: SELECT ... FOR UPDATE is an empty string for HSQLDialect,
+ * and a shard has no ITEM row to lock anyway. Two bidders on the same item can
+ * read the same last position, the unique constraint on (ITEM_ID_INVERSE,
+ * BID_POSITION) lets only one of them insert it. place() retries the other
+ * one in a new transaction, that reads the new last position; any other
+ * constraint violation (the item doesn't exist) is not retried. Bids on other
+ * items never collide.
+ *
+ * A bidsWithPosition already initialized in the session doesn't see the new
+ * bid until it's loaded again.
+ *
+ * place() does the whole bid in a transaction of its own, and takes the permit
+ * of the item from BidAdmissionController before the session is opened: a bid
+ * waiting for a hot item holds no connection while it waits, and the permits
+ * keep the retries of a hot item few
+ */
+public class BidListAppender {
+
+  // Attempts of place() when the position is taken by another bid
+  private static final int MAX_ATTEMPTS = 10;
+
+  private BidListAppender() {
+  }
+
+  /**
+   * Save the bid as the last of the item's list and return its position. Must
+   * be called in a transaction, that fails with ConstraintViolationException
+   * if another transaction took the position first: see place()
+   */
+  public static int append(Session session, Long itemId, Bid bid) {
+    Integer last = lastPosition(session, itemId);
+    int position = last == null ? 0 : last + 1;
+
+    bid.appendTo((Item) session.load(Item.class, itemId), position);
+    session.save(bid);
+    return position;
+  }
+
+  private static Integer lastPosition(Session session, Long itemId) {
+    return NamedQueryRegistry.execute(session, AuctionQueries.LAST_BID_POSITION,
+        query -> (Integer) query.setParameter("itemId", itemId).uniqueResult());
+  }
+
+  /**
+   * Place a bid as the last of the item's list, once admitted, in the shard of
+   * the item if the router is not null (see BidShardRouter). Fails with
+   * BidAdmissionController.BidRejectedException if the item has too many bids
+   * waiting
+   */
+  public static Bid place(SessionFactory sessionFactory, BidShardRouter shardRouter,
+      BidAdmissionController admission, Long itemId, Long bidderId, MonetaryAmount amount)
+      throws InterruptedException {
+    SessionFactory bidSessionFactory = BidShardRouter.getBidSessionFactory(shardRouter, sessionFactory, itemId);
+    return admission.execute(itemId, () -> place(bidSessionFactory, itemId, bidderId, amount));
+  }
+
+  private static Bid place(SessionFactory sessionFactory, Long itemId, Long bidderId, MonetaryAmount amount) {
+    for (int attempt = 1;; attempt++) {
+      Session session = sessionFactory.openSession();
+      Transaction tx = null;
+      Bid bid = null;
+      try {
+        tx = session.beginTransaction();
+        bid = new Bid(amount, (Item) session.load(Item.class, itemId), (User) session.load(User.class, bidderId));
+        append(session, itemId, bid);
+        tx.commit();
+        return bid;
+      } catch (ConstraintViolationException e) {
+        if (tx != null && tx.isActive()) {
+          tx.rollback();
+        }
+        if (attempt == MAX_ATTEMPTS || bid == null || bid.getPosition() == null
+            || !isTaken(sessionFactory, itemId, bid.getPosition())) {
+          throw e;
+        }
+        // Another bid took the position, read the last one again
+      } catch (RuntimeException e) {
+        if (tx != null && tx.isActive()) {
+          tx.rollback();
+        }
+        throw e;
+      } finally {
+        session.close();
+      }
+    }
+  }
+
+  private static boolean isTaken(SessionFactory sessionFactory, Long itemId, int position) {
+    Session session = sessionFactory.openSession();
+    try {
+      Integer last = lastPosition(session, itemId);
+      return last != null && last >= position;
+    } finally {
+      session.close();
+    }
+  }
+
+}
@@ -0,0 +1,161 @@
+package persistence;
+
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import model.Bid;
+import model.Item;
+import model.User;
+
+/**
+ * Moves the bids when the shards change: every item whose bids are not in the
+ * shard the new router gives it has its bids copied there and then deleted
+ * from the old shard, one item at a time.
+ *
+ * Run it with bidding stopped. An item is moved in two transactions, first the
+ * copy and then the delete, so a crash in between leaves its bids in both
+ * shards; the copy starts by deleting the bids of the item in the new shard,
+ * so running the rebalancer again simply moves the item again. The moved bids
+ * get new ids from the sequence of their new shard. The bids of an item are
+ * scrolled forward only from the old shard, in a read transaction that lasts
+ * as long as the copy, and copied FLUSH_SIZE at a time, so even the bids of a
+ * hot item are never all in memory.
+ *
+ * Usage: BidShardRebalancer [old shards] [new shards], both comma separated
+ * lists of configuration resources, e.g.
+ *
+ * BidShardRebalancer /bids-0.cfg.xml,/bids-1.cfg.xml /bids-0.cfg.xml,/bids-1.cfg.xml,/bids-2.cfg.xml
+ */
+public class BidShardRebalancer {
+
+  private static final Logger log = Logger.getLogger(BidShardRebalancer.class);
+
+  private static final String ITEMS_WITH_BIDS = "select distinct b.item.id from Bid b";
+  private static final String BIDS_OF_ITEM = "select b.bidAmount, b.bidder.id, b.created, b.position "
+      + "from Bid b where b.item.id = :itemId order by b.id";
+  private static final String DELETE_BIDS_OF_ITEM = "delete from Bid b where b.item.id = :itemId";
+
+  private static final int FLUSH_SIZE = 50;
+
+  private final List<String> oldShards;
+  private final BidShardRouter router;
+
+  public BidShardRebalancer(List<String> oldShards, BidShardRouter router) {
+    this.oldShards = oldShards;
+    this.router = router;
+  }
+
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.err.println("Usage: BidShardRebalancer [old shards] [new shards]");
+      System.exit(1);
+    }
+    try {
+      new BidShardRebalancer(BidShardRouter.parse(args[0]), new BidShardRouter(BidShardRouter.parse(args[1])))
+          .rebalance();
+    } finally {
+      SessionFactoryRegistry.shutdown();
+    }
+  }
+
+  /**
+   * Return the number of bids moved
+   */
+  public long rebalance() {
+    long moved = 0;
+    for (String shard : oldShards) {
+      SessionFactory source = SessionFactoryRegistry.getSessionFactory(shard);
+      int items = 0;
+      for (Object itemId : itemsWithBids(source)) {
+        String target = router.getShard((Long) itemId);
+        if (!target.equals(shard)) {
+          moved += move((Long) itemId, source, SessionFactoryRegistry.getSessionFactory(target));
+          items++;
+        }
+      }
+      log.info(items + " items moved out of " + shard);
+    }
+    log.info(moved + " bids moved");
+    return moved;
+  }
+
+  private static List<?> itemsWithBids(SessionFactory shard) {
+    Session session = shard.openSession();
+    try {
+      return session.createQuery(ITEMS_WITH_BIDS).setReadOnly(true).list();
+    } finally {
+      session.close();
+    }
+  }
+
+  private static int move(Long itemId, SessionFactory source, SessionFactory target) {
+    int moved = inTransaction(source, sourceSession -> {
+      // The cursor lives as long as the transaction
+      ScrollableResults bids = sourceSession.createQuery(BIDS_OF_ITEM).setParameter("itemId", itemId)
+          .setReadOnly(true).setFetchSize(FLUSH_SIZE).scroll(ScrollMode.FORWARD_ONLY);
+      try {
+        return inTransaction(target, targetSession -> copy(itemId, bids, targetSession));
+      } finally {
+        bids.close();
+      }
+    });
+    inTransaction(source,
+        sourceSession -> sourceSession.createQuery(DELETE_BIDS_OF_ITEM).setParameter("itemId", itemId).executeUpdate());
+    return moved;
+  }
+
+  private static int copy(Long itemId, ScrollableResults bids, Session targetSession) {
+    // What a crashed run may have copied already
+    targetSession.createQuery(DELETE_BIDS_OF_ITEM).setParameter("itemId", itemId).executeUpdate();
+
+    Item item = (Item) targetSession.load(Item.class, itemId);
+    int count = 0;
+    while (bids.next()) {
+      Object[] values = bids.get();
+      Bid bid = new Bid((MonetaryAmount) values[0], item, (User) targetSession.load(User.class, (Long) values[1]),
+          (Date) values[2]);
+      if (values[3] != null) {
+        bid.appendTo(item, (Integer) values[3]);
+      }
+      targetSession.save(bid);
+      if (++count % FLUSH_SIZE == 0) {
+        targetSession.flush();
+        targetSession.clear();
+        item = (Item) targetSession.load(Item.class, itemId);
+      }
+    }
+    return count;
+  }
+
+  private interface Work<T> {
+    T execute(Session session);
+  }
+
+  private static <T> T inTransaction(SessionFactory sessionFactory, Work<T> work) {
+    Session session = sessionFactory.openSession();
+    Transaction tx = null;
+    try {
+      session.setCacheMode(CacheMode.IGNORE);
+      tx = session.beginTransaction();
+      T result = work.execute(session);
+      tx.commit();
+      return result;
+    } catch (RuntimeException e) {
+      if (tx != null && tx.isActive()) {
+        tx.rollback();
+      }
+      throw e;
+    } finally {
+      session.close();
+    }
+  }
+
+}
@@ -0,0 +1,126 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+
+/**
+ * Where the bids of an item are stored when BID is split in shards. Every shard
+ * is a configuration resource with its own SessionFactory, built and kept by
+ * SessionFactoryRegistry like the auction and the billing database:
+ *
+ * <property name="hibernate.bid_shards">/bids-0.cfg.xml, /bids-1.cfg.xml, /bids-2.cfg.xml</property>
+ *
+ * A shard can be a database of its own, or a schema of the auction database:
+ * the resources then differ only in hibernate.default_schema and every shard
+ * is a BID table of its own in the same database. The ITEM and USER rows stay
+ * in the auction database, so the shard schemas are created without the
+ * foreign keys of BID, and bid ids are unique only inside a shard.
+ *
+ * All the bids of an item are in one shard, so the high bid, the history and
+ * the count of the bids of an item are queries on one shard only (see
+ * ItemDAO). The bids of a period are in all of them, ItemDAO streams them
+ * shard after shard. Every bid is inserted there too: BidListAppender.place(),
+ * BidIngestionPipeline and BidJournalApplier take the router of the auction
+ * database, AuctionBootstrap.getBidShardRouter(). The BID table of the
+ * auction database stays empty, so Item.bids and Item.getBidCount() see no
+ * bids, ask ItemDAO.
+ *
+ * The shard is chosen with a jump consistent hash of the item id: going from
+ * n to n + 1 shards moves only the items of 1 / (n + 1) of the bids, see
+ * BidShardRebalancer
+ */
+public class BidShardRouter {
+
+  public static final String SHARDS_PROPERTY = "hibernate.bid_shards";
+
+  private final List<String> shards;
+
+  public BidShardRouter(List<String> shards) {
+    if (shards.isEmpty()) {
+      throw new HibernateException("No bid shards");
+    }
+    this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+  }
+
+  /**
+   * The router of the shards in hibernate.bid_shards, null if bids are not
+   * sharded
+   */
+  public static BidShardRouter fromConfiguration(Configuration configuration) {
+    String shards = configuration.getProperty(SHARDS_PROPERTY);
+    return shards == null ? null : new BidShardRouter(parse(shards));
+  }
+
+  static List<String> parse(String shards) {
+    List<String> resources = new ArrayList<>();
+    for (String resource : shards.split(",")) {
+      if (!resource.trim().isEmpty()) {
+        resources.add(resource.trim());
+      }
+    }
+    return resources;
+  }
+
+  public int getShardCount() {
+    return shards.size();
+  }
+
+  public List<String> getShards() {
+    return shards;
+  }
+
+  public int shardOf(Long itemId) {
+    return jumpHash(itemId, shards.size());
+  }
+
+  /**
+   * The configuration resource of the shard with the bids of the item
+   */
+  public String getShard(Long itemId) {
+    return shards.get(shardOf(itemId));
+  }
+
+  public SessionFactory getSessionFactory(Long itemId) {
+    return SessionFactoryRegistry.getSessionFactory(getShard(itemId));
+  }
+
+  /**
+   * The factories of all the shards, in the order of hibernate.bid_shards
+   */
+  public List<SessionFactory> getSessionFactories() {
+    List<SessionFactory> sessionFactories = new ArrayList<>(shards.size());
+    for (String shard : shards) {
+      sessionFactories.add(SessionFactoryRegistry.getSessionFactory(shard));
+    }
+    return sessionFactories;
+  }
+
+  /**
+   * Where the bids of the item go: its shard, or the database itself if the
+   * router is null and bids are not sharded
+   */
+  public static SessionFactory getBidSessionFactory(BidShardRouter router, SessionFactory database, Long itemId) {
+    return router == null ? database : router.getSessionFactory(itemId);
+  }
+
+  /**
+   * Lamping and Veach, "A Fast, Minimal Memory, Consistent Hash Algorithm": when
+   * a bucket is added a key either stays where it is or moves to the new bucket
+   */
+  static int jumpHash(long key, int buckets) {
+    long bucket = -1;
+    long next = 0;
+    while (next < buckets) {
+      bucket = next;
+      key = key * 2862933555777941757L + 1;
+      next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+    }
+    return (int) bucket;
+  }
+
+}
@@ -0,0 +1,197 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.hibernate.CacheMode;
+import org.hibernate.FlushMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import model.Bid;
+
+/**
+ * The bids of an item, or of a period, one at a time for exports and audits.
+ * A list() keeps every bid in the persistence context until the session is
+ * closed; here the query is scrolled forward only, fetch_size rows per round
+ * trip, and the stream has a session of its own that is cleared every
+ * fetch_size bids. The memory used is the same for 10 bids or 10 million.
+ *
+ * try (BidStream bids = BidStream.ofItem(sessionFactory, itemId, 500)) {
+ *
+ * while (bids.hasNext()) { export(bids.next()); }
+ *
+ * }
+ *
+ * Only the BID table is read, so a stream works on a bid shard too, where
+ * there is no ITEM or USERS table (see BidShardRouter): the item and the
+ * bidder of a bid are proxies never initialized, use getItemId() and
+ * getBidderId(). A bid is detached when the stream moves to the next chunk,
+ * anything lazy must be read before that. The stream is read only and
+ * bypasses the second-level cache, an export doesn't push the hot entries out.
+ *
+ * The bids of a period are in every shard: ItemDAO.streamBidsOfPeriod() reads
+ * them shard after shard
+ */
+public class BidStream implements Iterator<Bid>, AutoCloseable {
+
+  public static final int DEFAULT_FETCH_SIZE = 500;
+
+  private final Iterator<SessionFactory> databases;
+  private final Scroll scroll;
+  private final int fetchSize;
+
+  // Of the database being read
+  private Session session;
+  private Transaction tx;
+  private ScrollableResults results;
+
+  private int inChunk;
+  private Boolean hasNext;
+  private boolean closed;
+
+  private BidStream(Iterator<SessionFactory> databases, Scroll scroll, int fetchSize) {
+    this.databases = databases;
+    this.scroll = scroll;
+    this.fetchSize = fetchSize;
+  }
+
+  /**
+   * The bids of the item, oldest first. With sharded bids pass the
+   * SessionFactory of the item's shard (see BidShardRouter)
+   */
+  public static BidStream ofItem(SessionFactory sessionFactory, Long itemId, int fetchSize) {
+    return open(Collections.singletonList(sessionFactory), fetchSize, session -> NamedQueryRegistry
+        .execute(session, AuctionQueries.BID_STREAM_OF_ITEM, query -> query.setParameter("itemId", itemId)
+            .setFetchSize(fetchSize).setReadOnly(true).scroll(ScrollMode.FORWARD_ONLY)));
+  }
+
+  /**
+   * The bids placed from the first date (included) to the second one (not
+   * included), oldest first. With sharded bids this is only the bids of one
+   * shard, stream all of them with the list of the shards
+   */
+  public static BidStream ofPeriod(SessionFactory sessionFactory, Date from, Date to, int fetchSize) {
+    return ofPeriod(Collections.singletonList(sessionFactory), from, to, fetchSize);
+  }
+
+  /**
+   * The bids of the period in every database of the list, one database after
+   * the other: oldest first in each database, not across them. Only one
+   * database at a time has a session and a cursor open (see
+   * BidShardRouter.getSessionFactories())
+   */
+  public static BidStream ofPeriod(List<SessionFactory> databases, Date from, Date to, int fetchSize) {
+    return open(databases, fetchSize, session -> NamedQueryRegistry
+        .execute(session, AuctionQueries.BID_STREAM_OF_PERIOD, query -> query.setParameter("from", from)
+            .setParameter("to", to).setFetchSize(fetchSize).setReadOnly(true).scroll(ScrollMode.FORWARD_ONLY)));
+  }
+
+  private interface Scroll {
+    ScrollableResults scroll(Session session);
+  }
+
+  private static BidStream open(List<SessionFactory> databases, int fetchSize, Scroll scroll) {
+    if (fetchSize <= 0) {
+      throw new IllegalArgumentException("Fetch size must be positive");
+    }
+    if (databases.isEmpty()) {
+      throw new IllegalArgumentException("No database to stream the bids of");
+    }
+    BidStream stream = new BidStream(new ArrayList<>(databases).iterator(), scroll, fetchSize);
+    stream.openNext();
+    return stream;
+  }
+
+  // Open the session and the cursor of the next database
+  private void openNext() {
+    Session next = databases.next().openSession();
+    Transaction nextTx = null;
+    try {
+      next.setFlushMode(FlushMode.MANUAL);
+      next.setCacheMode(CacheMode.IGNORE);
+      next.setDefaultReadOnly(true);
+      // The cursor lives as long as the transaction
+      nextTx = next.beginTransaction();
+      results = scroll.scroll(next);
+    } catch (RuntimeException e) {
+      if (nextTx != null && nextTx.isActive()) {
+        nextTx.rollback();
+      }
+      next.close();
+      closed = true;
+      throw e;
+    }
+    session = next;
+    tx = nextTx;
+    inChunk = 0;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (hasNext == null) {
+      if (closed) {
+        return false;
+      }
+      if (inChunk == fetchSize) {
+        // The caller is done with the previous chunk
+        session.clear();
+        inChunk = 0;
+      }
+      hasNext = results.next();
+      while (!hasNext && databases.hasNext()) {
+        // The caller is done with the last bids of this database too
+        closeCurrent();
+        openNext();
+        hasNext = results.next();
+      }
+      if (!hasNext) {
+        close();
+      }
+    }
+    return hasNext;
+  }
+
+  @Override
+  public Bid next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    hasNext = null;
+    inChunk++;
+    return (Bid) results.get(0);
+  }
+
+  /**
+   * Close the cursor and the session, it's done by itself at the end of the
+   * bids, call it when the stream is left before
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    closeCurrent();
+  }
+
+  private void closeCurrent() {
+    try {
+      results.close();
+      // Nothing was written, committing only ends the transaction
+      if (tx.isActive()) {
+        tx.commit();
+      }
+    } finally {
+      session.close();
+    }
+  }
+
+}
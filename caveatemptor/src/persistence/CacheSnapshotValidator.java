@@ -0,0 +1,125 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.cache.CacheKey;
+import org.hibernate.cache.CacheProvider;
+import org.hibernate.cache.RegionFactory;
+import org.hibernate.cache.impl.bridge.RegionFactoryCacheProviderBridge;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.VersionType;
+
+import hibernate_config.CacheSnapshot;
+import hibernate_config.SnapshotCache;
+import hibernate_config.SnapshotCacheProvider;
+
+/**
+ * While the node was down other nodes kept writing to the database, so the
+ * snapshot of the cache it reloads (see SnapshotCacheProvider) may be stale.
+ * Before the SessionFactory is used, for every entity region with a snapshot
+ * the versions of the entries are compared with the ones in the database, a
+ * batch of identifiers per query, and every entry with a different version,
+ * or whose row is gone, is discarded. Only the identifiers and versions are
+ * read, the cached state stays in the file until it's asked for.
+ *
+ * Without a version there is nothing to compare: the snapshot of an immutable
+ * entity (like Bid) is always good, the one of a mutable entity without a
+ * version, of a collection or of a query is discarded whole
+ */
+public class CacheSnapshotValidator {
+
+  private static final Logger log = Logger.getLogger(CacheSnapshotValidator.class);
+
+  private static final int BATCH_SIZE = 500;
+
+  private CacheSnapshotValidator() {
+  }
+
+  public static void validate(SessionFactory sessionFactory) {
+    RegionFactory regionFactory = ((SessionFactoryImplementor) sessionFactory).getSettings().getRegionFactory();
+    if (!(regionFactory instanceof RegionFactoryCacheProviderBridge)) {
+      return;
+    }
+    CacheProvider provider = ((RegionFactoryCacheProviderBridge) regionFactory).getCacheProvider();
+    if (!(provider instanceof SnapshotCacheProvider)) {
+      return;
+    }
+
+    // Region -> persister of the root entity cached in it
+    Map<String, EntityPersister> persisters = new HashMap<>();
+    for (Object metadata : sessionFactory.getAllClassMetadata().values()) {
+      EntityPersister persister = (EntityPersister) metadata;
+      if (persister.hasCache() && persister.getEntityName().equals(persister.getRootEntityName())) {
+        persisters.put(persister.getCacheAccessStrategy().getRegion().getName(), persister);
+      }
+    }
+
+    for (Map.Entry<String, SnapshotCache> region : ((SnapshotCacheProvider) provider).getRegions().entrySet()) {
+      CacheSnapshot.RegionSnapshot snapshot = region.getValue().getSnapshot();
+      if (snapshot == null) {
+        continue;
+      }
+      EntityPersister persister = persisters.get(region.getKey());
+      if (persister != null && persister.isVersioned()) {
+        validate(sessionFactory, persister, snapshot);
+      } else if (persister == null || persister.isMutable()) {
+        log.warn("No version to validate the snapshot of region " + region.getKey() + ", discarded");
+        snapshot.discardAll();
+      }
+    }
+  }
+
+  private static void validate(SessionFactory sessionFactory, EntityPersister persister,
+      CacheSnapshot.RegionSnapshot snapshot) {
+    long start = System.currentTimeMillis();
+    Map<Object, Object> versions = snapshot.getVersions();
+    String versionProperty = persister.getPropertyNames()[persister.getVersionProperty()];
+    String query = "select e.id, e." + versionProperty + " from " + persister.getEntityName()
+        + " e where e.id in (:ids)";
+
+    // Identifier -> cache key, the keys are what the snapshot knows
+    Map<Object, Object> keys = new HashMap<>();
+    for (Object key : versions.keySet()) {
+      keys.put(key instanceof CacheKey ? ((CacheKey) key).getKey() : key, key);
+    }
+
+    // Both versions come from the persister's own version type
+    @SuppressWarnings("unchecked")
+    VersionType<Object> versionType = (VersionType<Object>) persister.getVersionType();
+    int discarded = 0;
+    StatelessSession session = sessionFactory.openStatelessSession();
+    try {
+      List<Object> ids = new ArrayList<>(keys.keySet());
+      for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+        List<Object> batch = ids.subList(from, Math.min(from + BATCH_SIZE, ids.size()));
+        Map<Object, Object> current = new HashMap<>();
+        for (Object row : session.createQuery(query).setParameterList("ids", batch).setReadOnly(true).list()) {
+          current.put(((Object[]) row)[0], ((Object[]) row)[1]);
+        }
+
+        for (Object id : batch) {
+          Object key = keys.get(id);
+          Object cached = versions.get(key);
+          Object version = current.get(id);
+          if (version == null || cached == null || !versionType.isEqual(cached, version)) {
+            snapshot.discard(key);
+            discarded++;
+          }
+        }
+      }
+    } finally {
+      session.close();
+    }
+    log.info("Snapshot of region " + snapshot.getRegionName() + ": " + (versions.size() - discarded) + " entries valid, "
+        + discarded + " stale discarded, in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+}
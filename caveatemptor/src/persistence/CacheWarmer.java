@@ -0,0 +1,179 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.hibernate.CacheMode;
+import org.hibernate.HibernateException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.cfg.Configuration;
+
+/**
+ * Right after a deploy the second-level cache is empty, so the first requests
+ * all go to the database for the same items, their categories and their
+ * sellers. The auctions that matter are the ones that are about to end, so the
+ * warmer loads the items with an endDate in the next N hours, together with
+ * their seller and categories, with CacheMode.PUT: the session only writes to
+ * the second-level cache, it never reads from it. The categories go to the
+ * cache of the Item.categories collection, the categories themselves to the
+ * Category region.
+ *
+ * The identifiers are read with a forward only cursor from a StatelessSession
+ * (nothing is kept in memory) and cut in batches of a fixed size, each batch is
+ * loaded by one of the threads of the warmer in its own session. At most two
+ * batches per thread are waiting at the same time, so the cursor never gets
+ * too much ahead of the loading.
+ *
+ * It's optional, AuctionBootstrap runs it only if the hours are set in
+ * the configuration. A cold cache is slower, not wrong, so a warm-up that fails
+ * is logged and the factory is used anyway:
+ *
+ * <property name="hibernate.cache.warmup.hours">6</property>
+ *
+ * <property name="hibernate.cache.warmup.batch_size">100</property>
+ *
+ * <property name="hibernate.cache.warmup.threads">4</property>
+ */
+public class CacheWarmer {
+
+  private static final Logger log = Logger.getLogger(CacheWarmer.class);
+
+  public static final String HOURS_PROPERTY = "hibernate.cache.warmup.hours";
+  public static final String BATCH_SIZE_PROPERTY = "hibernate.cache.warmup.batch_size";
+  public static final String THREADS_PROPERTY = "hibernate.cache.warmup.threads";
+
+  private static final String ENDING_ITEMS = "select i.id from AuctionItem i where i.endDate between :now and :until";
+  private static final String ITEMS_WITH_SELLER_AND_CATEGORIES = "select distinct i from AuctionItem i "
+      + "left join fetch i.seller left join fetch i.categories where i.id in (:ids)";
+
+  private final SessionFactory sessionFactory;
+  private final int hours;
+  private final int batchSize;
+  private final int threads;
+
+  public CacheWarmer(SessionFactory sessionFactory, int hours, int batchSize, int threads) {
+    if (hours <= 0 || batchSize <= 0 || threads <= 0) {
+      throw new IllegalArgumentException("Hours, batch size and threads must be positive");
+    }
+    this.sessionFactory = sessionFactory;
+    this.hours = hours;
+    this.batchSize = batchSize;
+    this.threads = threads;
+  }
+
+  /**
+   * Return a warmer configured with the warmup properties, or null if the
+   * warmup is not enabled
+   */
+  public static CacheWarmer fromConfiguration(Configuration configuration, SessionFactory sessionFactory) {
+    String hours = configuration.getProperty(HOURS_PROPERTY);
+    if (hours == null || hours.trim().isEmpty()) {
+      return null;
+    }
+    return new CacheWarmer(sessionFactory, Integer.parseInt(hours.trim()),
+        Integer.parseInt(configuration.getProperties().getProperty(BATCH_SIZE_PROPERTY, "100").trim()),
+        Integer.parseInt(configuration.getProperties().getProperty(THREADS_PROPERTY, "4").trim()));
+  }
+
+  /**
+   * Load the ending auctions into the second-level cache, return how many items
+   * were loaded
+   */
+  public int warm() {
+    long start = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    Semaphore inFlight = new Semaphore(threads * 2);
+    List<Future<Integer>> batches = new ArrayList<>();
+
+    StatelessSession cursorSession = sessionFactory.openStatelessSession();
+    try {
+      Date now = new Date();
+      ScrollableResults ids = cursorSession.createQuery(ENDING_ITEMS)
+          .setTimestamp("now", now)
+          .setTimestamp("until", new Date(now.getTime() + TimeUnit.HOURS.toMillis(hours)))
+          .setFetchSize(batchSize)
+          .setReadOnly(true)
+          .scroll(ScrollMode.FORWARD_ONLY);
+      try {
+        List<Long> batch = new ArrayList<>(batchSize);
+        while (ids.next()) {
+          batch.add(ids.getLong(0));
+          if (batch.size() == batchSize) {
+            batches.add(submit(executor, inFlight, batch));
+            batch = new ArrayList<>(batchSize);
+          }
+        }
+        if (!batch.isEmpty()) {
+          batches.add(submit(executor, inFlight, batch));
+        }
+      } finally {
+        ids.close();
+      }
+
+      int loaded = 0;
+      for (Future<Integer> batch : batches) {
+        loaded += batch.get();
+      }
+      log.info("Warmed up the second-level cache with " + loaded + " items ending in the next " + hours + " hours in "
+          + (System.currentTimeMillis() - start) + " ms");
+      return loaded;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HibernateException("Interrupted while warming up the second-level cache", e);
+    } catch (ExecutionException e) {
+      throw new HibernateException("Could not warm up the second-level cache", e.getCause());
+    } finally {
+      cursorSession.close();
+      executor.shutdownNow();
+    }
+  }
+
+  private Future<Integer> submit(ExecutorService executor, final Semaphore inFlight, final List<Long> ids)
+      throws InterruptedException {
+    inFlight.acquire();
+    return executor.submit(() -> {
+      try {
+        return load(ids);
+      } finally {
+        inFlight.release();
+      }
+    });
+  }
+
+  /**
+   * The items, their sellers and their categories come with a single query,
+   * one row per category: initializing the categories item by item would be a
+   * SELECT for each item of the batch
+   */
+  private int load(List<Long> ids) {
+    Session session = sessionFactory.openSession();
+    session.setCacheMode(CacheMode.PUT);
+    session.setDefaultReadOnly(true);
+    try {
+      session.beginTransaction();
+      List<?> items = session.createQuery(ITEMS_WITH_SELLER_AND_CATEGORIES).setParameterList("ids", ids).list();
+      session.getTransaction().commit();
+      return items.size();
+    } catch (HibernateException e) {
+      if (session.getTransaction().isActive()) {
+        session.getTransaction().rollback();
+      }
+      throw e;
+    } finally {
+      session.close();
+    }
+  }
+
+}
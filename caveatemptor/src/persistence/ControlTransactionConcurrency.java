@@ -204,8 +204,8 @@ public class ControlTransactionConcurrency {
     Item item = (Item) session.get(Item.class, 123L);
     session.lock(item, LockMode.UPGRADE);
 
-    String description = (String) session.createQuery("select i.description from Item i where i.id = :itemid")
-        .setParameter("itemid", item.getId()).uniqueResult();
+    String description = NamedQueryRegistry.execute(session, AuctionQueries.ITEM_DESCRIPTION,
+        query -> (String) query.setParameter("itemid", item.getId()).uniqueResult());
 
     tx.commit();
     session.close();
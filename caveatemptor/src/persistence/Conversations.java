@@ -1,12 +1,19 @@
 package persistence;
 
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import javax.naming.InitialContext;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
 import javax.transaction.UserTransaction;
 
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
 import org.hibernate.context.ManagedSessionContext;
 
 import model.Bid;
@@ -24,7 +31,7 @@ import model.Item;
 public class Conversations {
 
   public static SessionFactory getSessionFactory() {
-    return null;
+    return SessionFactoryRegistry.getSessionFactory();
   }
 
   /**
@@ -50,6 +57,8 @@ public class Conversations {
      * java running thread
      */
     public void endAuction(Item item) {
+      // The bids acknowledged by the journal must be in BID first
+      itemDAO.awaitJournaledBids();
       try {
         getSessionFactory().getCurrentSession().beginTransaction();
         // Reattch item
@@ -96,6 +105,7 @@ public class Conversations {
     }
 
     public void endAuction(Item item) {
+      itemDAO.awaitJournaledBids();
       try {
         utx.begin();
 
@@ -215,13 +225,165 @@ public class Conversations {
 
   public static class ItemDAO {
 
+    // How long closing an auction waits for the journaled bids to be applied
+    private static final long JOURNAL_WAIT_SECONDS = 30;
+
+    // Null when the bids are in the auction database with everything else
+    private final BidShardRouter shardRouter;
+    // Null when the bids are inserted without a journal
+    private final BidJournal bidJournal;
+
+    // The shards and the journal of the default database, if it has any
+    public ItemDAO() {
+      this(AuctionBootstrap.getBidShardRouter(SessionFactoryRegistry.DEFAULT_CONFIG),
+          AuctionBootstrap.getBidJournal(SessionFactoryRegistry.DEFAULT_CONFIG));
+    }
+
+    public ItemDAO(BidShardRouter shardRouter) {
+      this(shardRouter, null);
+    }
+
+    public ItemDAO(BidShardRouter shardRouter, BidJournal bidJournal) {
+      this.shardRouter = shardRouter;
+      this.bidJournal = bidJournal;
+    }
+
+    /**
+     * Wait until the bids the journal acknowledged are in BID, before an
+     * auction is closed: getMaxBid() queries the table and would miss a higher
+     * bid still in the journal. Call it outside the transaction
+     */
+    public void awaitJournaledBids() {
+      if (bidJournal == null) {
+        return;
+      }
+      try {
+        if (!bidJournal.awaitApplied(JOURNAL_WAIT_SECONDS, TimeUnit.SECONDS)) {
+          throw new HibernateException("The bid journal still has " + bidJournal.getBacklog()
+              + " bids to apply, the auction can't be closed yet");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new HibernateException("Interrupted while waiting for the bid journal", e);
+      }
+    }
+
+    /**
+     * The database with the bids of the item: the shard of the item if bids are
+     * sharded
+     */
+    private SessionFactory getBidSessionFactory(Long itemId) {
+      return BidShardRouter.getBidSessionFactory(shardRouter, getSessionFactory(), itemId);
+    }
+
+    private interface BidWork<T> {
+      T execute(Session session);
+    }
+
+    /**
+     * Without shards the bids are read in the current session, inside the
+     * transaction of the caller. A shard is another database: no caller has a
+     * transaction there, so the DAO opens a session on the shard, reads in a
+     * transaction of its own and closes it. The bids it returns are detached,
+     * their item and bidder are proxies of rows in the auction database, use
+     * only their ids (Bid.getItemId())
+     */
+    private <T> T readBids(Long itemId, BidWork<T> work) {
+      if (shardRouter == null) {
+        return work.execute(getSessionFactory().getCurrentSession());
+      }
+      Session session = shardRouter.getSessionFactory(itemId).openSession();
+      Transaction tx = null;
+      try {
+        session.setDefaultReadOnly(true);
+        tx = session.beginTransaction();
+        T result = work.execute(session);
+        tx.commit();
+        return result;
+      } catch (RuntimeException e) {
+        if (tx != null && tx.isActive()) {
+          tx.rollback();
+        }
+        throw e;
+      } finally {
+        session.close();
+      }
+    }
+
     /**
      * You can use getCurrentSession in order to return the session inside the
-     * transaction
+     * transaction. The high bid is always queried from the database, closing an
+     * auction must see the bids committed by every node
      */
     public Bid getMaxBid(Long itemId) {
-      Session session = getSessionFactory().getCurrentSession();
-      return (Bid) session.createQuery("...").uniqueResult();
+      return readBids(itemId, session -> queryMaxBid(session, itemId));
+    }
+
+    /**
+     * The high bid shown on the item page, from MaxBidTracker when it's
+     * rebuilt: only the bids committed in this JVM are tracked, so it may be
+     * behind the database. Never use it to close an auction, see getMaxBid()
+     */
+    public Bid getDisplayedMaxBid(Long itemId) {
+      return readBids(itemId, session -> {
+        // The high bid is kept in memory, the bid itself is in the second-level
+        // cache. A tracked bid that is gone (deleted, moved to another shard)
+        // falls back to the query
+        MaxBidTracker tracker = MaxBidTracker.forSession(session);
+        if (tracker != null && tracker.isRebuilt()) {
+          MaxBidTracker.HighBid highBid = tracker.getHighBid(itemId);
+          if (highBid == null) {
+            return null;
+          }
+          Bid bid = (Bid) session.get(Bid.class, highBid.getBidId());
+          if (bid != null) {
+            return bid;
+          }
+        }
+        return queryMaxBid(session, itemId);
+      });
+    }
+
+    private Bid queryMaxBid(Session session, Long itemId) {
+      return NamedQueryRegistry.execute(session, AuctionQueries.MAX_BID,
+          query -> (Bid) query.setParameter("itemId", itemId).setMaxResults(1).uniqueResult());
+    }
+
+    // The latest bids first, a page at a time
+    @SuppressWarnings("unchecked")
+    public List<Bid> getBidHistory(Long itemId, int firstResult, int maxResults) {
+      return readBids(itemId, session -> NamedQueryRegistry.execute(session, AuctionQueries.BID_HISTORY,
+          query -> (List<Bid>) query.setParameter("itemId", itemId).setFirstResult(firstResult)
+              .setMaxResults(maxResults).list()));
+    }
+
+    /**
+     * The "N bids" of the item page. With shards Item.getBidCount() is 0, the
+     * bids are not in the auction database
+     */
+    public long getBidCount(Long itemId) {
+      return readBids(itemId, session -> NamedQueryRegistry.execute(session, AuctionQueries.BID_COUNT,
+          query -> (Long) query.setParameter("itemId", itemId).uniqueResult()));
+    }
+
+    /**
+     * All the bids of the item for an export, in constant memory. The stream
+     * has its own session, close it if you stop before the end
+     */
+    public BidStream streamBids(Long itemId) {
+      return BidStream.ofItem(getBidSessionFactory(itemId), itemId, BidStream.DEFAULT_FETCH_SIZE);
+    }
+
+    /**
+     * All the bids placed in the period, from the first date (included) to the
+     * second one (not included), in constant memory. With shards the stream
+     * reads one shard after the other, the bids are oldest first in each shard
+     * and not across them. Close the stream if you stop before the end
+     */
+    public BidStream streamBidsOfPeriod(Date from, Date to) {
+      List<SessionFactory> databases = shardRouter == null ? Collections.singletonList(getSessionFactory())
+          : shardRouter.getSessionFactories();
+      return BidStream.ofPeriod(databases, from, to, BidStream.DEFAULT_FETCH_SIZE);
     }
 
   }
@@ -234,7 +396,7 @@ public class Conversations {
   public static class ManageAuctionDetachedObjectJpa {
 
     public Item getAuction(Long itemId) {
-      EntityManager em = emf.createEntityManager();
+      EntityManager em = EntityManagerFactoryRegistry.createEntityManager();
       EntityTransaction tx = em.getTransaction();
 
       tx.begin();
@@ -249,7 +411,7 @@ public class Conversations {
 
     public Item endAuction(Item item) {
 
-      EntityManager em = emf.createEntityManager();
+      EntityManager em = EntityManagerFactoryRegistry.createEntityManager();
       EntityTransaction tx = em.getTransaction();
 
       tx.begin();
@@ -329,12 +491,16 @@ public class Conversations {
       EntityTransaction tx = null;
 
       try {
-        em = getEntityManagerFactory().createEntityManager();
+        em = EntityManagerFactoryRegistry.createEntityManager();
         tx = em.getTransaction();
 
         tx.begin();
 
-        maxBid = (Bid) em.createQuery("...").getSingleResult();
+        // getSingleResult() throws NoResultException for an item without bids
+        maxBid = NamedQueryRegistry.execute(em, AuctionQueries.MAX_BID, query -> {
+          List<?> bids = query.setParameter("itemId", itemId).setMaxResults(1).getResultList();
+          return bids.isEmpty() ? null : (Bid) bids.get(0);
+        });
 
         tx.commit();
       } finally {
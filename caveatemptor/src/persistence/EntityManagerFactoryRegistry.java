@@ -0,0 +1,101 @@
+package persistence;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+
+/**
+ * The JPA counterpart of SessionFactoryRegistry. An EntityManagerFactory is what
+ * a SessionFactory is in Hibernate: creating one reads persistence.xml, scans
+ * the classes of the persistence unit and starts a connection pool. An
+ * EntityManager on the other hand is really cheap, it's just a new persistence
+ * context, so the factory should be created once per persistence unit and all
+ * the entity managers should come from it.
+ *
+ * Factories are created the first time a persistence unit is asked for. So the
+ * first request doesn't pay for it, the application boots with
+ * SessionFactoryBootstrap.startAuctionAndBilling(), which creates the
+ * caveatEmptorDB factory with the session factories (warmUp() does the same for
+ * other units). close() closes all of them when the application stops
+ */
+public class EntityManagerFactoryRegistry {
+
+  public static final String CAVEAT_EMPTOR_DB = "caveatEmptorDB";
+
+  private static final ConcurrentMap<String, FutureTask<EntityManagerFactory>> entityManagerFactories = new ConcurrentHashMap<>();
+
+  private EntityManagerFactoryRegistry() {
+  }
+
+  public static EntityManagerFactory getEntityManagerFactory() {
+    return getEntityManagerFactory(CAVEAT_EMPTOR_DB);
+  }
+
+  public static EntityManagerFactory getEntityManagerFactory(final String persistenceUnit) {
+    FutureTask<EntityManagerFactory> task = entityManagerFactories.get(persistenceUnit);
+
+    if (task == null) {
+      FutureTask<EntityManagerFactory> newTask = new FutureTask<>(
+          () -> Persistence.createEntityManagerFactory(persistenceUnit));
+      task = entityManagerFactories.putIfAbsent(persistenceUnit, newTask);
+      if (task == null) {
+        task = newTask;
+        task.run();
+      }
+    }
+
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PersistenceException("Interrupted while creating EntityManagerFactory for " + persistenceUnit, e);
+    } catch (ExecutionException e) {
+      entityManagerFactories.remove(persistenceUnit, task);
+      throw new PersistenceException("Could not create EntityManagerFactory for " + persistenceUnit, e.getCause());
+    }
+  }
+
+  /**
+   * A new EntityManager always starts with a fresh persistence context
+   */
+  public static EntityManager createEntityManager() {
+    return getEntityManagerFactory().createEntityManager();
+  }
+
+  public static EntityManager createEntityManager(String persistenceUnit) {
+    return getEntityManagerFactory(persistenceUnit).createEntityManager();
+  }
+
+  /**
+   * Create the factories at boot time instead of at the first request
+   */
+  public static void warmUp(String... persistenceUnits) {
+    for (String persistenceUnit : persistenceUnits) {
+      getEntityManagerFactory(persistenceUnit);
+    }
+  }
+
+  public static synchronized void close() {
+    for (Map.Entry<String, FutureTask<EntityManagerFactory>> entry : entityManagerFactories.entrySet()) {
+      entityManagerFactories.remove(entry.getKey());
+      try {
+        EntityManagerFactory entityManagerFactory = entry.getValue().get();
+        if (entityManagerFactory.isOpen()) {
+          entityManagerFactory.close();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // Never created so nothing to close
+      }
+    }
+  }
+
+}
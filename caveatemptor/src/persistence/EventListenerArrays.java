@@ -0,0 +1,24 @@
+package persistence;
+
+import java.util.Arrays;
+
+/**
+ * Hibernate 3.6 keeps the listeners of an event in an array, a listener added
+ * to a Configuration goes after the ones already there (the default ones
+ * included): see BidCacheInvalidator, UserNaturalIdResolver and MaxBidTracker
+ */
+final class EventListenerArrays {
+
+  private EventListenerArrays() {
+  }
+
+  /**
+   * A copy of the listeners with one more at the end
+   */
+  static <T> T[] append(T[] listeners, T listener) {
+    T[] result = Arrays.copyOf(listeners, listeners.length + 1);
+    result[listeners.length] = listener;
+    return result;
+  }
+
+}
@@ -7,8 +7,6 @@ import org.hibernate.LockMode;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
-import org.hibernate.cfg.Configuration;
-import org.hibernate.tool.hbm2ddl.SchemaValidator;
 
 import model.Item;
 
@@ -46,12 +44,13 @@ import model.Item;
  */
 public class HibernateInterfaces {
 
-  SessionFactory sessionFactory;
-
+  /**
+   * Every method below calls this one to open a Session. Building a new factory
+   * each time would be really expensive (and would leak a connection pool per
+   * call) so the factory is taken from the SessionFactoryRegistry
+   */
   public SessionFactory getSessionFactory() {
-    Configuration configuration = new Configuration().configure();
-    new SchemaValidator(configuration).validate();
-    return configuration.buildSessionFactory();
+    return SessionFactoryRegistry.getSessionFactory();
   }
 
   public void storingObject() {
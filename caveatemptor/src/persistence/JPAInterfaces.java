@@ -3,10 +3,8 @@ package persistence;
 import java.util.Date;
 
 import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.FlushModeType;
-import javax.persistence.Persistence;
 
 import model.Item;
 import model.User;
@@ -19,11 +17,12 @@ import model.User;
 public class JPAInterfaces {
 
   /**
-   * The entity manager has a fresh persistence context assigned when it's created
+   * The entity manager has a fresh persistence context assigned when it's
+   * created. The factory instead is shared, creating it for every entity manager
+   * would mean parsing persistence.xml and starting a pool each time
    */
   public EntityManager getEntityManager() {
-    EntityManagerFactory emf = Persistence.createEntityManagerFactory("caveatEmptorDB");
-    return emf.createEntityManager();
+    return EntityManagerFactoryRegistry.createEntityManager(EntityManagerFactoryRegistry.CAVEAT_EMPTOR_DB);
   }
 
   /**
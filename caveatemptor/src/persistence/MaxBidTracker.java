@@ -0,0 +1,213 @@
+package persistence;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.log4j.Logger;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+
+import model.Bid;
+
+/**
+ * The current high bid of every item, in memory. Viewing an auction used to
+ * run AuctionQueries.MAX_BID, a query over all the bids of the item; now
+ * ItemDAO.getDisplayedMaxBid() reads the id of the high bid from here and loads
+ * the bid by id, from the Bid region of the second-level cache.
+ *
+ * Each item has an AtomicReference to an immutable HighBid. A bid can only
+ * replace a lower one, with a compare-and-set loop, so concurrent bids on the
+ * same item never lose the highest one and readers never lock: a read is a
+ * map lookup and a volatile read, it doesn't allocate anything.
+ *
+ * A bid is offered only once its transaction commits: the tracker is a post
+ * insert listener that registers a Synchronization on the transaction, and
+ * afterCompletion() offers the bid only for STATUS_COMMITTED. The post commit
+ * insert listeners of Hibernate 3.6 are no good here, EntityInsertAction calls
+ * them after a rollback too. When the SessionFactory is built the index is
+ * rebuilt from the BID table, with a forward only cursor; bids committed in the
+ * meantime are offered too, the compare-and-set keeps whichever is higher.
+ *
+ * The index only sees the bids committed through this SessionFactory in this
+ * JVM, and a bid never leaves it: bids inserted by another node, deleted, or
+ * moved to another shard by BidShardRebalancer are not tracked. That's why
+ * ItemDAO.getDisplayedMaxBid() goes back to the Bid.max query when the tracked
+ * bid cannot be loaded, and why the tracker is for display only: with several
+ * nodes the high bid shown may be behind, closing an auction always runs the
+ * query (ItemDAO.getMaxBid())
+ */
+public class MaxBidTracker implements PostInsertEventListener {
+
+  private static final long serialVersionUID = 1886517542235637021L;
+
+  private static final Logger log = Logger.getLogger(MaxBidTracker.class);
+
+  private static final String ALL_BIDS = "select b.id, b.item.id, b.bidAmount from Bid b";
+
+  private final ConcurrentMap<Long, AtomicReference<HighBid>> highBids = new ConcurrentHashMap<>();
+  private volatile boolean rebuilt;
+
+  public static final class HighBid {
+
+    private final Long bidId;
+    private final BigDecimal amount;
+
+    HighBid(Long bidId, BigDecimal amount) {
+      this.bidId = bidId;
+      this.amount = amount;
+    }
+
+    public Long getBidId() {
+      return bidId;
+    }
+
+    public BigDecimal getAmount() {
+      return amount;
+    }
+
+    @Override
+    public String toString() {
+      return "HighBid(" + bidId + ", " + amount + ")";
+    }
+
+  }
+
+  /**
+   * The high bid of the item, null if it has no bids
+   */
+  public HighBid getHighBid(Long itemId) {
+    AtomicReference<HighBid> highBid = highBids.get(itemId);
+    return highBid == null ? null : highBid.get();
+  }
+
+  /**
+   * False until the index is rebuilt from the database, until then it doesn't
+   * know the bids placed before the start
+   */
+  public boolean isRebuilt() {
+    return rebuilt;
+  }
+
+  /**
+   * Make the bid the high bid of the item if it's higher than the current one,
+   * return true if it is
+   */
+  public boolean offer(Long itemId, Long bidId, BigDecimal amount) {
+    if (itemId == null || bidId == null || amount == null) {
+      return false;
+    }
+    AtomicReference<HighBid> highBid = highBids.computeIfAbsent(itemId, id -> new AtomicReference<>());
+    HighBid offered = new HighBid(bidId, amount);
+    while (true) {
+      HighBid current = highBid.get();
+      if (current != null && current.amount.compareTo(amount) >= 0) {
+        // Same amount: the first bid keeps the auction
+        return false;
+      }
+      if (highBid.compareAndSet(current, offered)) {
+        return true;
+      }
+    }
+  }
+
+  public void onPostInsert(PostInsertEvent event) {
+    if (!(event.getEntity() instanceof Bid)) {
+      return;
+    }
+    Bid bid = (Bid) event.getEntity();
+    Long itemId = bid.getItemId();
+    if (itemId == null || bid.getBidAmount() == null) {
+      return;
+    }
+    Long bidId = (Long) event.getId();
+    BigDecimal amount = bid.getBidAmount().getAmount();
+
+    Transaction tx = event.getSession().getTransaction();
+    if (!tx.isActive()) {
+      // Auto-commit, the INSERT is already committed
+      offer(itemId, bidId, amount);
+      return;
+    }
+    tx.registerSynchronization(new Synchronization() {
+
+      public void beforeCompletion() {
+      }
+
+      public void afterCompletion(int status) {
+        if (status == Status.STATUS_COMMITTED) {
+          offer(itemId, bidId, amount);
+        }
+      }
+
+    });
+  }
+
+  /**
+   * Read every bid and keep the highest of each item
+   */
+  public void rebuild(SessionFactory sessionFactory) {
+    long start = System.currentTimeMillis();
+    int bids = 0;
+    StatelessSession session = sessionFactory.openStatelessSession();
+    try {
+      ScrollableResults results = session.createQuery(ALL_BIDS)
+          .setFetchSize(1000)
+          .setReadOnly(true)
+          .scroll(ScrollMode.FORWARD_ONLY);
+      try {
+        while (results.next()) {
+          MonetaryAmount amount = (MonetaryAmount) results.get(2);
+          offer((Long) results.get(1), (Long) results.get(0), amount == null ? null : amount.getAmount());
+          bids++;
+        }
+      } finally {
+        results.close();
+      }
+    } finally {
+      session.close();
+    }
+    rebuilt = true;
+    log.info("Max bid index rebuilt from " + bids + " bids of " + highBids.size() + " items in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  /**
+   * The tracker registered in the SessionFactory of the session, null if there
+   * is none
+   */
+  public static MaxBidTracker forSession(Session session) {
+    for (PostInsertEventListener listener : ((SessionImplementor) session).getListeners()
+        .getPostInsertEventListeners()) {
+      if (listener instanceof MaxBidTracker) {
+        return (MaxBidTracker) listener;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Add a new tracker to the post insert listeners of the configuration,
+   * AuctionBootstrap then rebuilds it once the factory is built
+   */
+  public static MaxBidTracker register(Configuration configuration) {
+    MaxBidTracker tracker = new MaxBidTracker();
+    EventListeners listeners = configuration.getEventListeners();
+    listeners.setPostInsertEventListeners(EventListenerArrays.append(listeners.getPostInsertEventListeners(), tracker));
+    return tracker;
+  }
+
+}
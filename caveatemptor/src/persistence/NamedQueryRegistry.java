@@ -0,0 +1,210 @@
+package persistence;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.NamedQueryDefinition;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.engine.query.HQLQueryPlan;
+
+/**
+ * A named query is declared once, with @NamedQuery or <query> in a mapping
+ * file, and referenced by name. Hibernate parses it together with the mappings
+ * and, if hibernate.query.startup_check is on (the default), checks it when the
+ * SessionFactory is built, so a typo fails the boot and not a request.
+ *
+ * The translated plan still lives in the QueryPlanCache, which is a bounded LRU
+ * cache: when the application runs a lot of different queries a plan can be
+ * evicted and translated again. This registry translates every named query as
+ * soon as the factory is built and then keeps, for each query of each factory,
+ * how many times it was translated, how many times it was executed and how long
+ * the executions took. The cache only creates a plan when it misses, so every
+ * plan object not seen before (they are kept in a weak identity set) is one
+ * miss, whatever filters were enabled and however many threads missed at once
+ *
+ * Session session = ...
+ *
+ * Bid bid = NamedQueryRegistry.execute(session, AuctionQueries.MAX_BID, query ->
+ * (Bid) query.setParameter("itemId", itemId).uniqueResult());
+ */
+public class NamedQueryRegistry {
+
+  private static final Logger log = Logger.getLogger(NamedQueryRegistry.class);
+
+  private static final Map<SessionFactory, ConcurrentMap<String, QueryStatistics>> statistics = Collections
+      .synchronizedMap(new WeakHashMap<>());
+
+  private NamedQueryRegistry() {
+  }
+
+  /**
+   * Translate all the named queries of the configuration, called by
+   * AuctionBootstrap right after the factory is built
+   */
+  @SuppressWarnings("unchecked")
+  public static void register(Configuration configuration, SessionFactory sessionFactory) {
+    long start = System.currentTimeMillis();
+    SessionFactoryImplementor factory = (SessionFactoryImplementor) sessionFactory;
+    Map<String, NamedQueryDefinition> namedQueries = configuration.getNamedQueries();
+
+    for (String name : namedQueries.keySet()) {
+      try {
+        translate(factory, name, Collections.EMPTY_MAP);
+      } catch (HibernateException e) {
+        throw new HibernateException("Invalid named query " + name, e);
+      }
+    }
+    log.info("Translated " + namedQueries.size() + " named queries in " + (System.currentTimeMillis() - start)
+        + " ms");
+  }
+
+  public static <T> T execute(Session session, String name, Function<Query, T> execution) {
+    QueryStatistics queryStatistics = translate((SessionFactoryImplementor) session.getSessionFactory(), name,
+        ((SessionImplementor) session).getLoadQueryInfluencers().getEnabledFilters());
+    Query query = session.getNamedQuery(name);
+
+    long start = System.nanoTime();
+    try {
+      return execution.apply(query);
+    } finally {
+      queryStatistics.executed(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * JPA version, the named query is looked up and run by the Session behind the
+   * EntityManager
+   */
+  public static <T> T execute(EntityManager entityManager, String name,
+      Function<javax.persistence.Query, T> execution) {
+    Session session = (Session) entityManager.getDelegate();
+    QueryStatistics queryStatistics = translate((SessionFactoryImplementor) session.getSessionFactory(), name,
+        ((SessionImplementor) session).getLoadQueryInfluencers().getEnabledFilters());
+    javax.persistence.Query query = entityManager.createNamedQuery(name);
+
+    long start = System.nanoTime();
+    try {
+      return execution.apply(query);
+    } finally {
+      queryStatistics.executed(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Ask the QueryPlanCache for the plan of the query, a plan not seen before
+   * was just translated
+   */
+  @SuppressWarnings("rawtypes")
+  private static QueryStatistics translate(SessionFactoryImplementor factory, String name, Map enabledFilters) {
+    ConcurrentMap<String, QueryStatistics> queries = statistics.computeIfAbsent(factory,
+        f -> new ConcurrentHashMap<>());
+    QueryStatistics queryStatistics = queries.get(name);
+    if (queryStatistics == null) {
+      NamedQueryDefinition definition = factory.getNamedQuery(name);
+      if (definition == null) {
+        throw new MappingException("Named query not known: " + name);
+      }
+      queryStatistics = queries.computeIfAbsent(name, n -> new QueryStatistics(n, definition.getQueryString()));
+    }
+
+    HQLQueryPlan plan = factory.getQueryPlanCache().getHQLQueryPlan(queryStatistics.getHql(), false,
+        enabledFilters);
+    queryStatistics.planUsed(plan);
+    return queryStatistics;
+  }
+
+  public static QueryStatistics getStatistics(SessionFactory sessionFactory, String name) {
+    Map<String, QueryStatistics> queries = statistics.get(sessionFactory);
+    return queries == null ? null : queries.get(name);
+  }
+
+  public static Collection<QueryStatistics> getStatistics(SessionFactory sessionFactory) {
+    Map<String, QueryStatistics> queries = statistics.get(sessionFactory);
+    return queries == null ? Collections.<QueryStatistics> emptyList()
+        : Collections.unmodifiableCollection(queries.values());
+  }
+
+  public static void logStatistics(SessionFactory sessionFactory) {
+    for (QueryStatistics queryStatistics : getStatistics(sessionFactory)) {
+      log.info(queryStatistics);
+    }
+  }
+
+  public static class QueryStatistics {
+
+    private final String name;
+    private final String hql;
+    private final AtomicLong translations = new AtomicLong();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong executionNanos = new AtomicLong();
+    // The plans the cache returned, weakly so an evicted plan can be collected
+    private final Set<HQLQueryPlan> plans = Collections.newSetFromMap(new WeakHashMap<>());
+
+    QueryStatistics(String name, String hql) {
+      this.name = name;
+      this.hql = hql;
+    }
+
+    // HQLQueryPlan doesn't override equals(), the set is by identity
+    void planUsed(HQLQueryPlan plan) {
+      boolean translated;
+      synchronized (plans) {
+        translated = plans.add(plan);
+      }
+      if (translated) {
+        translations.incrementAndGet();
+      }
+    }
+
+    void executed(long nanos) {
+      executions.incrementAndGet();
+      executionNanos.addAndGet(nanos);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getHql() {
+      return hql;
+    }
+
+    public long getTranslationCount() {
+      return translations.get();
+    }
+
+    public long getExecutionCount() {
+      return executions.get();
+    }
+
+    public double getMeanLatencyMillis() {
+      long count = executions.get();
+      return count == 0 ? 0 : executionNanos.get() / 1000000.0 / count;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %d translations, %d executions, %.3f ms mean", name, getTranslationCount(),
+          getExecutionCount(), getMeanLatencyMillis());
+    }
+
+  }
+
+}
@@ -3,8 +3,6 @@ package persistence;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
-import org.hibernate.cfg.Configuration;
-import org.hibernate.tool.hbm2ddl.SchemaValidator;
 
 import model.Item;
 
@@ -150,8 +148,6 @@ import model.Item;
  */
 public class PersistenceLifeCycle {
 
-  private static SessionFactory sessionFactory;
-
   /**
    * If you're working with object in detached state you're dealing
    * with objects that are living outside of a guaranteed scope of object
@@ -159,9 +155,7 @@ public class PersistenceLifeCycle {
    * but they are different from java identity point of view
    */
   public static void IdentityScopeIssue(){
-    Configuration configuration = new Configuration().configure();
-    new SchemaValidator(configuration).validate();
-    sessionFactory = configuration.buildSessionFactory();
+    SessionFactory sessionFactory = SessionFactoryRegistry.getSessionFactory();
 
     Session session1 = sessionFactory.openSession();
     Transaction transaction1 = session1.beginTransaction();
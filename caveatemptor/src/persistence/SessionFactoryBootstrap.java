@@ -0,0 +1,132 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+
+/**
+ * When an application works with several databases, like the auction and the
+ * billing database in TransactionManagerInterface, their SessionFactorys don't
+ * depend on each other at all. Building them one after the other makes the
+ * startup as long as the sum of all the builds, building them in parallel makes
+ * it as long as the slowest one.
+ *
+ * The factories are still built through the SessionFactoryRegistry so they are
+ * shared with the rest of the application, and the AuctionBootstrap of each
+ * one translates its named queries as soon as it's built (see
+ * NamedQueryRegistry), so the first request doesn't pay for it. The EntityManagerFactorys of the JPA
+ * persistence units are created in the same pool
+ */
+public class SessionFactoryBootstrap {
+
+  private static final Logger log = Logger.getLogger(SessionFactoryBootstrap.class);
+
+  // Configuration resources
+  private final Set<String> databases = new LinkedHashSet<>();
+  private final Set<String> persistenceUnits = new LinkedHashSet<>();
+
+  public SessionFactoryBootstrap add(String configResource) {
+    databases.add(configResource);
+    return this;
+  }
+
+  /**
+   * Create the EntityManagerFactory of the persistence unit together with the
+   * session factories, see EntityManagerFactoryRegistry
+   */
+  public SessionFactoryBootstrap addPersistenceUnit(String persistenceUnit) {
+    persistenceUnits.add(persistenceUnit);
+    return this;
+  }
+
+  /**
+   * Build all the registered factories and wait for them. If a build fails the
+   * others are still completed, then the first failure is thrown
+   */
+  public Map<String, SessionFactory> start() {
+    long start = System.currentTimeMillis();
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(databases.size() + persistenceUnits.size(),
+        Runtime.getRuntime().availableProcessors())));
+
+    try {
+      List<Future<EntityManagerFactory>> entityManagerFactories = new ArrayList<>();
+      for (String persistenceUnit : persistenceUnits) {
+        entityManagerFactories
+            .add(pool.submit(() -> EntityManagerFactoryRegistry.getEntityManagerFactory(persistenceUnit)));
+      }
+      List<Callable<SessionFactory>> builds = new ArrayList<>();
+      for (String configResource : databases) {
+        builds.add(() -> SessionFactoryRegistry.getSessionFactory(configResource));
+      }
+
+      List<Future<SessionFactory>> results = pool.invokeAll(builds);
+
+      Map<String, SessionFactory> sessionFactories = new LinkedHashMap<>();
+      HibernateException failure = null;
+      int i = 0;
+      for (String configResource : databases) {
+        try {
+          sessionFactories.put(configResource, results.get(i++).get());
+        } catch (ExecutionException e) {
+          failure = failed(configResource, e, failure);
+        }
+      }
+      i = 0;
+      for (String persistenceUnit : persistenceUnits) {
+        try {
+          entityManagerFactories.get(i++).get();
+        } catch (ExecutionException e) {
+          failure = failed(persistenceUnit, e, failure);
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+
+      log.info("Started " + sessionFactories.size() + " session factories and " + persistenceUnits.size()
+          + " entity manager factories in " + (System.currentTimeMillis() - start) + " ms");
+      return sessionFactories;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HibernateException("Interrupted while starting session factories", e);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  // Log the failure, the first one is what start() throws
+  private static HibernateException failed(String name, ExecutionException e, HibernateException failure) {
+    log.error("Could not start " + name, e.getCause());
+    if (failure != null) {
+      return failure;
+    }
+    return e.getCause() instanceof HibernateException ? (HibernateException) e.getCause()
+        : new HibernateException("Could not start " + name, e.getCause());
+  }
+
+  /**
+   * What TransactionManagerInterface uses: the auction and the billing
+   * database, and the auction database through JPA
+   */
+  public static Map<String, SessionFactory> startAuctionAndBilling() {
+    return new SessionFactoryBootstrap()
+        .add(SessionFactoryRegistry.AUCTION_DATABASE)
+        .add(SessionFactoryRegistry.BILLING_DATABASE)
+        .addPersistenceUnit(EntityManagerFactoryRegistry.CAVEAT_EMPTOR_DB)
+        .start();
+  }
+
+}
@@ -0,0 +1,119 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+
+/**
+ * A SessionFactory is an expensive object: building one parses the whole
+ * configuration, binds every mapping, validates the schema against the database
+ * and starts a connection pool. It is also thread safe, so it should be created
+ * once per database and shared by the whole application, exactly like
+ * HibernateUtil does in helloworld with its static initializer.
+ *
+ * Since here we have more than one database (the auction and the billing one,
+ * see TransactionManagerInterface) a single static field is not enough, so the
+ * factories are kept in a registry keyed by the configuration resource they are
+ * built from. Each factory is built lazily the first time it's asked for and
+ * exactly once: if two threads ask for the same resource at the same time the
+ * second one simply waits for the first one to finish the build.
+ *
+ * Everything else that comes with the factory of a database, from the
+ * snapshot of the bound metadata to the applier of the bid journal, is the
+ * job of its AuctionBootstrap: the registry creates one per resource, starts
+ * it in place of a bare build and keeps it with the factory.
+ *
+ * When the application stops shutdown() stops every bootstrap, then closes
+ * every factory, and with them their connection pools (and their cache
+ * providers, see SnapshotCacheProvider)
+ */
+public class SessionFactoryRegistry {
+
+  public static final String DEFAULT_CONFIG = "/hibernate.cfg.xml";
+
+  // Each database has its own configuration file and so its own SessionFactory
+  public static final String AUCTION_DATABASE = "/auction.cfg.xml";
+  public static final String BILLING_DATABASE = "/billing.cfg.xml";
+
+  private static final ConcurrentMap<String, FutureTask<AuctionBootstrap>> databases = new ConcurrentHashMap<>();
+
+  private SessionFactoryRegistry() {
+  }
+
+  public static SessionFactory getSessionFactory() {
+    return getSessionFactory(DEFAULT_CONFIG);
+  }
+
+  public static SessionFactory getSessionFactory(final String configResource) {
+    return getBootstrap(configResource).getSessionFactory();
+  }
+
+  /**
+   * The started bootstrap of the database, the one that built its factory
+   */
+  static AuctionBootstrap getBootstrap(final String configResource) {
+    FutureTask<AuctionBootstrap> task = databases.get(configResource);
+
+    if (task == null) {
+      FutureTask<AuctionBootstrap> newTask = new FutureTask<>(() -> start(configResource));
+      task = databases.putIfAbsent(configResource, newTask);
+      if (task == null) {
+        // This thread won the race, so it's the one that builds the factory
+        task = newTask;
+        task.run();
+      }
+    }
+
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HibernateException("Interrupted while building SessionFactory for " + configResource, e);
+    } catch (ExecutionException e) {
+      // Forget the failed build so the next call can try again
+      databases.remove(configResource, task);
+      throw new HibernateException("Could not build SessionFactory for " + configResource, e.getCause());
+    }
+  }
+
+  // A failed start, whatever it threw, has already closed what it had started
+  private static AuctionBootstrap start(String configResource) {
+    AuctionBootstrap bootstrap = new AuctionBootstrap(configResource);
+    bootstrap.start();
+    return bootstrap;
+  }
+
+  /**
+   * Close all the factories built so far. After this call the registry is empty
+   * and a new call to getSessionFactory() will build a fresh factory
+   */
+  public static synchronized void shutdown() {
+    List<AuctionBootstrap> started = new ArrayList<>();
+    for (Map.Entry<String, FutureTask<AuctionBootstrap>> entry : databases.entrySet()) {
+      databases.remove(entry.getKey(), entry.getValue());
+      try {
+        started.add(entry.getValue().get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // The build failed so there is nothing to close
+      }
+    }
+    // Every database is stopped before any factory is closed, the shards of a
+    // bid journal are factories of their own
+    for (AuctionBootstrap bootstrap : started) {
+      bootstrap.stop();
+    }
+    for (AuctionBootstrap bootstrap : started) {
+      bootstrap.close();
+    }
+  }
+
+}
@@ -7,9 +7,7 @@ import javax.transaction.UserTransaction;
 
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
-import org.hibernate.cfg.Configuration;
 import org.hibernate.classic.Session;
-import org.hibernate.tool.hbm2ddl.SchemaValidator;
 
 import jdk.jshell.spi.ExecutionControl.RunException;
 
@@ -46,10 +44,12 @@ import jdk.jshell.spi.ExecutionControl.RunException;
  */
 public class TransactionManagerInterface {
 
+  /**
+   * The factory is built only the first time and then shared, see
+   * SessionFactoryRegistry
+   */
   public SessionFactory getHibernateSessionFactory() {
-    Configuration configuration = new Configuration().configure();
-    new SchemaValidator(configuration).validate();
-    return configuration.buildSessionFactory();
+    return SessionFactoryRegistry.getSessionFactory();
   }
 
   /**
@@ -122,6 +122,9 @@ public class TransactionManagerInterface {
     javax.transaction.UserTransaction utx = (javax.transaction.UserTransaction) new InitialContext()
         .lookup("java:comp/UserTransaction");
 
+    SessionFactory auctionDatabase = SessionFactoryRegistry.getSessionFactory(SessionFactoryRegistry.AUCTION_DATABASE);
+    SessionFactory billingDatabase = SessionFactoryRegistry.getSessionFactory(SessionFactoryRegistry.BILLING_DATABASE);
+
     Session session1 = null;
     Session session2 = null;
 
@@ -160,6 +163,9 @@ public class TransactionManagerInterface {
    */
   @TransactionAttribute(TransactionAttributeType.REQUIRED)
   public void jtaTransactionInsideContainer() {
+    SessionFactory auctionDatabase = SessionFactoryRegistry.getSessionFactory(SessionFactoryRegistry.AUCTION_DATABASE);
+    SessionFactory billingDatabase = SessionFactoryRegistry.getSessionFactory(SessionFactoryRegistry.BILLING_DATABASE);
+
     Session sesssion1 = auctionDatabase.openSession();
     Session session2 = billingDatabase.openSession();
 
@@ -181,7 +187,7 @@ public class TransactionManagerInterface {
     EntityTransaction tx = null;
 
     try {
-      em = emf.createEntityManager();
+      em = EntityManagerFactoryRegistry.createEntityManager();
       tx = em.getTransaction();
       tx.begin();
 
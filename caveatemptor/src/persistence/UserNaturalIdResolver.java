@@ -0,0 +1,163 @@
+package persistence;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+
+import model.User;
+
+/**
+ * Logins and seller lookups look for a user by username, the business key of
+ * User, and a query by a property that is not the identifier always goes to
+ * the database, even if the user is in the second-level cache. The resolver
+ * remembers username -> id, so the lookup becomes a session.get() by
+ * identifier, and with the User region warm there is no SQL at all.
+ *
+ * The username can change, so the resolver is also an event listener: after
+ * an update that changes the username, and after a delete, the old username is
+ * forgotten. Like BidCacheInvalidator it runs both right after the statement
+ * and after the commit, because in between another transaction may read the
+ * old row and put the old username back. Changes the listener can't see (a
+ * bulk update, another node) are caught anyway, the username of the loaded
+ * user is always checked before it's returned.
+ *
+ * AuctionBootstrap registers it in the configuration:
+ *
+ * User seller = UserNaturalIdResolver.forSession(session).findByUsername(session, "johndoe");
+ */
+public class UserNaturalIdResolver implements PostUpdateEventListener, PostDeleteEventListener {
+
+  private static final long serialVersionUID = -3065718395406122417L;
+
+  private static final String USERNAME = "username";
+
+  private final ConcurrentMap<String, Long> ids = new ConcurrentHashMap<>();
+
+  // id -> username, so an update or a delete finds the username of an id
+  // without a scan of ids
+  private final ConcurrentMap<Long, String> usernames = new ConcurrentHashMap<>();
+
+  /**
+   * The user with the username, null if there is none
+   */
+  public User findByUsername(Session session, String username) {
+    Long id = ids.get(username);
+    if (id != null) {
+      User user = (User) session.get(User.class, id);
+      if (user != null && username.equals(user.getUsername())) {
+        return user;
+      }
+      // Changed where the listener couldn't see it
+      forget(username, id);
+    }
+
+    id = NamedQueryRegistry.execute(session, AuctionQueries.USER_ID_BY_USERNAME,
+        query -> (Long) query.setString("username", username).uniqueResult());
+    if (id == null) {
+      return null;
+    }
+    User user = (User) session.get(User.class, id);
+    if (user != null && username.equals(user.getUsername())) {
+      remember(username, id);
+    }
+    return user;
+  }
+
+  private void remember(String username, Long id) {
+    String previous = usernames.put(id, username);
+    if (previous != null && !previous.equals(username)) {
+      ids.remove(previous, id);
+    }
+    ids.put(username, id);
+  }
+
+  private void forget(String username, Long id) {
+    ids.remove(username, id);
+    usernames.remove(id, username);
+  }
+
+  public void onPostUpdate(PostUpdateEvent event) {
+    if (!(event.getEntity() instanceof User)) {
+      return;
+    }
+    Long id = (Long) event.getId();
+    String username = ((User) event.getEntity()).getUsername();
+    if (event.getOldState() != null) {
+      Object oldUsername = event.getOldState()[usernameIndex(event.getPersister().getPropertyNames())];
+      if (oldUsername != null && !oldUsername.equals(username)) {
+        forget((String) oldUsername, id);
+      }
+    } else {
+      // update() of a detached user, the old state was never loaded
+      String remembered = usernames.get(id);
+      if (remembered != null && !remembered.equals(username)) {
+        forget(remembered, id);
+      }
+    }
+  }
+
+  public void onPostDelete(PostDeleteEvent event) {
+    if (!(event.getEntity() instanceof User)) {
+      return;
+    }
+    Long id = (Long) event.getId();
+    String username = usernames.remove(id);
+    if (username != null) {
+      ids.remove(username, id);
+    }
+  }
+
+  private static int usernameIndex(String[] propertyNames) {
+    for (int i = 0; i < propertyNames.length; i++) {
+      if (USERNAME.equals(propertyNames[i])) {
+        return i;
+      }
+    }
+    throw new HibernateException("User has no " + USERNAME + " property");
+  }
+
+  public int size() {
+    return ids.size();
+  }
+
+  /**
+   * The resolver registered in the SessionFactory of the session
+   */
+  public static UserNaturalIdResolver forSession(Session session) {
+    for (PostUpdateEventListener listener : ((SessionImplementor) session).getListeners()
+        .getPostUpdateEventListeners()) {
+      if (listener instanceof UserNaturalIdResolver) {
+        return (UserNaturalIdResolver) listener;
+      }
+    }
+    throw new HibernateException("No UserNaturalIdResolver registered in the configuration");
+  }
+
+  /**
+   * Add a new resolver to the post update and post delete listeners of the
+   * configuration, both the ones after the statement and after the commit
+   */
+  public static UserNaturalIdResolver register(Configuration configuration) {
+    UserNaturalIdResolver resolver = new UserNaturalIdResolver();
+    EventListeners listeners = configuration.getEventListeners();
+    listeners.setPostUpdateEventListeners(
+        EventListenerArrays.append(listeners.getPostUpdateEventListeners(), resolver));
+    listeners.setPostCommitUpdateEventListeners(
+        EventListenerArrays.append(listeners.getPostCommitUpdateEventListeners(), resolver));
+    listeners.setPostDeleteEventListeners(
+        EventListenerArrays.append(listeners.getPostDeleteEventListeners(), resolver));
+    listeners.setPostCommitDeleteEventListeners(
+        EventListenerArrays.append(listeners.getPostCommitDeleteEventListeners(), resolver));
+    return resolver;
+  }
+
+}
@@ -0,0 +1,234 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.tool.hbm2ddl.SchemaExport;
+
+import persistence.ConfigurationSnapshot;
+import persistence.SchemaFingerprint;
+
+/**
+ * Measure how long it takes to start Hibernate, phase by phase, against an
+ * HSQLDB file database (so the numbers don't depend on a running server). It
+ * runs the same steps of HibernateUtil:
+ *
+ * parse -- read hibernate.cfg.xml and Message.hbm.xml, or the snapshot
+ *
+ * pool-start -- build the SessionFactory, this starts the c3p0 pool
+ *
+ * schema-validation -- the SchemaFingerprint check
+ *
+ * first-query -- the first query of HelloWorld, translation included
+ *
+ * Every start is a JVM of its own, forked by this one, so nothing a previous
+ * start loaded or compiled is left: a start in the same JVM would find the
+ * Hibernate classes loaded and the parser already compiled. Every run is two
+ * starts: cold, with no configuration snapshot and no stored schema
+ * fingerprint, and warm, with both of them left by the cold one. The database
+ * and the snapshots (hibernate.snapshot.dir, see ConfigurationSnapshot) are in
+ * the work directory, startup-benchmark next to the report if not given. Each
+ * phase of each start is written as a line of a CSV report
+ *
+ * Usage: StartupBenchmark [runs] [report file] [work directory]
+ */
+public class StartupBenchmark {
+
+  private static final String MODULE = "helloworld";
+  private static final String CONFIG = "/hibernate.cfg.xml";
+
+  // First argument of a forked start, the second one is the database URL
+  private static final String START = "start";
+  private static final String PHASE = "phase,";
+
+  private final String url;
+  private final File snapshotDir;
+  private final List<String[]> report = new ArrayList<>();
+
+  public StartupBenchmark(File workDir) {
+    this.url = "jdbc:hsqldb:file:" + new File(workDir, "db/startupbenchmark").getAbsolutePath();
+    this.snapshotDir = new File(workDir, "snapshots");
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 2 && args[0].equals(START)) {
+      start(args[1]);
+      return;
+    }
+    int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    File reportFile = new File(args.length > 1 ? args[1] : "bench-startup.csv").getAbsoluteFile();
+    File workDir = args.length > 2 ? new File(args[2]) : new File(reportFile.getParentFile(), "startup-benchmark");
+
+    StartupBenchmark benchmark = new StartupBenchmark(workDir);
+    benchmark.createSchema();
+    for (int run = 1; run <= runs; run++) {
+      benchmark.run(run, true);
+      benchmark.run(run, false);
+    }
+    benchmark.writeReport(reportFile);
+    benchmark.printSummary();
+  }
+
+  private static Configuration override(Configuration configuration, String url) {
+    configuration.setProperty("hibernate.connection.url", url);
+    configuration.setProperty("hibernate.show_sql", "false");
+    configuration.setProperty("hibernate.format_sql", "false");
+    return configuration;
+  }
+
+  private void createSchema() throws SQLException {
+    new SchemaExport(override(new Configuration().configure(CONFIG), url)).create(false, true);
+    shutdown();
+  }
+
+  private void run(int run, boolean cold) throws IOException, InterruptedException, SQLException {
+    if (cold) {
+      File[] snapshots = snapshotDir.listFiles();
+      for (File snapshot : snapshots == null ? new File[0] : snapshots) {
+        snapshot.delete();
+      }
+      forgetFingerprint();
+    }
+
+    Process start = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp",
+        System.getProperty("java.class.path"),
+        "-D" + ConfigurationSnapshot.SNAPSHOT_DIR_PROPERTY + "=" + snapshotDir.getAbsolutePath(),
+        StartupBenchmark.class.getName(), START, url + ";shutdown=true")
+        .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+    long total = 0;
+    BufferedReader out = new BufferedReader(new InputStreamReader(start.getInputStream()));
+    try {
+      String line;
+      while ((line = out.readLine()) != null) {
+        // The rest is the log of the forked JVM
+        if (line.startsWith(PHASE)) {
+          String[] phase = line.split(",");
+          record(run, cold, phase[1], Long.parseLong(phase[2]));
+          total += Long.parseLong(phase[2]);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (start.waitFor() != 0) {
+      throw new IllegalStateException(
+          "Start " + run + (cold ? " cold" : " warm") + " failed, exit " + start.exitValue());
+    }
+    record(run, cold, "total", total);
+  }
+
+  /**
+   * One start, in the forked JVM: the phases are printed on standard output
+   */
+  private static void start(String url) {
+    long start = System.nanoTime();
+    Configuration configuration = override(ConfigurationSnapshot.load(CONFIG), url);
+    phase("parse", start);
+
+    start = System.nanoTime();
+    SessionFactory sessionFactory = configuration.buildSessionFactory();
+    phase("pool-start", start);
+
+    try {
+      start = System.nanoTime();
+      SchemaFingerprint.validate(configuration, sessionFactory);
+      phase("schema-validation", start);
+
+      start = System.nanoTime();
+      Session session = sessionFactory.openSession();
+      try {
+        session.getNamedQuery("Message.all").list();
+      } finally {
+        session.close();
+      }
+      phase("first-query", start);
+    } finally {
+      sessionFactory.close();
+    }
+  }
+
+  private static void phase(String phase, long start) {
+    System.out.println(PHASE + phase + "," + (System.nanoTime() - start) / 1000);
+  }
+
+  private void forgetFingerprint() throws SQLException {
+    Connection connection = DriverManager.getConnection(url, "sa", "");
+    try {
+      ResultSet tables = connection.getMetaData().getTables(null, null, SchemaFingerprint.TABLE_NAME, null);
+      boolean exists = tables.next();
+      tables.close();
+      if (exists) {
+        Statement statement = connection.createStatement();
+        statement.executeUpdate("delete from " + SchemaFingerprint.TABLE_NAME);
+        statement.close();
+      }
+    } finally {
+      connection.close();
+    }
+    shutdown();
+  }
+
+  /**
+   * Close the database before a start is forked, it can be open in one JVM
+   * only. This JVM's URL has no shutdown=true: with it the database starts
+   * closing when the last connection is closed, and a connection opened before
+   * it's done fails with "attempt to connect while db opening /closing"
+   */
+  private void shutdown() throws SQLException {
+    Connection connection = DriverManager.getConnection(url, "sa", "");
+    try {
+      Statement statement = connection.createStatement();
+      statement.execute("SHUTDOWN");
+      statement.close();
+    } finally {
+      connection.close();
+    }
+  }
+
+  private void record(int run, boolean cold, String phase, long micros) {
+    report.add(new String[] { MODULE, String.valueOf(run), cold ? "cold" : "warm", phase, String.valueOf(micros) });
+  }
+
+  private void writeReport(File reportFile) throws IOException {
+    PrintWriter out = new PrintWriter(new FileWriter(reportFile));
+    try {
+      out.println("module,run,mode,phase,micros");
+      for (String[] line : report) {
+        out.println(String.join(",", line));
+      }
+    } finally {
+      out.close();
+    }
+    System.out.println("Startup report written to " + reportFile.getAbsolutePath());
+  }
+
+  private void printSummary() {
+    Map<String, long[]> sums = new LinkedHashMap<>();
+    for (String[] line : report) {
+      long[] sum = sums.computeIfAbsent(line[2] + " " + line[3], k -> new long[2]);
+      sum[0] += Long.parseLong(line[4]);
+      sum[1]++;
+    }
+    for (Map.Entry<String, long[]> sum : sums.entrySet()) {
+      System.out.println(String.format("%-24s %10.2f ms", sum.getKey(), sum.getValue()[0] / 1000.0 / sum.getValue()[1]));
+    }
+  }
+
+}
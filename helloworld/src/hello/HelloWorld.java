@@ -36,7 +36,7 @@ public class HelloWorld {
     Session session = HibernateUtil.getSessionFactory().openSession();
     Transaction transaction = session.beginTransaction();
 
-    List messages = session.createQuery("from Message m order by m.text asc").list();
+    List messages = session.getNamedQuery("Message.all").list();
     System.out.println( messages.size() + " message(s) found: ");
 
     for (Iterator iter = messages.iterator(); iter.hasNext(); ){
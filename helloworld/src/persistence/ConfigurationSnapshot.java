@@ -0,0 +1,337 @@
+package persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.mapping.Collection;
+import org.hibernate.mapping.Component;
+import org.hibernate.mapping.IndexedCollection;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.mapping.Property;
+import org.hibernate.mapping.SimpleValue;
+import org.hibernate.mapping.Value;
+import org.hibernate.util.ReflectHelper;
+
+/**
+ * Reading hibernate.cfg.xml and the mapping files and binding them into the
+ * Configuration metadata is the slowest part of the startup. The result of that
+ * work is always the same until a mapping file or a mapped class changes, and
+ * Configuration is Serializable, so after the first run the bound
+ * Configuration is written into a local snapshot file and the next starts
+ * simply read it back.
+ *
+ * The snapshot starts with a checksum (SHA-1) of the configuration file, every
+ * mapping resource it lists and the bytecode of every mapped class. If any of
+ * them changed the checksum won't match and the configuration is parsed again
+ * and the snapshot rewritten. A mapped class is not the only class of the
+ * binding: its superclasses, its components and its custom types count too,
+ * so the snapshot also keeps the names of every class the bound metadata
+ * refers to (see boundClasses()) and the checksum of their bytecode
+ *
+ * A snapshot is deserialized at the next start, so whoever can write it can run
+ * code in the JVM. It's written only in the directory given by the system
+ * property hibernate.snapshot.dir, never in the temporary directory: the
+ * directory is created readable and writable by its owner only, and an
+ * existing one is used only if it belongs to the user of the JVM and nobody
+ * else can write in it. Without the property the configuration is always
+ * parsed. The file names start with helloworld_, so caveatemptor can share the
+ * directory
+ */
+public class ConfigurationSnapshot {
+
+  private static final Logger log = Logger.getLogger(ConfigurationSnapshot.class);
+
+  public static final String SNAPSHOT_DIR_PROPERTY = "hibernate.snapshot.dir";
+
+  private static final Pattern MAPPING_RESOURCE = Pattern.compile("<mapping\\s+resource\\s*=\\s*\"([^\"]+)\"");
+  private static final Pattern MAPPING_CLASS = Pattern.compile("<mapping\\s+class\\s*=\\s*\"([^\"]+)\"");
+  private static final Pattern HBM_CLASS = Pattern.compile("<(?:class|subclass|joined-subclass|union-subclass)\\s+name\\s*=\\s*\"([^\"]+)\"");
+
+  private static final String FILE_PREFIX = "helloworld_";
+
+  private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+  private ConfigurationSnapshot() {
+  }
+
+  public static Configuration load(String configResource) {
+    File snapshotDir = snapshotDir();
+    if (snapshotDir == null) {
+      return parse(configResource);
+    }
+    return load(configResource, new File(snapshotDir, snapshotName(configResource)));
+  }
+
+  private static Configuration load(String configResource, File snapshotFile) {
+    String checksum = checksum(configResource);
+
+    if (snapshotFile.exists()) {
+      Configuration configuration = read(snapshotFile, checksum);
+      if (configuration != null) {
+        return configuration;
+      }
+    }
+
+    log.info("Parsing " + configResource + ", no valid snapshot in " + snapshotFile);
+    Configuration configuration = parse(configResource);
+    write(snapshotFile, checksum, configuration);
+    return configuration;
+  }
+
+  private static Configuration parse(String configResource) {
+    Configuration configuration = new Configuration().configure(configResource);
+    configuration.buildMappings();
+    return configuration;
+  }
+
+  private static Configuration read(File snapshotFile, String checksum) {
+    try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(snapshotFile))) {
+      if (!checksum.equals(in.readUTF())) {
+        log.info("Mapping sources changed, discarding snapshot " + snapshotFile);
+        return null;
+      }
+      String[] boundClasses = (String[]) in.readObject();
+      if (!classesChecksum(Arrays.asList(boundClasses)).equals(in.readUTF())) {
+        log.info("Mapped classes changed, discarding snapshot " + snapshotFile);
+        return null;
+      }
+      return (Configuration) in.readObject();
+    } catch (IOException | ClassNotFoundException | RuntimeException e) {
+      // A broken or old snapshot is not an error, we just parse again
+      log.warn("Could not read configuration snapshot " + snapshotFile, e);
+      return null;
+    }
+  }
+
+  private static void write(File snapshotFile, String checksum, Configuration configuration) {
+    // Write to a temporary file first so a concurrent start never reads half a
+    // snapshot
+    File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+    try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tmpFile))) {
+      out.writeUTF(checksum);
+      List<String> boundClasses = boundClasses(configuration);
+      out.writeObject(boundClasses.toArray(new String[0]));
+      out.writeUTF(classesChecksum(boundClasses));
+      out.writeObject(configuration);
+    } catch (IOException e) {
+      log.warn("Could not write configuration snapshot " + snapshotFile, e);
+      tmpFile.delete();
+      return;
+    }
+    snapshotFile.delete();
+    if (!tmpFile.renameTo(snapshotFile)) {
+      log.warn("Could not write configuration snapshot " + snapshotFile);
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * The mapping sources are found with a plain text scan of the files, this is
+   * much cheaper than the parsing done by Configuration
+   */
+  static String checksum(String configResource) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      String config = new String(readResource(configResource), "UTF-8");
+      digest.update(config.getBytes("UTF-8"));
+
+      List<String> classes = new ArrayList<>();
+      Matcher resources = MAPPING_RESOURCE.matcher(config);
+      while (resources.find()) {
+        String mapping = new String(readResource(resources.group(1)), "UTF-8");
+        digest.update(mapping.getBytes("UTF-8"));
+
+        Matcher hbmClasses = HBM_CLASS.matcher(mapping);
+        while (hbmClasses.find()) {
+          classes.add(hbmClasses.group(1));
+        }
+      }
+      Matcher annotatedClasses = MAPPING_CLASS.matcher(config);
+      while (annotatedClasses.find()) {
+        classes.add(annotatedClasses.group(1));
+      }
+
+      for (String className : classes) {
+        digest.update(readResource(className.replace('.', '/') + ".class"));
+      }
+
+      return new BigInteger(1, digest.digest()).toString(16);
+    } catch (IOException | NoSuchAlgorithmException e) {
+      throw new HibernateException("Could not compute checksum of " + configResource, e);
+    }
+  }
+
+  /**
+   * The classes the bound metadata refers to: the entities and their
+   * superclasses, the components, the custom types and the identifier
+   * generators, in every property and collection element. Hibernate's and the
+   * JDK's own classes are left out
+   */
+  static List<String> boundClasses(Configuration configuration) {
+    // Names of the mapping, null where a value has none
+    Set<String> names = new HashSet<>();
+    for (Iterator<PersistentClass> classes = configuration.getClassMappings(); classes.hasNext();) {
+      PersistentClass persistentClass = classes.next();
+      names.add(persistentClass.getClassName());
+      names.add(persistentClass.getProxyInterfaceName());
+      addValue(names, persistentClass.getIdentifier());
+      addValue(names, persistentClass.getIdentifierMapper());
+      for (Iterator<?> properties = persistentClass.getPropertyClosureIterator(); properties.hasNext();) {
+        addValue(names, ((Property) properties.next()).getValue());
+      }
+    }
+
+    Set<String> boundClasses = new TreeSet<>();
+    for (String name : names) {
+      addWithSuperclasses(boundClasses, name);
+    }
+    return new ArrayList<>(boundClasses);
+  }
+
+  private static void addValue(Set<String> names, Value value) {
+    if (value instanceof Component) {
+      Component component = (Component) value;
+      names.add(component.getComponentClassName());
+      for (Iterator<?> properties = component.getPropertyIterator(); properties.hasNext();) {
+        addValue(names, ((Property) properties.next()).getValue());
+      }
+    } else if (value instanceof Collection) {
+      Collection collection = (Collection) value;
+      names.add(collection.getTypeName());
+      addValue(names, collection.getElement());
+      if (collection instanceof IndexedCollection) {
+        addValue(names, ((IndexedCollection) collection).getIndex());
+      }
+    } else if (value instanceof SimpleValue) {
+      names.add(((SimpleValue) value).getTypeName());
+      names.add(((SimpleValue) value).getIdentifierGeneratorStrategy());
+    }
+  }
+
+  private static void addWithSuperclasses(Set<String> boundClasses, String name) {
+    if (name == null || isProvided(name)) {
+      return;
+    }
+    Class<?> type;
+    try {
+      type = ReflectHelper.classForName(name);
+    } catch (ClassNotFoundException e) {
+      // A type or generator of Hibernate by its short name, like string or native
+      return;
+    }
+    for (; type != null && !isProvided(type.getName()); type = type.getSuperclass()) {
+      boundClasses.add(type.getName());
+    }
+  }
+
+  private static boolean isProvided(String className) {
+    return className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("org.hibernate.");
+  }
+
+  private static String classesChecksum(List<String> classNames) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      for (String className : classNames) {
+        digest.update(readResource(className.replace('.', '/') + ".class"));
+      }
+      return new BigInteger(1, digest.digest()).toString(16);
+    } catch (IOException | NoSuchAlgorithmException e) {
+      throw new HibernateException("Could not compute checksum of the mapped classes", e);
+    }
+  }
+
+  private static byte[] readResource(String resource) throws IOException {
+    String name = resource.startsWith("/") ? resource.substring(1) : resource;
+    InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(name);
+    if (in == null) {
+      throw new IOException("Resource not found: " + resource);
+    }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      for (int n; (n = in.read(buffer)) != -1;) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String snapshotName(String configResource) {
+    String name = configResource.startsWith("/") ? configResource.substring(1) : configResource;
+    return FILE_PREFIX + name.replace('/', '_') + ".snapshot";
+  }
+
+  /**
+   * The directory of hibernate.snapshot.dir, created for the owner only if it
+   * doesn't exist. Null if the property is not set or the directory is not
+   * safe to read code from
+   */
+  static File snapshotDir() {
+    String property = System.getProperty(SNAPSHOT_DIR_PROPERTY);
+    if (property == null) {
+      return null;
+    }
+    Path dir = new File(property).toPath();
+    try {
+      try {
+        Files.createDirectories(dir.getParent() == null ? dir : dir.getParent());
+        Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+      } catch (FileAlreadyExistsException e) {
+        // Checked below
+      } catch (UnsupportedOperationException e) {
+        // Not a POSIX file system, the permissions are the ones of the parent
+        Files.createDirectories(dir);
+        return dir.toFile();
+      }
+
+      UserPrincipal user = dir.getFileSystem().getUserPrincipalLookupService()
+          .lookupPrincipalByName(System.getProperty("user.name"));
+      if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS) || !user.equals(Files.getOwner(dir))) {
+        log.warn(dir + " is not a directory of " + user.getName() + ", configuration snapshots disabled");
+        return null;
+      }
+      Set<PosixFilePermission> permissions = EnumSet.copyOf(Files.getPosixFilePermissions(dir));
+      permissions.retainAll(EnumSet.of(PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE));
+      if (!permissions.isEmpty()) {
+        log.warn("Others can write in " + dir + ", configuration snapshots disabled");
+        return null;
+      }
+      return dir.toFile();
+    } catch (IOException | UnsupportedOperationException e) {
+      log.warn("Cannot use " + dir + " for configuration snapshots", e);
+      return null;
+    }
+  }
+
+}
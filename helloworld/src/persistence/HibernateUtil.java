@@ -2,7 +2,6 @@ package persistence;
 
 import org.hibernate.*;
 import org.hibernate.cfg.*;
-import org.hibernate.tool.hbm2ddl.SchemaValidator;
 
 public class HibernateUtil {
 
@@ -11,9 +10,17 @@ public class HibernateUtil {
   static {
 
     try {
-      Configuration configuration = new Configuration().configure();
-      new SchemaValidator(configuration).validate();
+      // Read the bound metadata from the snapshot when the mappings didn't change
+      Configuration configuration = ConfigurationSnapshot.load("/hibernate.cfg.xml");
       sessionFactory = configuration.buildSessionFactory();
+
+      // The full schema validation runs only if the mappings changed
+      try {
+        SchemaFingerprint.validate(configuration, sessionFactory);
+      } catch (HibernateException ex) {
+        sessionFactory.close();
+        throw ex;
+      }
     } catch (Throwable ex) {
       throw new ExceptionInInitializerError(ex);
     }
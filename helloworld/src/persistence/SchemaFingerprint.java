@@ -0,0 +1,142 @@
+package persistence;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.tool.hbm2ddl.DatabaseMetadata;
+
+/**
+ * SchemaValidator reads the JDBC metadata of every mapped table and column and
+ * this costs a lot at every boot, even if the schema didn't change since the
+ * last time. Instead a fingerprint of the schema Hibernate expects (a SHA-1 of
+ * the DDL it would generate for this dialect) is saved in the small table
+ * SCHEMA_FINGERPRINT. At the next boot, if the stored fingerprint is the same,
+ * the database was already validated against these exact mappings and the full
+ * validation is skipped. If the mappings changed, or somebody changed the
+ * stored hash (delete the row to force a validation), the schema is validated
+ * again and the new fingerprint stored.
+ *
+ * The validation uses a connection of the SessionFactory, so no extra
+ * connection pool is started only to validate like SchemaValidator does
+ */
+public class SchemaFingerprint {
+
+  private static final Logger log = Logger.getLogger(SchemaFingerprint.class);
+
+  public static final String TABLE_NAME = "SCHEMA_FINGERPRINT";
+
+  private SchemaFingerprint() {
+  }
+
+  public static void validate(Configuration configuration, SessionFactory sessionFactory) {
+    long start = System.currentTimeMillis();
+    Dialect dialect = ((SessionFactoryImplementor) sessionFactory).getDialect();
+    ConnectionProvider connectionProvider = ((SessionFactoryImplementor) sessionFactory).getConnectionProvider();
+    String fingerprint = fingerprint(configuration, dialect);
+
+    Connection connection = null;
+    try {
+      connection = connectionProvider.getConnection();
+      createTableIfMissing(connection);
+
+      if (fingerprint.equals(storedFingerprint(connection))) {
+        log.info("Schema fingerprint " + fingerprint + " unchanged, validation skipped in "
+            + (System.currentTimeMillis() - start) + " ms");
+        return;
+      }
+
+      configuration.validateSchema(dialect, new DatabaseMetadata(connection, dialect));
+      storeFingerprint(connection, fingerprint);
+      log.info("Schema validated and fingerprint " + fingerprint + " stored in "
+          + (System.currentTimeMillis() - start) + " ms");
+    } catch (SQLException e) {
+      throw new HibernateException("Could not validate schema", e);
+    } finally {
+      if (connection != null) {
+        try {
+          connectionProvider.closeConnection(connection);
+        } catch (SQLException e) {
+          log.warn("Could not close connection", e);
+        }
+      }
+    }
+  }
+
+  static String fingerprint(Configuration configuration, Dialect dialect) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(dialect.getClass().getName().getBytes("UTF-8"));
+      for (String ddl : configuration.generateSchemaCreationScript(dialect)) {
+        digest.update(ddl.getBytes("UTF-8"));
+      }
+      return new BigInteger(1, digest.digest()).toString(16);
+    } catch (NoSuchAlgorithmException | java.io.UnsupportedEncodingException e) {
+      throw new HibernateException("Could not compute schema fingerprint", e);
+    }
+  }
+
+  private static void createTableIfMissing(Connection connection) throws SQLException {
+    ResultSet tables = connection.getMetaData().getTables(null, null, TABLE_NAME, null);
+    try {
+      if (tables.next()) {
+        return;
+      }
+    } finally {
+      tables.close();
+    }
+    Statement statement = connection.createStatement();
+    try {
+      statement.executeUpdate("create table " + TABLE_NAME + " (FINGERPRINT varchar(64) not null)");
+    } finally {
+      statement.close();
+    }
+    commit(connection);
+  }
+
+  private static String storedFingerprint(Connection connection) throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      ResultSet resultSet = statement.executeQuery("select FINGERPRINT from " + TABLE_NAME);
+      return resultSet.next() ? resultSet.getString(1) : null;
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static void storeFingerprint(Connection connection, String fingerprint) throws SQLException {
+    Statement delete = connection.createStatement();
+    try {
+      delete.executeUpdate("delete from " + TABLE_NAME);
+    } finally {
+      delete.close();
+    }
+    PreparedStatement insert = connection.prepareStatement("insert into " + TABLE_NAME + " (FINGERPRINT) values (?)");
+    try {
+      insert.setString(1, fingerprint);
+      insert.executeUpdate();
+    } finally {
+      insert.close();
+    }
+    commit(connection);
+  }
+
+  private static void commit(Connection connection) throws SQLException {
+    if (!connection.getAutoCommit()) {
+      connection.commit();
+    }
+  }
+
+}
@@ -0,0 +1,209 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.cfg.Configuration;
+import org.hibernate.ejb.Ejb3Configuration;
+import org.hibernate.tool.hbm2ddl.SchemaExport;
+import org.hibernate.tool.hbm2ddl.SchemaValidator;
+
+/**
+ * The JPA version of the helloworld startup benchmark. Persistence does all the
+ * bootstrap in a single call, so here the steps are done one by one with
+ * Ejb3Configuration, which is what Persistence.createEntityManagerFactory()
+ * uses behind the scenes:
+ *
+ * parse -- read persistence.xml and scan the classes of the unit
+ *
+ * binding -- bind the annotations of the entities into the mapping metadata
+ *
+ * schema-validation -- check the database schema against the mapping
+ *
+ * pool-start -- build the EntityManagerFactory, this starts the c3p0 pool
+ *
+ * first-query -- the first query of HelloWorld, translation included
+ *
+ * Every run is a JVM of its own, forked by this one, that starts twice: cold,
+ * the first start of the JVM, with nothing loaded or compiled yet, and in-jvm,
+ * a second start in the same JVM. A cold start in the JVM of a previous run
+ * would find the Hibernate classes loaded and the parser already compiled.
+ * There is no configuration snapshot or schema fingerprint in this module, so
+ * there is no warm start like the one of helloworld, a new JVM that finds
+ * them: cold is the same in both modules, in-jvm is what caveatemptor measures.
+ * The database is an HSQLDB file database in the work directory,
+ * startup-benchmark next to the report if not given, the schema is exported
+ * once before the first run. Each phase of each start is a line of the CSV
+ * report, with the columns of the other modules
+ *
+ * Usage: StartupBenchmark [runs] [report file] [work directory]
+ */
+public class StartupBenchmark {
+
+  private static final String MODULE = "helloworldjpa";
+  private static final String PERSISTENCE_UNIT = "helloworld";
+
+  // First argument of a forked run, the second one is the database URL
+  private static final String RUN = "run";
+  private static final String PHASE = "phase,";
+
+  private final String url;
+  private final List<String[]> report = new ArrayList<>();
+
+  public StartupBenchmark(File workDir) {
+    this.url = "jdbc:hsqldb:file:" + new File(workDir, "db/startupbenchmark").getAbsolutePath() + ";shutdown=true";
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 2 && args[0].equals(RUN)) {
+      start(args[1], true);
+      start(args[1], false);
+      return;
+    }
+    int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    File reportFile = new File(args.length > 1 ? args[1] : "bench-startup.csv").getAbsoluteFile();
+    File workDir = args.length > 2 ? new File(args[2]) : new File(reportFile.getParentFile(), "startup-benchmark");
+
+    StartupBenchmark benchmark = new StartupBenchmark(workDir);
+    benchmark.createSchema();
+    for (int run = 1; run <= runs; run++) {
+      benchmark.run(run);
+    }
+    benchmark.writeReport(reportFile);
+    benchmark.printSummary();
+  }
+
+  private static Map<String, String> overrides(String url) {
+    Map<String, String> overrides = new HashMap<>();
+    overrides.put("hibernate.connection.url", url);
+    overrides.put("hibernate.show_sql", "false");
+    overrides.put("hibernate.format_sql", "false");
+    // The schema is exported once by createSchema(), not at every start
+    overrides.put("hibernate.hbm2ddl.auto", "");
+    return overrides;
+  }
+
+  private void createSchema() {
+    Configuration configuration = new Ejb3Configuration().configure(PERSISTENCE_UNIT, overrides(url))
+        .getHibernateConfiguration();
+    new SchemaExport(configuration).create(false, true);
+  }
+
+  private void run(int run) throws IOException, InterruptedException {
+    Process forked = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp",
+        System.getProperty("java.class.path"), StartupBenchmark.class.getName(), RUN, url)
+        .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+    Map<String, Long> totals = new LinkedHashMap<>();
+    BufferedReader out = new BufferedReader(new InputStreamReader(forked.getInputStream()));
+    try {
+      String line;
+      while ((line = out.readLine()) != null) {
+        // The rest is the log of the forked JVM
+        if (line.startsWith(PHASE)) {
+          String[] phase = line.split(",");
+          long micros = Long.parseLong(phase[3]);
+          record(run, phase[1], phase[2], micros);
+          Long total = totals.get(phase[1]);
+          totals.put(phase[1], total == null ? micros : total + micros);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (forked.waitFor() != 0) {
+      throw new IllegalStateException("Run " + run + " failed, exit " + forked.exitValue());
+    }
+    for (Map.Entry<String, Long> total : totals.entrySet()) {
+      record(run, total.getKey(), "total", total.getValue());
+    }
+  }
+
+  /**
+   * One start, in the forked JVM: the phases are printed on standard output
+   */
+  private static void start(String url, boolean cold) {
+    String mode = cold ? "cold" : "in-jvm";
+
+    long start = System.nanoTime();
+    Ejb3Configuration ejb3Configuration = new Ejb3Configuration().configure(PERSISTENCE_UNIT, overrides(url));
+    phase(mode, "parse", start);
+
+    start = System.nanoTime();
+    Configuration configuration = ejb3Configuration.getHibernateConfiguration();
+    configuration.buildMappings();
+    phase(mode, "binding", start);
+
+    start = System.nanoTime();
+    new SchemaValidator(configuration).validate();
+    phase(mode, "schema-validation", start);
+
+    start = System.nanoTime();
+    EntityManagerFactory entityManagerFactory = ejb3Configuration.buildEntityManagerFactory();
+    phase(mode, "pool-start", start);
+
+    try {
+      start = System.nanoTime();
+      EntityManager entityManager = entityManagerFactory.createEntityManager();
+      try {
+        entityManager.createNamedQuery("Message.all").getResultList();
+      } finally {
+        entityManager.close();
+      }
+      phase(mode, "first-query", start);
+    } finally {
+      entityManagerFactory.close();
+    }
+  }
+
+  private static void phase(String mode, String phase, long start) {
+    System.out.println(PHASE + mode + "," + phase + "," + (System.nanoTime() - start) / 1000);
+  }
+
+  private void record(int run, String mode, String phase, long micros) {
+    report.add(new String[] { MODULE, String.valueOf(run), mode, phase, String.valueOf(micros) });
+  }
+
+  private void writeReport(File reportFile) throws IOException {
+    PrintWriter out = new PrintWriter(new FileWriter(reportFile));
+    try {
+      out.println("module,run,mode,phase,micros");
+      for (String[] line : report) {
+        out.println(String.join(",", line));
+      }
+    } finally {
+      out.close();
+    }
+    System.out.println("Startup report written to " + reportFile.getAbsolutePath());
+  }
+
+  private void printSummary() {
+    Map<String, long[]> sums = new LinkedHashMap<>();
+    for (String[] line : report) {
+      String key = line[2] + " " + line[3];
+      long[] sum = sums.get(key);
+      if (sum == null) {
+        sum = new long[2];
+        sums.put(key, sum);
+      }
+      sum[0] += Long.parseLong(line[4]);
+      sum[1]++;
+    }
+    for (Map.Entry<String, long[]> sum : sums.entrySet()) {
+      System.out.println(String.format("%-24s %10.2f ms", sum.getKey(), sum.getValue()[0] / 1000.0 / sum.getValue()[1]));
+    }
+  }
+
+}
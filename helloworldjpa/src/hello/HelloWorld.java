@@ -38,7 +38,7 @@ public class HelloWorld {
 
     transaction.begin();
 
-    List messages = entityManager.createQuery("from Message m order by m.text asc").getResultList();
+    List messages = entityManager.createNamedQuery("Message.all").getResultList();
     System.out.println(messages.size() + " message(s) found: ");
 
     for (Object m : messages) {
@@ -4,6 +4,7 @@ import javax.persistence.*;
 
 @Entity
 @Table(name = "MESSAGES")
+@NamedQuery(name = "Message.all", query = "from Message m order by m.text asc")
 public class Message {
 
   @Id